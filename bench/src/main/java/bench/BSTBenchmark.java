@@ -0,0 +1,111 @@
+package bench;
+
+import main.Algorithms;
+import main.BSTInterface;
+import main.Random;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the BSTInterface operations on a tree prefilled to the steady state of the update ratio,
+ * the same setup as the harness runs with -prefill=bulk.
+ * <p>
+ * The parameters mirror the harness switches: alg is -alg, keyRange is -keysM and ratio is -ins%/-del% written
+ * the way the harness prints it. The thread count is JMH's -t, see {@link ThreadSweep} for a sweep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 3, jvmArgsAppend = {"-XX:+UseParallelGC", "-Xms4G", "-Xmx4G"})
+public class BSTBenchmark {
+
+    @Param({"BST", "LockFreeBST", "RelaxedAVL", "SkipListSet"})
+    public String alg;
+
+    @Param({"1000000"})
+    public int keyRange;
+
+    @Param({"0i-0d", "10i-10d", "50i-50d"})
+    public String ratio;
+
+    @Param({"581968107"})
+    public int seed;
+
+    BSTInterface tree;
+    double ins;
+    double del;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        Random rng;
+
+        @Setup(Level.Trial)
+        public void setUp(BSTBenchmark benchmark) {
+            // distinct per thread; the xorshift generator must not start from 0
+            rng = new Random((benchmark.seed ^ (int) Thread.currentThread().threadId() * 0x9E3779B9) | 1);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] parts = ratio.split("[id]-?");
+        ins = Integer.parseInt(parts[0]) / 100.;
+        del = Integer.parseInt(parts[1]) / 100.;
+        if (ins < 0 || del < 0 || ins + del > 1) {
+            throw new IllegalArgumentException("invalid ratio " + ratio);
+        }
+
+        // keep every key with the steady-state probability, like Main.fillByBulkLoad
+        double probability = ins + del == 0 ? 0.5 : ins / (ins + del);
+        java.util.Random rand = new java.util.Random(seed);
+        int[] keys = new int[keyRange];
+        int size = 0;
+        for (int key = 1; key <= keyRange; key++) {
+            if (rand.nextDouble() < probability) {
+                keys[size++] = key;
+            }
+        }
+        tree = Algorithms.create(alg);
+        tree.bulkLoadParallel(Arrays.copyOf(keys, size));
+    }
+
+    @Benchmark
+    public boolean contains(ThreadState state) {
+        return tree.contains(state.rng.nextNatural(keyRange) + 1);
+    }
+
+    /**
+     * The harness's TimedWorker loop: one random key and one operation drawn by the ratio.
+     */
+    @Benchmark
+    public boolean mixed(ThreadState state) {
+        final int key = state.rng.nextNatural(keyRange) + 1;
+        final double op = state.rng.nextNatural() / (double) Integer.MAX_VALUE;
+        if (op < ins) {
+            return tree.insert(key);
+        } else if (op < ins + del) {
+            return tree.remove(key);
+        } else {
+            return tree.contains(key);
+        }
+    }
+
+    /**
+     * An insert and a remove of the same random key, so the tree stays at its prefilled size whatever the ratio.
+     * A key that is already in the tree fails the insert and is removed and inserted back instead, so the prefilled
+     * keys stay; that failed insert is not counted as an operation.
+     */
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public boolean insertRemove(ThreadState state) {
+        final int key = state.rng.nextNatural(keyRange) + 1;
+        if (tree.insert(key)) {
+            return tree.remove(key);
+        }
+        return tree.remove(key) & tree.insert(key);
+    }
+}
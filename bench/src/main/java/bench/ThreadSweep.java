@@ -0,0 +1,26 @@
+package bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the selected benchmarks once per thread count, since JMH's -t takes a single value.
+ * Usage: ThreadSweep 1,2,4,8 [regular JMH options...]
+ */
+public class ThreadSweep {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        if (args.length < 1) {
+            System.out.println("Usage: ThreadSweep THREADS[,THREADS...] [JMH options]");
+            System.exit(-1);
+        }
+        String[] jmhArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, jmhArgs, 0, jmhArgs.length);
+        CommandLineOptions options = new CommandLineOptions(jmhArgs);
+        for (String threads : args[0].split(",")) {
+            new Runner(new OptionsBuilder().parent(options).threads(Integer.parseInt(threads)).build()).run();
+        }
+    }
+}
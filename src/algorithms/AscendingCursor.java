@@ -0,0 +1,69 @@
+package algorithms;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Base of the ascending iterators of the trees over the keys of [lo, hi].
+ * Subclasses walk their tree in order and restart the walk after the last key they handled when a concurrent
+ * restructuring could have hidden keys from it, so keys come out ascending and at most once.
+ */
+abstract class AscendingCursor implements PrimitiveIterator.OfInt {
+    final long lo;
+    final long hi;
+    /**
+     * The key found by the last successful {@link #advance()}.
+     */
+    long candidate;
+    private boolean fetched;
+    private boolean exhausted;
+
+    AscendingCursor(long lo, long hi) {
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    /**
+     * Move to the next key of the walk, greater than all keys found before, and store it in `candidate`.
+     *
+     * @return false once the walk is over
+     */
+    abstract boolean advance();
+
+    public final boolean hasNext() {
+        if (!fetched) {
+            fetched = true;
+            if (lo > hi) {
+                exhausted = true;
+            } else {
+                boolean found;
+                do {
+                    found = advance();
+                } while (found && candidate < lo);
+                exhausted = !found || candidate > hi;
+            }
+        }
+        return !exhausted;
+    }
+
+    final long nextKey() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        fetched = false;
+        return candidate;
+    }
+
+    public final int nextInt() {
+        return (int) nextKey();
+    }
+
+    final int count() {
+        int count = 0;
+        while (hasNext()) {
+            nextKey();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,508 @@
+package algorithms;
+
+import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * A concurrent B+-tree with optimistic lock coupling, after Leis et al., "The ART of Practical Synchronization"
+ * (DaMoN 2016). The keys of a node sit in one int array, so a search reads one or two cache lines per level
+ * where {@link BST} reads one object per key compared, and the tree is a few levels deep instead of dozens.
+ * <p>
+ * Every node has a version lock: odd while a writer holds it, bumped on every change. Readers take no locks, they
+ * read a node's version, read the node and check that the version is unchanged, restarting from the root if it is
+ * not; they check the parent again after reading the version of the child, so that the child they go to was the
+ * right one. Writers upgrade the version of the node they change with a CAS. Full nodes are split on the way down,
+ * so a split only ever needs the lock of a parent that has room. Removal takes keys out of leaves and never merges
+ * nodes, so the tree keeps the shape its largest key set gave it.
+ */
+public class BPlusTree implements BSTInterface {
+
+    static final class Node {
+        volatile long version; // odd while write-locked
+        int count; // keys in use, never more than keys.length even when read racily
+        final int[] keys;
+        /**
+         * null in leaves. Child i holds the keys k with keys[i - 1] <= k < keys[i].
+         */
+        final Node[] children;
+
+        Node(int capacity, boolean leaf) {
+            this.keys = new int[capacity];
+            this.children = leaf ? null : new Node[capacity + 1];
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+    }
+
+    private static final VarHandle VERSION;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(Node.class, "version", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final long RESTART = -1;
+    private static final int DEFAULT_CAPACITY = 16; // 64 bytes of keys, one cache line
+
+    private final int capacity;
+    private volatile Node root;
+    private final LongAdder count = new LongAdder();
+
+    public BPlusTree() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity keys per node
+     */
+    public BPlusTree(int capacity) {
+        if (capacity < 3) {
+            throw new IllegalArgumentException("nodes need room for at least 3 keys, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.root = new Node(capacity, true);
+    }
+
+    // version locks
+
+    /**
+     * The version of an unlocked node, or RESTART if a writer holds it.
+     */
+    private static long readLock(Node node) {
+        long version = node.version;
+        if ((version & 1) != 0) {
+            Thread.onSpinWait();
+            return RESTART;
+        }
+        return version;
+    }
+
+    /**
+     * Whether nothing changed `node` since its version was `version`, so everything read from it since is consistent.
+     */
+    private static boolean validate(Node node, long version) {
+        VarHandle.acquireFence();
+        return node.version == version;
+    }
+
+    private static boolean upgrade(Node node, long version) {
+        return VERSION.compareAndSet(node, version, version + 1);
+    }
+
+    /**
+     * Only for the thread holding the node's lock.
+     */
+    private static void writeUnlock(Node node) {
+        node.version = node.version + 1;
+    }
+
+    /**
+     * The number of keys among the first `count` that are at most `key`, the index of the child to descend to.
+     */
+    private static int upperBound(int[] keys, int count, int key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The number of keys among the first `count` that are less than `key`, the position of `key` in a leaf.
+     */
+    private static int lowerBound(int[] keys, int count, int key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // operations
+
+    public final boolean contains(final int key) {
+        restart:
+        while (true) {
+            Node node = root;
+            long version = readLock(node);
+            if (version == RESTART || node != root) {
+                continue;
+            }
+            while (!node.isLeaf()) {
+                Node child = node.children[upperBound(node.keys, node.count, key)];
+                if (!validate(node, version)) {
+                    continue restart;
+                }
+                long childVersion = readLock(child);
+                if (childVersion == RESTART || !validate(node, version)) {
+                    continue restart;
+                }
+                node = child;
+                version = childVersion;
+            }
+            int count = node.count;
+            int position = lowerBound(node.keys, count, key);
+            boolean found = position < count && node.keys[position] == key;
+            if (validate(node, version)) {
+                return found;
+            }
+        }
+    }
+
+    public final boolean insert(final int key) {
+        restart:
+        while (true) {
+            Node node = root;
+            long version = readLock(node);
+            if (version == RESTART || node != root) {
+                continue;
+            }
+            Node parent = null;
+            long parentVersion = 0;
+            while (true) {
+                if (node.count == capacity) {
+                    if (parent != null && !upgrade(parent, parentVersion)) {
+                        continue restart;
+                    }
+                    if (!upgrade(node, version)) {
+                        if (parent != null) {
+                            writeUnlock(parent);
+                        }
+                        continue restart;
+                    }
+                    if (parent == null && node != root) {
+                        writeUnlock(node);
+                        continue restart;
+                    }
+                    split(node, parent);
+                    writeUnlock(node);
+                    if (parent != null) {
+                        writeUnlock(parent);
+                    }
+                    continue restart;
+                }
+                if (parent != null && !validate(parent, parentVersion)) {
+                    continue restart;
+                }
+                if (node.isLeaf()) {
+                    break;
+                }
+                Node child = node.children[upperBound(node.keys, node.count, key)];
+                if (!validate(node, version)) {
+                    continue restart;
+                }
+                long childVersion = readLock(child);
+                if (childVersion == RESTART) {
+                    continue restart;
+                }
+                parent = node;
+                parentVersion = version;
+                node = child;
+                version = childVersion;
+            }
+
+            // the range of keys of a leaf only changes when the leaf itself splits, which the upgrade would catch
+            int count = node.count;
+            int position = lowerBound(node.keys, count, key);
+            if (position < count && node.keys[position] == key) {
+                if (validate(node, version)) {
+                    return false;
+                }
+                continue;
+            }
+            if (!upgrade(node, version)) {
+                continue;
+            }
+            System.arraycopy(node.keys, position, node.keys, position + 1, count - position);
+            node.keys[position] = key;
+            node.count = count + 1;
+            writeUnlock(node);
+            this.count.increment();
+            return true;
+        }
+    }
+
+    /**
+     * Split the full `node` in half, with the locks of `node` and its `parent` held, or of `node` alone if it is
+     * the root. The parent has room, since full nodes are split on the way down.
+     */
+    private void split(Node node, Node parent) {
+        final int count = node.count;
+        final int mid = count >>> 1;
+        final Node sibling;
+        final int separator;
+        if (node.isLeaf()) {
+            sibling = new Node(capacity, true);
+            System.arraycopy(node.keys, mid, sibling.keys, 0, count - mid);
+            sibling.count = count - mid;
+            separator = sibling.keys[0];
+        } else {
+            sibling = new Node(capacity, false);
+            separator = node.keys[mid];
+            System.arraycopy(node.keys, mid + 1, sibling.keys, 0, count - mid - 1);
+            System.arraycopy(node.children, mid + 1, sibling.children, 0, count - mid);
+            Arrays.fill(node.children, mid + 1, count + 1, null);
+            sibling.count = count - mid - 1;
+        }
+        node.count = mid;
+        if (parent == null) {
+            Node newRoot = new Node(capacity, false);
+            newRoot.keys[0] = separator;
+            newRoot.children[0] = node;
+            newRoot.children[1] = sibling;
+            newRoot.count = 1;
+            root = newRoot;
+        } else {
+            int parentCount = parent.count;
+            int position = upperBound(parent.keys, parentCount, separator);
+            System.arraycopy(parent.keys, position, parent.keys, position + 1, parentCount - position);
+            System.arraycopy(parent.children, position + 1, parent.children, position + 2, parentCount - position);
+            parent.keys[position] = separator;
+            parent.children[position + 1] = sibling;
+            parent.count = parentCount + 1;
+        }
+    }
+
+    public final boolean remove(final int key) {
+        restart:
+        while (true) {
+            Node node = root;
+            long version = readLock(node);
+            if (version == RESTART || node != root) {
+                continue;
+            }
+            while (!node.isLeaf()) {
+                Node child = node.children[upperBound(node.keys, node.count, key)];
+                if (!validate(node, version)) {
+                    continue restart;
+                }
+                long childVersion = readLock(child);
+                if (childVersion == RESTART || !validate(node, version)) {
+                    continue restart;
+                }
+                node = child;
+                version = childVersion;
+            }
+            int count = node.count;
+            int position = lowerBound(node.keys, count, key);
+            if (position == count || node.keys[position] != key) {
+                if (validate(node, version)) {
+                    return false;
+                }
+                continue;
+            }
+            if (!upgrade(node, version)) {
+                continue;
+            }
+            System.arraycopy(node.keys, position + 1, node.keys, position, count - position - 1);
+            node.count = count - 1;
+            writeUnlock(node);
+            this.count.decrement();
+            return true;
+        }
+    }
+
+    // bulk loading
+
+    public final void bulkLoad(int[] sortedKeys) {
+        Subtrees.checkAscending(sortedKeys);
+        if (sortedKeys.length == 0) {
+            return;
+        }
+        // full leaves, then levels of full inner nodes, with the nodes of a level sharing the keys evenly
+        int leaves = (sortedKeys.length + capacity - 1) / capacity;
+        Node[] level = new Node[leaves];
+        int[] firstKeys = new int[leaves];
+        for (int i = 0, from = 0; i < leaves; i++) {
+            int to = (int) ((long) sortedKeys.length * (i + 1) / leaves);
+            Node leaf = new Node(capacity, true);
+            System.arraycopy(sortedKeys, from, leaf.keys, 0, to - from);
+            leaf.count = to - from;
+            level[i] = leaf;
+            firstKeys[i] = sortedKeys[from];
+            from = to;
+        }
+        while (level.length > 1) {
+            int parents = (level.length + capacity) / (capacity + 1);
+            Node[] parentLevel = new Node[parents];
+            int[] parentFirstKeys = new int[parents];
+            for (int i = 0, from = 0; i < parents; i++) {
+                int to = (int) ((long) level.length * (i + 1) / parents);
+                Node inner = new Node(capacity, false);
+                System.arraycopy(level, from, inner.children, 0, to - from);
+                System.arraycopy(firstKeys, from + 1, inner.keys, 0, to - from - 1);
+                inner.count = to - from - 1;
+                parentLevel[i] = inner;
+                parentFirstKeys[i] = firstKeys[from];
+                from = to;
+            }
+            level = parentLevel;
+            firstKeys = parentFirstKeys;
+        }
+        while (true) {
+            Node oldRoot = root;
+            long version = readLock(oldRoot);
+            if (version == RESTART || oldRoot != root || !upgrade(oldRoot, version)) {
+                continue;
+            }
+            try {
+                if (oldRoot != root || !oldRoot.isLeaf() || oldRoot.count != 0) {
+                    throw new IllegalStateException("bulk loading requires an empty tree");
+                }
+                root = level[0];
+                count.add(sortedKeys.length);
+                return;
+            } finally {
+                writeUnlock(oldRoot);
+            }
+        }
+    }
+
+    /**
+     * Builds sequentially, a single pass over the keys.
+     */
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        bulkLoad(sortedKeys);
+    }
+
+    // walks
+
+    public final int rangeCount(int lo, int hi) {
+        return new RangeCursor(lo, hi).count();
+    }
+
+    public final void rangeScan(int lo, int hi, IntConsumer consumer) {
+        new RangeCursor(lo, hi).forEachRemaining(consumer);
+    }
+
+    public final PrimitiveIterator.OfInt iterator() {
+        return new RangeCursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Copies one leaf at a time: it descends to the leaf that holds `from`, copies the keys of at least `from` out of
+     * a validated read of the leaf, and continues from the separator above the leaf. Each leaf is read consistently,
+     * and the separators partition the keys, so the walk is weakly consistent without sibling links.
+     */
+    final class RangeCursor extends AscendingCursor {
+        private final int[] buffer = new int[capacity];
+        private int size;
+        private int position;
+        private long from; // the keys below `from` have been handled
+        private boolean done;
+
+        RangeCursor(int lo, int hi) {
+            super(lo, hi);
+            this.from = lo;
+        }
+
+        boolean advance() {
+            while (position == size) {
+                if (done || from > hi) {
+                    return false;
+                }
+                fill();
+            }
+            candidate = buffer[position++];
+            return true;
+        }
+
+        private void fill() {
+            final int key = (int) from;
+            restart:
+            while (true) {
+                Node node = root;
+                long version = readLock(node);
+                if (version == RESTART || node != root) {
+                    continue;
+                }
+                long upper = Long.MAX_VALUE; // no separator above the leaf: it is the last one
+                while (!node.isLeaf()) {
+                    int count = node.count;
+                    int index = upperBound(node.keys, count, key);
+                    int separator = index < count ? node.keys[index] : 0;
+                    Node child = node.children[index];
+                    if (!validate(node, version)) {
+                        continue restart;
+                    }
+                    if (index < count) {
+                        upper = separator;
+                    }
+                    long childVersion = readLock(child);
+                    if (childVersion == RESTART || !validate(node, version)) {
+                        continue restart;
+                    }
+                    node = child;
+                    version = childVersion;
+                }
+                int count = node.count;
+                int first = lowerBound(node.keys, count, key);
+                System.arraycopy(node.keys, first, buffer, 0, count - first);
+                if (!validate(node, version)) {
+                    continue;
+                }
+                size = count - first;
+                position = 0;
+                if (upper == Long.MAX_VALUE) {
+                    done = true;
+                } else {
+                    from = upper;
+                }
+                return;
+            }
+        }
+    }
+
+    public BST.Node getRoot() {
+        throw new UnsupportedOperationException(getName() + " has multi-key nodes and no BST.Node root");
+    }
+
+    public TreeSnapshot snapshot() {
+        throw new UnsupportedOperationException(getName() + " has unversioned nodes");
+    }
+
+    public String getName() {
+        return capacity == DEFAULT_CAPACITY ? "BPlusTree" : "BPlusTree-" + capacity;
+    }
+
+    public final int size() {
+        return rangeCount(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public final int approximateSize() {
+        return count.intValue();
+    }
+
+    public final long getKeysum() {
+        long sum = 0;
+        RangeCursor keys = new RangeCursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        while (keys.hasNext()) {
+            sum += keys.nextKey();
+        }
+        return sum;
+    }
+}
@@ -1,14 +1,46 @@
 package algorithms;
 
 import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
 
 public class BST implements BSTInterface {
 
+    /**
+     * How the per-node locks of the hand-over-hand protocol are taken.
+     * MONITOR uses `synchronized` blocks on the nodes, SPIN uses the LOCKED bit of {@link Node#state}
+     * acquired with a CAS and bounded spinning, so a contended lock never parks the thread in the OS.
+     * STAMPED uses a {@link StampedLock} per node, created when the node is first locked: a search result is
+     * validated under optimistic read stamps before any lock is taken, and a contended lock parks through
+     * {@link java.util.concurrent.locks.LockSupport}, which unmounts a virtual thread instead of pinning its carrier.
+     */
+    public enum LockStrategy {MONITOR, SPIN, STAMPED}
+
+    private static final int MARKED = 1; // marked for deletion
+    private static final int LOCKED = 2; // held by a thread, only used by LockStrategy.SPIN
+
     public static class Node {
-        public final int key; // key is immutable
+        int key; // immutable while the node is in the tree, rewritten only when a pooled node is reused
         public volatile Node left;
         public volatile Node right;
-        public volatile boolean marked; // marked for deletion
+        /**
+         * MARKED and LOCKED bits. Only the thread holding the node's lock writes it without a CAS.
+         */
+        volatile int state;
+        /**
+         * The lock of LockStrategy.STAMPED, null until the node is first locked. Kept when a pooled node is reused.
+         */
+        volatile StampedLock lock;
 
         public Node(int key) {
             this(key, null, null);
@@ -18,7 +50,29 @@ public class BST implements BSTInterface {
             this.key = key;
             this.left = left;
             this.right = right;
-            this.marked = false;
+            this.state = 0;
+        }
+
+        /**
+         * Make a retired node a fresh leaf for `key`. Only for nodes that no operation can reach any more.
+         */
+        void reset(int key) {
+            this.key = key;
+            this.left = null;
+            this.right = null;
+            this.state = 0;
+        }
+
+        public int getKey() {
+            return key;
+        }
+
+        public boolean isMarked() {
+            return (state & MARKED) != 0;
+        }
+
+        void mark() {
+            state = state | MARKED;
         }
 
         public void setChild(Node child, boolean isRight) {
@@ -38,19 +92,109 @@ public class BST implements BSTInterface {
         }
     }
 
-    static class NodePair {
-        public final Node parent;
-        public final Node current;
+    /**
+     * A mutable search result. Instances are owned by a single thread (see {@link Cursor})
+     * and are overwritten by every search, so the hot paths never allocate one.
+     */
+    static final class NodePair {
+        Node parent;
+        Node current;
         // Is `current` the right child of `parent`
-        public final boolean isRight;
+        boolean isRight;
 
-        public NodePair(Node parent, Node current, boolean isRight) {
+        void set(Node parent, Node current, boolean isRight) {
             this.parent = parent;
             this.current = current;
             this.isRight = isRight;
         }
     }
 
+    /**
+     * Per-thread scratch space for the search results used by a single update.
+     * An update holds at most this many results at once (the removal of a node with two children
+     * needs the node itself, its successor, the successor's successor and a re-check result).
+     */
+    static final class Cursor {
+        final NodePair search = new NodePair();
+        final NodePair successor = new NodePair();
+        final NodePair nextSuccessor = new NodePair();
+        final NodePair check = new NodePair();
+        final NodePair replacement = new NodePair();
+        final Finger finger = new Finger();
+        final NodePool.Local pooled; // null unless the tree recycles its nodes
+
+        Cursor(NodePool pool) {
+            this.pooled = pool != null ? pool.local() : null;
+        }
+    }
+
+    /**
+     * The path of the last descent of a batch operation, starting at the head, with the upper end of the open range
+     * of keys each node covered when it was passed. The keys of a batch come in ascending order, so the next key is
+     * above the lower end of every range on the path, and it descends from the deepest node that is still unmarked
+     * and whose range reaches past it, instead of from the head.
+     * Removals of nodes with fewer than two children lift whole subtrees up, so the range of a node that stays in the
+     * tree only grows; relocating a successor is the exception, so the path is dropped as soon as one has started.
+     */
+    static final class Finger {
+        Node[] nodes = new Node[64];
+        long[] highs = new long[64];
+        int depth; // entries of the path in use
+        int used; // entries written during the current batch
+        long relocations; // relocationsFinished when the path was started from the head
+        long high; // the upper end of the range of the child slot the last descent ended at
+
+        void reset(Node head) {
+            nodes[0] = head;
+            highs[0] = Long.MAX_VALUE;
+            depth = 1;
+            used = Math.max(used, 1);
+            relocations = -1; // forces the next descent to start from the head
+        }
+
+        void push(Node node, long high) {
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, depth * 2);
+                highs = Arrays.copyOf(highs, depth * 2);
+            }
+            nodes[depth] = node;
+            highs[depth] = high;
+            used = Math.max(used, ++depth);
+        }
+
+        /**
+         * Drop the references to nodes, which may be removed from the tree after the batch.
+         */
+        void clear() {
+            Arrays.fill(nodes, 0, used, null);
+            depth = 0;
+            used = 0;
+        }
+    }
+
+    private static final VarHandle STATE;
+    private static final VarHandle LOCK;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(Node.class, "state", int.class);
+            LOCK = MethodHandles.lookup().findVarHandle(Node.class, "lock", StampedLock.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // results of an update attempt made under the locks
+    private static final int RETRY = 0;
+    private static final int FAILED = 1;
+    private static final int DONE = 2;
+
+    // bounds for the exponential backoff of LockStrategy.SPIN, in Thread.onSpinWait() calls
+    private static final int MIN_BACKOFF = 1;
+    private static final int MAX_BACKOFF = 1 << 10;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
     /**
      * A helper dummy node used as the head of the tree.
      * Keeping it removes some edge-cases where the tree is totally empty.
@@ -60,8 +204,41 @@ public class BST implements BSTInterface {
      * A helper dummy node (set to null) used to represent a "no child".
      */
     final Node sentinel;
+    /**
+     * Search results are reused per thread so that updates only allocate the inserted node.
+     */
+    private final ThreadLocal<Cursor> cursors;
+    /**
+     * Moving a successor up into the place of a removed node with two children is the only update
+     * that can make a concurrent search miss a key which is in the tree.
+     * Those moves are bracketed by these counters, so a search that overlapped none of them can trust a miss.
+     */
+    private final AtomicLong relocationsStarted = new AtomicLong();
+    private final AtomicLong relocationsFinished = new AtomicLong();
+    /**
+     * Successful inserts minus successful removes, striped so that updates do not contend on it.
+     */
+    private final LongAdder count = new LongAdder();
+
+    final LockStrategy lockStrategy;
+    /**
+     * Recycles removed nodes for later inserts, null if they are left to the garbage collector.
+     * With a pool every operation runs inside an epoch of it, see {@link NodePool}.
+     */
+    final NodePool pool;
 
     public BST() {
+        this(LockStrategy.MONITOR);
+    }
+
+    public BST(LockStrategy lockStrategy) {
+        this(lockStrategy, false);
+    }
+
+    public BST(LockStrategy lockStrategy, boolean pooled) {
+        this.lockStrategy = lockStrategy;
+        this.pool = pooled ? new NodePool() : null;
+        this.cursors = ThreadLocal.withInitial(() -> new Cursor(pool));
         head = new Node(Integer.MIN_VALUE);
         sentinel = null;
         head.left = sentinel;
@@ -90,23 +267,156 @@ public class BST implements BSTInterface {
     private boolean validate(NodePair result) {
         Node pred = result.parent;
         Node curr = result.current;
-        return !pred.marked && (isSentinelNode(curr) || !curr.marked) && pred.getChild(result.isRight) == curr;
+        return !pred.isMarked() && (isSentinelNode(curr) || !curr.isMarked()) && pred.getChild(result.isRight) == curr;
+    }
+
+    /**
+     * Lock the node the way the lock strategy does outside of `synchronized` blocks.
+     */
+    private void lock(Node node) {
+        if (lockStrategy == LockStrategy.STAMPED) {
+            stampedLock(node).writeLock();
+        } else {
+            spinLock(node);
+        }
+    }
+
+    /**
+     * Release the node's lock. The write stamps of LockStrategy.STAMPED are not kept, so they are released without
+     * one; releasing a node that is not write-locked is a bug, reported as StampedLock.unlockWrite would report it.
+     */
+    private void unlock(Node node) {
+        if (lockStrategy == LockStrategy.STAMPED) {
+            if (!node.lock.tryUnlockWrite()) {
+                throw new IllegalMonitorStateException("unlocking a node that is not write-locked");
+            }
+        } else {
+            node.state = node.state & ~LOCKED;
+        }
+    }
+
+    /**
+     * The StampedLock of the node, created by the first thread that needs it.
+     */
+    private static StampedLock stampedLock(Node node) {
+        StampedLock lock = node.lock;
+        if (lock == null) {
+            StampedLock created = new StampedLock();
+            lock = (StampedLock) LOCK.compareAndExchange(node, null, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Acquire the LOCKED bit of the node, backing off exponentially between failed attempts.
+     * Once the backoff is at its bound the thread yields instead of spinning further.
+     */
+    private static void spinLock(Node node) {
+        int backoff = MIN_BACKOFF;
+        while (true) {
+            int state = node.state;
+            if ((state & LOCKED) == 0 && STATE.compareAndSet(node, state, state | LOCKED)) {
+                return;
+            }
+            if (backoff < MAX_BACKOFF) {
+                for (int i = 0; i < backoff; i++) {
+                    Thread.onSpinWait();
+                }
+                backoff <<= 1;
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Lock the parent of a search result, and its current node if the parent still links to it.
+     * Locks are only taken from parent to child along a link that exists when the child is locked: locking both nodes
+     * of a stale result could take a node before its current ancestor and deadlock against a thread going top-down.
+     *
+     * @return whether both are held, nothing is held otherwise
+     */
+    private boolean lockPair(NodePair pair) {
+        if (lockStrategy == LockStrategy.STAMPED) {
+            return lockPairStamped(pair);
+        }
+        lock(pair.parent);
+        if (!isLinked(pair)) {
+            unlock(pair.parent);
+            return false;
+        }
+        if (isRealNode(pair.current)) {
+            lock(pair.current);
+        }
+        return true;
+    }
+
+    /**
+     * {@link #lockPair} for LockStrategy.STAMPED. The result is first validated under optimistic read stamps of both
+     * nodes, so a stale result is retried without taking a lock. The stamps are then converted into write locks, which
+     * succeeds without reading the nodes again unless one of them was written since it was validated; only then does
+     * a lock have to be waited for and the link re-checked under it. Every write to a node's links or mark is made
+     * holding its lock, so an unchanged stamp means unchanged fields.
+     */
+    private static boolean lockPairStamped(NodePair pair) {
+        final Node pred = pair.parent;
+        final Node curr = pair.current;
+        final StampedLock predLock = stampedLock(pred);
+        final StampedLock currLock = isRealNode(curr) ? stampedLock(curr) : null;
+        final long predStamp = predLock.tryOptimisticRead();
+        final long currStamp = currLock != null ? currLock.tryOptimisticRead() : 0;
+        final boolean linked = isLinked(pair);
+        final boolean predRead = predStamp != 0 && predLock.validate(predStamp);
+        if (predRead && !linked) {
+            return false;
+        }
+        if (predRead && currLock != null && currStamp != 0 && curr.isMarked() && currLock.validate(currStamp)) {
+            return false;
+        }
+        if (!predRead || predLock.tryConvertToWriteLock(predStamp) == 0) {
+            final long stamp = predLock.writeLock();
+            if (!isLinked(pair)) {
+                predLock.unlockWrite(stamp);
+                return false;
+            }
+        }
+        if (currLock != null && (currStamp == 0 || currLock.tryConvertToWriteLock(currStamp) == 0)) {
+            currLock.writeLock();
+        }
+        return true;
+    }
+
+    /**
+     * Whether the parent of the result is unmarked and still links to the current node, called with the parent's lock.
+     */
+    private static boolean isLinked(NodePair pair) {
+        return !pair.parent.isMarked() && pair.parent.getChild(pair.isRight) == pair.current;
+    }
+
+    private void unlockPair(Node pred, Node curr) {
+        if (isRealNode(curr)) {
+            unlock(curr);
+        }
+        unlock(pred);
     }
 
-    private NodePair findKey(final int key) {
-        NodePair first = new NodePair(null, null, false);
+    private void findKey(final int key, final NodePair result) {
+        Node previousParent = null;
 
         while (true) {
-            NodePair second = findKeyOnce(key);
-            if (second.parent == first.parent || isRealNode(second.current)) {
-                return second;
+            findKeyOnce(key, result);
+            if (result.parent == previousParent || isRealNode(result.current)) {
+                return;
             }
 
-            first = second;
+            previousParent = result.parent;
         }
     }
 
-    private NodePair findKeyOnce(final int key) {
+    private void findKeyOnce(final int key, final NodePair result) {
         Node parent = head;
         Node curr = head.right;
         boolean isRight = true;
@@ -120,75 +430,210 @@ public class BST implements BSTInterface {
                 curr = curr.left;
                 isRight = false;
             } else {
-                return new NodePair(parent, curr, isRight);
+                break;
             }
         }
 
-        return new NodePair(parent, curr, isRight);
+        result.set(parent, curr, isRight);
     }
 
     public final boolean contains(final int key) {
-        NodePair result = findKey(key);
-        return isRealNode(result.current) && !result.current.marked;
+        if (pool == null) {
+            return search(key);
+        }
+        final NodePool.Local pooled = cursors.get().pooled;
+        pooled.enter();
+        try {
+            return search(key);
+        } finally {
+            pooled.exit();
+        }
     }
 
-    public final boolean insert(final int key) {
+    /**
+     * A single optimistic traversal. A miss is trusted when no successor was relocated while it ran
+     * (read `finished` before `started`, so equal values mean none was in progress at the start),
+     * otherwise the lookup falls back to {@link #containsRetrying}.
+     */
+    private boolean search(final int key) {
+        final long relocations = relocationsFinished.get();
+        if (relocationsStarted.get() == relocations) {
+            Node curr = head.right;
+            while (curr != sentinel && curr.key != key) {
+                curr = curr.key < key ? curr.right : curr.left;
+            }
+            if (isRealNode(curr)) {
+                return !curr.isMarked();
+            }
+            if (relocationsStarted.get() == relocations) {
+                return false;
+            }
+        }
+        return containsRetrying(key);
+    }
+
+    /**
+     * Same search as {@link #findKey}, but only the found node is needed, so everything stays in locals.
+     */
+    private boolean containsRetrying(final int key) {
+        Node previousParent = null;
+
         while (true) {
-            NodePair pair = findKey(key);
-            Node pred = pair.parent;
-            Node curr = pair.current;
-            boolean isRight = pair.isRight;
-            synchronized (pred) {
-                if (!validate(pair)) {
-                    continue;
-                }
-                if (isSentinelNode(curr)) {
-                    Node node = new Node(key, sentinel, sentinel);
-                    pred.setChild(node, isRight);
-                    return true;
+            Node parent = head;
+            Node curr = head.right;
+            while (curr != sentinel && curr.key != key) {
+                parent = curr;
+                curr = curr.key < key ? curr.right : curr.left;
+            }
+            if (isRealNode(curr)) {
+                return !curr.isMarked();
+            }
+            if (parent == previousParent) {
+                return false;
+            }
+
+            previousParent = parent;
+        }
+    }
+
+    public final boolean insert(final int key) {
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        final NodePool.Local pooled = cursor.pooled;
+        if (pooled != null) {
+            pooled.enter();
+        }
+        try {
+            while (true) {
+                findKey(key, pair);
+                Node pred = pair.parent;
+                Node curr = pair.current;
+                int result;
+                if (lockStrategy != LockStrategy.MONITOR) {
+                    if (!lockPair(pair)) {
+                        result = RETRY;
+                    } else {
+                        try {
+                            result = insertLocked(pair, key, pooled);
+                        } finally {
+                            unlockPair(pred, curr);
+                        }
+                    }
                 } else {
-                    synchronized (curr) {
-                        if (validate(pair)) {
-                            return false;
+                    synchronized (pred) {
+                        if (!isLinked(pair)) {
+                            result = RETRY;
+                        } else if (isSentinelNode(curr)) {
+                            result = insertLocked(pair, key, pooled);
+                        } else {
+                            synchronized (curr) {
+                                result = insertLocked(pair, key, pooled);
+                            }
                         }
                     }
                 }
+                if (result != RETRY) {
+                    return result == DONE;
+                }
+            }
+        } finally {
+            if (pooled != null) {
+                pooled.exit();
             }
         }
     }
 
+    /**
+     * The body of {@link #insert}, called with the locks over both nodes of the search result held.
+     */
+    private int insertLocked(NodePair pair, final int key, NodePool.Local pooled) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        if (isRealNode(pair.current)) {
+            return FAILED;
+        }
+        Node node = pooled != null ? pooled.allocate(key) : new Node(key, sentinel, sentinel);
+        pair.parent.setChild(node, pair.isRight);
+        count.increment();
+        return DONE;
+    }
+
     public final boolean remove(final int key) {
-        while (true) {
-            NodePair pair = findKey(key);
-            Node pred = pair.parent;
-            Node curr = pair.current;
-            boolean isRight = pair.isRight;
-            synchronized (pred) {
-                if (!validate(pair)) {
-                    continue;
-                }
-                if (isSentinelNode(curr)) {
-                    return false;
-                }
-                synchronized (curr) {
-                    if (validate(pair)) {
-                        if (isRealNode(curr.left) && isRealNode(curr.right)) {
-                            removeBinaryNode(pair);
-                        } else if (isRealNode(curr.left)) {
-                            curr.marked = true;
-                            pred.setChild(curr.left, isRight);
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        final NodePool.Local pooled = cursor.pooled;
+        if (pooled != null) {
+            pooled.enter();
+        }
+        try {
+            while (true) {
+                findKey(key, pair);
+                Node pred = pair.parent;
+                Node curr = pair.current;
+                int result;
+                if (lockStrategy != LockStrategy.MONITOR) {
+                    if (!lockPair(pair)) {
+                        result = RETRY;
+                    } else {
+                        try {
+                            result = removeLocked(pair, cursor);
+                        } finally {
+                            unlockPair(pred, curr);
+                        }
+                    }
+                } else {
+                    synchronized (pred) {
+                        if (!isLinked(pair)) {
+                            result = RETRY;
+                        } else if (isSentinelNode(curr)) {
+                            result = removeLocked(pair, cursor);
                         } else {
-                            curr.marked = true;
-                            pred.setChild(curr.right, isRight);
+                            synchronized (curr) {
+                                result = removeLocked(pair, cursor);
+                            }
                         }
-                        return true;
                     }
                 }
+                if (result != RETRY) {
+                    if (result == DONE && pooled != null) {
+                        pooled.retire(curr);
+                    }
+                    return result == DONE;
+                }
+            }
+        } finally {
+            if (pooled != null) {
+                pooled.exit();
             }
         }
     }
 
-    private NodePair findSuccessor(Node base) {
+    /**
+     * The body of {@link #remove}, called with the locks over both nodes of the search result held.
+     */
+    private int removeLocked(NodePair pair, Cursor cursor) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        Node curr = pair.current;
+        if (isSentinelNode(curr)) {
+            return FAILED;
+        }
+        if (isRealNode(curr.left) && isRealNode(curr.right)) {
+            removeBinaryNode(pair, cursor);
+        } else if (isRealNode(curr.left)) {
+            curr.mark();
+            pair.parent.setChild(curr.left, pair.isRight);
+        } else {
+            curr.mark();
+            pair.parent.setChild(curr.right, pair.isRight);
+        }
+        count.decrement();
+        return DONE;
+    }
+
+    private void findSuccessor(Node base, NodePair result) {
         Node parent = base;
         Node curr = base.right;
         boolean isRight = true;
@@ -199,102 +644,717 @@ public class BST implements BSTInterface {
             next = curr.left;
             isRight = false;
         }
-        return new NodePair(parent, curr, isRight);
+        result.set(parent, curr, isRight);
     }
 
-    private void removeBinaryNode(NodePair toRemove) {
-        while (true) {
-            NodePair pair = findSuccessor(toRemove.current);
-            Node pred = pair.parent;
-            Node curr = pair.current;
-            boolean isRight = pair.isRight;
+    /**
+     * Lock the successor found in `pair` (and its parent, unless it is `base`, which the caller already holds)
+     * and run {@link #relocateSuccessorLocked} under those locks.
+     */
+    private int relocateSuccessor(NodePair toRemove, NodePair pair, Node base, Cursor cursor) {
+        Node pred = pair.parent;
+        Node curr = pair.current;
+        if (lockStrategy != LockStrategy.MONITOR) {
+            if (pred != base) {
+                lock(pred);
+            }
+            try {
+                if (!isLinked(pair)) {
+                    return RETRY;
+                }
+                lock(curr);
+                try {
+                    return relocateSuccessorLocked(toRemove, pair, base, cursor);
+                } finally {
+                    unlock(curr);
+                }
+            } finally {
+                if (pred != base) {
+                    unlock(pred);
+                }
+            }
+        } else {
             synchronized (pred) {
-                if (!validate(pair)) {
-                    continue;
+                if (!isLinked(pair)) {
+                    return RETRY;
                 }
                 synchronized (curr) {
-                    NodePair secondPair = findSuccessor(toRemove.current);
-                    if (secondPair.current != curr || secondPair.parent != pred || secondPair.isRight != isRight || isRealNode(curr.left)) {
-                        continue;
-                    }
+                    return relocateSuccessorLocked(toRemove, pair, base, cursor);
+                }
+            }
+        }
+    }
 
-                    if (validate(pair)) {
-                        if (isSentinelNode(curr.right)) {
-                            removeAndReplaceWithLeaf(toRemove, pair);
+    /**
+     * Re-check that `pair` still describes the successor of `base` and move it up.
+     * If `base` is the node being removed the successor replaces it directly, otherwise `base` is the successor
+     * of the node being removed, it has a right child, and the successor found in `pair` takes its place first.
+     */
+    private int relocateSuccessorLocked(NodePair toRemove, NodePair pair, Node base, Cursor cursor) {
+        Node pred = pair.parent;
+        Node curr = pair.current;
+        NodePair secondPair = cursor.check;
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        findSuccessor(base, secondPair);
+        if (secondPair.current != curr || secondPair.parent != pred || secondPair.isRight != pair.isRight || isRealNode(curr.left)) {
+            return RETRY;
+        }
+
+        if (base == toRemove.current) {
+            if (isSentinelNode(curr.right)) {
+                relocationsStarted.incrementAndGet();
+                removeAndReplaceWithLeaf(toRemove, pair);
+                relocationsFinished.incrementAndGet();
+            } else {
+                removeWithNonLeafSuccessor(toRemove, pair, cursor);
+            }
+        } else {
+            // `base` is the successor of the node being removed, found by removeBinaryNode
+            NodePair succ = cursor.successor;
+            relocationsStarted.incrementAndGet();
+            curr.left = succ.current;
+            succ.parent.setChild(succ.current.right, succ.isRight);
+            succ.current.right = sentinel;
+            cursor.replacement.set(curr, succ.current, false);
+            removeAndReplaceWithLeaf(toRemove, cursor.replacement);
+            relocationsFinished.incrementAndGet();
+        }
+        return DONE;
+    }
+
+    private void removeBinaryNode(NodePair toRemove, Cursor cursor) {
+        final NodePair pair = cursor.successor;
+        do {
+            findSuccessor(toRemove.current, pair);
+        } while (relocateSuccessor(toRemove, pair, toRemove.current, cursor) == RETRY);
+    }
+
+    private void removeWithNonLeafSuccessor(NodePair toRemove, NodePair succ, Cursor cursor) {
+        final NodePair pair = cursor.nextSuccessor;
+        do {
+            findSuccessor(succ.current, pair);
+        } while (relocateSuccessor(toRemove, pair, succ.current, cursor) == RETRY);
+    }
+
+    private void removeAndReplaceWithLeaf(NodePair toRemove, NodePair replacementLeaf) {
+        toRemove.current.mark();
+        if (toRemove.current.right != replacementLeaf.current) {
+            replacementLeaf.current.right = toRemove.current.right;
+        }
+        replacementLeaf.current.left = toRemove.current.left;
+        toRemove.parent.setChild(replacementLeaf.current, toRemove.isRight);
+        replacementLeaf.parent.setChild(sentinel, replacementLeaf.isRight);
+    }
+
+    // batches
+
+    /**
+     * The keys of the batch in ascending order, each packed with its position in the batch as (key << 32) | i,
+     * so the occurrences of a key come out in the order of the batch.
+     */
+    private static long[] sortedPositions(int[] keys, boolean[] out) {
+        BSTInterface.checkBatch(keys, out);
+        long[] order = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
+
+    /**
+     * {@link #sortedPositions} with all but the first occurrence of every key dropped, and out[i] set to false for them,
+     * since an update only takes effect once.
+     */
+    private static long[] sortedDistinct(int[] keys, boolean[] out) {
+        long[] order = sortedPositions(keys, out);
+        int size = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (size > 0 && keyAt(order, size - 1) == keyAt(order, i)) {
+                out[(int) order[i]] = false;
+            } else {
+                order[size++] = order[i];
+            }
+        }
+        return size == order.length ? order : Arrays.copyOf(order, size);
+    }
+
+    private static int keyAt(long[] order, int i) {
+        return (int) (order[i] >> 32);
+    }
+
+    /**
+     * {@link #findKeyOnce} for the next key of an ascending batch, starting from the deepest node of the finger
+     * whose range holds `key` rather than from the head, and extending the finger with the nodes it passes.
+     */
+    private void descend(final int key, final Finger finger, final NodePair result) {
+        int depth = finger.depth;
+        if (relocationsStarted.get() != finger.relocations) {
+            depth = 1;
+        }
+        Node parent;
+        while (true) {
+            parent = finger.nodes[depth - 1];
+            if (depth == 1 || (key < finger.highs[depth - 1] && key != parent.key && !parent.isMarked())) {
+                break;
+            }
+            depth--;
+        }
+        long high = finger.highs[depth - 1];
+        if (depth == 1) {
+            finger.relocations = relocationsFinished.get();
+        }
+        finger.depth = depth;
+
+        Node curr;
+        boolean isRight;
+        if (parent == head) {
+            curr = head.right;
+            isRight = true;
+        } else {
+            isRight = parent.key < key;
+            curr = parent.getChild(isRight);
+            if (!isRight) {
+                high = parent.key;
+            }
+        }
+        while (curr != sentinel) {
+            final int currKey = curr.key;
+            if (currKey == key) {
+                break;
+            }
+            finger.push(curr, high);
+            parent = curr;
+            isRight = currKey < key;
+            if (isRight) {
+                curr = curr.right;
+            } else {
+                high = currKey;
+                curr = curr.left;
+            }
+        }
+        finger.high = high;
+        result.set(parent, curr, isRight);
+    }
+
+    /**
+     * Sorts the batch and descends for each key from where the previous key's descent left off (see {@link Finger}).
+     * The keys that fall into the same empty child slot are linked there as one balanced subtree, so a parent is
+     * locked once for all of them.
+     */
+    @Override
+    public final int insertAll(int[] keys, boolean[] out) {
+        final long[] order = sortedDistinct(keys, out);
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        final Finger finger = cursor.finger;
+        final NodePool.Local pooled = cursor.pooled;
+        if (pooled != null) {
+            pooled.enter();
+        }
+        try {
+            finger.reset(head);
+            int inserted = 0;
+            int i = 0;
+            while (i < order.length) {
+                final long relocations = relocationsFinished.get();
+                descend(keyAt(order, i), finger, pair);
+                int end = i + 1;
+                if (isSentinelNode(pair.current)) {
+                    while (end < order.length && keyAt(order, end) < finger.high) {
+                        end++;
+                    }
+                }
+                Node pred = pair.parent;
+                Node curr = pair.current;
+                int result;
+                if (lockStrategy != LockStrategy.MONITOR) {
+                    if (!lockPair(pair)) {
+                        result = RETRY;
+                    } else {
+                        try {
+                            result = insertRunLocked(pair, order, i, end, pooled, relocations);
+                        } finally {
+                            unlockPair(pred, curr);
+                        }
+                    }
+                } else {
+                    synchronized (pred) {
+                        if (!isLinked(pair)) {
+                            result = RETRY;
+                        } else if (isSentinelNode(curr)) {
+                            result = insertRunLocked(pair, order, i, end, pooled, relocations);
                         } else {
-                            removeWithNonLeafSuccessor(toRemove, pair);
+                            synchronized (curr) {
+                                result = insertRunLocked(pair, order, i, end, pooled, relocations);
+                            }
+                        }
+                    }
+                }
+                if (result == RETRY) {
+                    finger.reset(head);
+                    if (relocationsStarted.get() != relocations) {
+                        // a relocation overlapped the descent, insert the key the way a single insert would
+                        if (out[(int) order[i]] = insert(keyAt(order, i))) {
+                            inserted++;
                         }
-                        return;
+                        i++;
                     }
+                    continue;
                 }
+                for (int j = i; j < end; j++) {
+                    out[(int) order[j]] = result == DONE;
+                }
+                if (result == DONE) {
+                    inserted += end - i;
+                }
+                i = end;
+            }
+            return inserted;
+        } finally {
+            finger.clear();
+            if (pooled != null) {
+                pooled.exit();
             }
         }
     }
 
-    private void removeWithNonLeafSuccessor(NodePair toRemove, NodePair succ) {
-        while (true) {
-            NodePair pair = findSuccessor(succ.current);
-            Node pred = pair.parent;
-            Node curr = pair.current;
-            boolean isRight = pair.isRight;
-            synchronized (pred) {
-                if (!validate(pair)) {
-                    continue;
+    /**
+     * The body of {@link #insertAll} for the keys order[from, to), which all belong in the empty slot of the search
+     * result, called with the locks over both nodes of the search result held.
+     * An empty slot is only trusted if no relocation started since `relocations` was read, before the descent:
+     * without one, the ranges of the nodes in the tree can only have grown since the descent.
+     */
+    private int insertRunLocked(NodePair pair, long[] order, int from, int to, NodePool.Local pooled, long relocations) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        if (isRealNode(pair.current)) {
+            return FAILED;
+        }
+        if (relocationsStarted.get() != relocations) {
+            return RETRY;
+        }
+        pair.parent.setChild(buildRun(order, from, to, pooled), pair.isRight);
+        count.add(to - from);
+        return DONE;
+    }
+
+    /**
+     * {@link Subtrees#build} over the keys of order[from, to), taking the nodes from the pool if there is one.
+     */
+    private Node buildRun(long[] order, int from, int to, NodePool.Local pooled) {
+        return Subtrees.build(from, to, sentinel, (mid, left, right) -> {
+            if (pooled == null) {
+                return new Node(keyAt(order, mid), left, right);
+            }
+            Node node = pooled.allocate(keyAt(order, mid));
+            node.left = left;
+            node.right = right;
+            return node;
+        }, false);
+    }
+
+    /**
+     * Sorts the batch and descends for each key from where the previous key's descent left off (see {@link Finger}).
+     * A miss is trusted like in {@link #search} if no relocation overlapped the descent, and confirmed by the
+     * double search of {@link #findKey} from the head otherwise.
+     */
+    @Override
+    public final int removeAll(int[] keys, boolean[] out) {
+        final long[] order = sortedDistinct(keys, out);
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        final Finger finger = cursor.finger;
+        final NodePool.Local pooled = cursor.pooled;
+        if (pooled != null) {
+            pooled.enter();
+        }
+        try {
+            finger.reset(head);
+            int removed = 0;
+            int i = 0;
+            while (i < order.length) {
+                final int key = keyAt(order, i);
+                final long relocations = relocationsFinished.get();
+                descend(key, finger, pair);
+                if (isSentinelNode(pair.current) && relocationsStarted.get() != relocations) {
+                    findKey(key, pair);
                 }
-                synchronized (curr) {
-                    NodePair secondPair = findSuccessor(succ.current);
-                    if (secondPair.current != curr || secondPair.parent != pred || secondPair.isRight != isRight || isRealNode(curr.left)) {
-                        continue;
+                Node pred = pair.parent;
+                Node curr = pair.current;
+                int result;
+                if (lockStrategy != LockStrategy.MONITOR) {
+                    if (!lockPair(pair)) {
+                        result = RETRY;
+                    } else {
+                        try {
+                            result = removeLocked(pair, cursor);
+                        } finally {
+                            unlockPair(pred, curr);
+                        }
+                    }
+                } else {
+                    synchronized (pred) {
+                        if (!isLinked(pair)) {
+                            result = RETRY;
+                        } else if (isSentinelNode(curr)) {
+                            result = removeLocked(pair, cursor);
+                        } else {
+                            synchronized (curr) {
+                                result = removeLocked(pair, cursor);
+                            }
+                        }
                     }
-                    if (validate(pair)) {
-                        curr.left = succ.current;
-                        succ.parent.setChild(succ.current.right, succ.isRight);
-                        succ.current.right = sentinel;
-                        removeAndReplaceWithLeaf(toRemove, new NodePair(curr, succ.current, false));
-                        return;
+                }
+                if (result == RETRY) {
+                    finger.reset(head);
+                    continue;
+                }
+                out[(int) order[i]] = result == DONE;
+                if (result == DONE) {
+                    removed++;
+                    if (pooled != null) {
+                        pooled.retire(curr);
                     }
                 }
+                i++;
+            }
+            return removed;
+        } finally {
+            finger.clear();
+            if (pooled != null) {
+                pooled.exit();
             }
         }
     }
 
-    private void removeAndReplaceWithLeaf(NodePair toRemove, NodePair replacementLeaf) {
-        toRemove.current.marked = true;
-        if (toRemove.current.right != replacementLeaf.current) {
-            replacementLeaf.current.right = toRemove.current.right;
+    /**
+     * Sorts the batch and runs {@link #search} for each key from where the previous key's descent left off.
+     * A descent that starts at an unmarked node whose range holds the key, with no relocation in between,
+     * is as good as one from the head that passed the node at that moment, so misses are trusted the same way.
+     */
+    @Override
+    public final void containsAll(int[] keys, boolean[] out) {
+        final long[] order = sortedPositions(keys, out);
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        final Finger finger = cursor.finger;
+        final NodePool.Local pooled = cursor.pooled;
+        if (pooled != null) {
+            pooled.enter();
+        }
+        try {
+            finger.reset(head);
+            for (int i = 0; i < order.length; i++) {
+                final int key = keyAt(order, i);
+                if (i > 0 && keyAt(order, i - 1) == key) {
+                    out[(int) order[i]] = out[(int) order[i - 1]];
+                } else {
+                    out[(int) order[i]] = searchFrom(key, finger, pair);
+                }
+            }
+        } finally {
+            finger.clear();
+            if (pooled != null) {
+                pooled.exit();
+            }
+        }
+    }
+
+    private boolean searchFrom(final int key, final Finger finger, final NodePair pair) {
+        final long relocations = relocationsFinished.get();
+        if (relocationsStarted.get() == relocations) {
+            descend(key, finger, pair);
+            Node curr = pair.current;
+            if (isRealNode(curr)) {
+                return !curr.isMarked();
+            }
+            if (relocationsStarted.get() == relocations) {
+                return false;
+            }
+        }
+        return containsRetrying(key);
+    }
+
+    public final void bulkLoad(int[] sortedKeys) {
+        load(sortedKeys, false);
+    }
+
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        load(sortedKeys, true);
+    }
+
+    private void load(int[] sortedKeys, boolean parallel) {
+        Subtrees.checkAscending(sortedKeys);
+        publish(Subtrees.build(0, sortedKeys.length, null, (mid, left, right) -> new Node(sortedKeys[mid], left, right), parallel),
+                sortedKeys.length);
+    }
+
+    /**
+     * Builds the same balanced tree as {@link #bulkLoad(int[])} while reading the keys once, in order,
+     * without collecting them: each subtree takes its left half of the stream, its root, then its right half.
+     */
+    @Override
+    public final void bulkLoad(int size, PrimitiveIterator.OfInt sortedKeys) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must be >= 0, got " + size);
+        }
+        publish(new StreamedBuild(sortedKeys).build(size), size);
+    }
+
+    /**
+     * Link a prebuilt subtree as the root, holding the head lock like an insert into the empty tree would.
+     */
+    private void publish(Node root, int size) {
+        if (isSentinelNode(root)) {
+            return;
+        }
+        if (lockStrategy != LockStrategy.MONITOR) {
+            lock(head);
+            try {
+                publishLocked(root, size);
+            } finally {
+                unlock(head);
+            }
+        } else {
+            synchronized (head) {
+                publishLocked(root, size);
+            }
+        }
+    }
+
+    private void publishLocked(Node root, int size) {
+        if (isRealNode(head.right)) {
+            throw new IllegalStateException("bulk loading requires an empty tree");
+        }
+        head.right = root;
+        count.add(size);
+    }
+
+    private static final class StreamedBuild {
+        private final PrimitiveIterator.OfInt keys;
+        private boolean started;
+        private int last;
+
+        StreamedBuild(PrimitiveIterator.OfInt keys) {
+            this.keys = keys;
+        }
+
+        /**
+         * The balanced subtree of the next `size` keys, shaped like {@link Subtrees#build} over as many.
+         */
+        Node build(int size) {
+            if (size == 0) {
+                return null;
+            }
+            Node left = build(size >>> 1);
+            int key = keys.nextInt();
+            if (started && last >= key) {
+                throw new IllegalArgumentException("keys must be strictly ascending, got " + last + " before " + key);
+            }
+            started = true;
+            last = key;
+            return new Node(key, left, build(size - (size >>> 1) - 1));
+        }
+    }
+
+    public final int rangeCount(int lo, int hi) {
+        final NodePool.Local pooled = enterPool();
+        try {
+            return new RangeCursor(lo, hi).count();
+        } finally {
+            exitPool(pooled);
+        }
+    }
+
+    public final void rangeScan(int lo, int hi, IntConsumer consumer) {
+        final NodePool.Local pooled = enterPool();
+        try {
+            new RangeCursor(lo, hi).forEachRemaining(consumer);
+        } finally {
+            exitPool(pooled);
+        }
+    }
+
+    /**
+     * With a pool, the iterator holds a reservation of its own until it is exhausted or garbage collected,
+     * since the nodes on its stack must not be reused between calls.
+     */
+    public final PrimitiveIterator.OfInt iterator() {
+        if (pool == null) {
+            return new RangeCursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+        PinnedCursor cursor = new PinnedCursor();
+        cursor.release = CLEANER.register(cursor, new Epochs.Unpin(pool.epochs, pool.epochs.pin()));
+        return cursor;
+    }
+
+    /**
+     * Enter an epoch of the pool for a walk made by the calling thread, if there is a pool.
+     */
+    private NodePool.Local enterPool() {
+        if (pool == null) {
+            return null;
+        }
+        final NodePool.Local pooled = cursors.get().pooled;
+        pooled.enter();
+        return pooled;
+    }
+
+    private static void exitPool(NodePool.Local pooled) {
+        if (pooled != null) {
+            pooled.exit();
+        }
+    }
+
+    final class PinnedCursor extends RangeCursor {
+        Cleaner.Cleanable release;
+
+        PinnedCursor() {
+            super(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        @Override
+        boolean advance() {
+            if (super.advance()) {
+                return true;
+            }
+            release.clean();
+            return false;
+        }
+    }
+
+    class RangeCursor extends RelocatingCursor {
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+        private Node current;
+
+        RangeCursor(int lo, int hi) {
+            super(lo, hi);
+        }
+
+        long relocationsStarted() {
+            return relocationsStarted.get();
+        }
+
+        long relocationsFinished() {
+            return relocationsFinished.get();
+        }
+
+        void pushRoot() {
+            stack.clear();
+            pushPath(head.right);
+        }
+
+        boolean pop() {
+            current = stack.poll();
+            return current != null;
+        }
+
+        void pushRight() {
+            pushPath(current.right);
+        }
+
+        /**
+         * Like {@link BST#containsRetrying}.
+         */
+        boolean ceiling() {
+            Node previous = lowestFrom();
+            while (true) {
+                Node node = lowestFrom();
+                if (node == previous && (node == null || !node.isMarked())) {
+                    current = node;
+                    return node != null;
+                }
+                previous = node;
+            }
+        }
+
+        long currentKey() {
+            return current.key;
+        }
+
+        boolean currentMarked() {
+            return current.isMarked();
+        }
+
+        private Node lowestFrom() {
+            Node lowest = null;
+            Node node = head.right;
+            while (isRealNode(node)) {
+                if (node.key >= from) {
+                    lowest = node;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+            return lowest;
+        }
+
+        private void pushPath(Node node) {
+            while (isRealNode(node)) {
+                if (node.key >= from) {
+                    stack.push(node);
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
         }
-        replacementLeaf.current.left = toRemove.current.left;
-        toRemove.parent.setChild(replacementLeaf.current, toRemove.isRight);
-        replacementLeaf.parent.setChild(sentinel, replacementLeaf.isRight);
     }
 
     public Node getRoot() {
         return head.right;
     }
 
+    public TreeSnapshot snapshot() {
+        throw new UnsupportedOperationException(getName() + " has unversioned nodes, see VersionedBST");
+    }
+
     public String getName() {
         return " | ";
     }
 
     public final int size() {
-        return getSize(head.right);
+        final NodePool.Local pooled = enterPool();
+        try {
+            return (int) sum(head.right, false);
+        } finally {
+            exitPool(pooled);
+        }
     }
 
-    private int getSize(Node current) {
-        if (isSentinelNode(current)) {
-            return 0;
-        }
-        return 1 + getSize(current.left) + getSize(current.right);
+    public final int approximateSize() {
+        return count.intValue();
     }
 
     public final long getKeysum() {
-        return sumKeys(head.right);
+        final NodePool.Local pooled = enterPool();
+        try {
+            return sum(head.right, true);
+        } finally {
+            exitPool(pooled);
+        }
     }
 
-    private long sumKeys(Node current) {
-        if (isSentinelNode(current)) {
-            return 0;
+    private static final Subtrees.Shape<Node> SHAPE = new Subtrees.Shape<>() {
+        public Node left(Node node) {
+            return isRealNode(node.left) ? node.left : null;
+        }
+
+        public Node right(Node node) {
+            return isRealNode(node.right) ? node.right : null;
         }
-        return (long) current.key + sumKeys(current.left) + sumKeys(current.right);
+
+        public long weight(Node node, boolean sumKeys) {
+            return sumKeys ? node.key : 1;
+        }
+    };
+
+    private static long sum(Node root, boolean sumKeys) {
+        return Subtrees.sum(isRealNode(root) ? root : null, SHAPE, sumKeys);
     }
 }
@@ -0,0 +1,1107 @@
+package algorithms;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A concurrent sorted map from int keys to values on the hand-over-hand locking algorithm of {@link BST}
+ * (with monitor locks), usable where a {@link java.util.concurrent.ConcurrentSkipListMap} of Integer keys is.
+ * <p>
+ * Every update runs under the locks of the node and its parent, so put, remove and the compute family are atomic;
+ * the remapping functions are called with those locks held and must be short and must not update this map.
+ * get is the optimistic single traversal of {@link BST#contains}. The navigation methods return entries that were
+ * in the map at some point during the call, and the views and their iterators are weakly consistent:
+ * an iterator steps with a fresh {@link #higherEntry} search, so it never returns a key twice or out of order.
+ * Null keys and values are not permitted.
+ */
+public class BSTMap<V> extends AbstractMap<Integer, V> implements ConcurrentNavigableMap<Integer, V> {
+
+    static final class Node<V> {
+        final int key;
+        volatile V value;
+        volatile Node<V> left;
+        volatile Node<V> right;
+        volatile boolean marked; // marked for deletion
+
+        Node(int key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        void setChild(Node<V> child, boolean isRight) {
+            if (isRight) {
+                this.right = child;
+            } else {
+                this.left = child;
+            }
+        }
+
+        Node<V> getChild(boolean isRight) {
+            return isRight ? right : left;
+        }
+    }
+
+    /**
+     * See {@link BST.NodePair}.
+     */
+    static final class NodePair<V> {
+        Node<V> parent;
+        Node<V> current;
+        boolean isRight;
+
+        void set(Node<V> parent, Node<V> current, boolean isRight) {
+            this.parent = parent;
+            this.current = current;
+            this.isRight = isRight;
+        }
+    }
+
+    /**
+     * See {@link BST.Cursor}. `value` carries the value mapped after an update out of its locked section.
+     */
+    static final class Cursor<V> {
+        final NodePair<V> search = new NodePair<>();
+        final NodePair<V> successor = new NodePair<>();
+        final NodePair<V> nextSuccessor = new NodePair<>();
+        final NodePair<V> check = new NodePair<>();
+        final NodePair<V> replacement = new NodePair<>();
+        V value;
+    }
+
+    // relations for findNear, as in ConcurrentSkipListMap
+    static final int EQ = 1;
+    static final int LT = 2;
+    static final int GT = 0;
+    // traversals of findNear that wait for overlapping relocations before it falls back to a double traversal
+    private static final int OPTIMISTIC_ATTEMPTS = 16;
+
+    private static final Object RETRY = new Object();
+    private static final int RELOCATION_RETRY = 0;
+    private static final int RELOCATION_DONE = 1;
+
+    private final Node<V> head = new Node<>(Integer.MIN_VALUE, null);
+    private final ThreadLocal<Cursor<V>> cursors = ThreadLocal.withInitial(Cursor::new);
+    /**
+     * See {@link BST}: successor relocations are the only updates that can hide a key from a traversal.
+     */
+    private final AtomicLong relocationsStarted = new AtomicLong();
+    private final AtomicLong relocationsFinished = new AtomicLong();
+    private final LongAdder count = new LongAdder();
+
+    private static int keyOf(Object key) {
+        return (Integer) Objects.requireNonNull(key);
+    }
+
+    private boolean validate(NodePair<V> result) {
+        Node<V> pred = result.parent;
+        Node<V> curr = result.current;
+        return !pred.marked && (curr == null || !curr.marked) && pred.getChild(result.isRight) == curr;
+    }
+
+    /**
+     * See {@link BST}: whether the parent of the result is unmarked and still links to the current node, checked under
+     * the parent's lock before the current node is locked, so that locks are only taken top-down along real links.
+     */
+    private boolean isLinked(NodePair<V> result) {
+        Node<V> pred = result.parent;
+        return !pred.marked && pred.getChild(result.isRight) == result.current;
+    }
+
+    private void findKey(final int key, final NodePair<V> result) {
+        Node<V> previousParent = null;
+
+        while (true) {
+            findKeyOnce(key, result);
+            if (result.parent == previousParent || result.current != null) {
+                return;
+            }
+
+            previousParent = result.parent;
+        }
+    }
+
+    private void findKeyOnce(final int key, final NodePair<V> result) {
+        Node<V> parent = head;
+        Node<V> curr = head.right;
+        boolean isRight = true;
+        while (curr != null && curr.key != key) {
+            parent = curr;
+            isRight = curr.key < key;
+            curr = curr.getChild(isRight);
+        }
+        result.set(parent, curr, isRight);
+    }
+
+    /**
+     * {@link BST#contains} returning the value; the value is read before the mark, so it was mapped while unmarked.
+     */
+    private V getValue(final int key) {
+        final long relocations = relocationsFinished.get();
+        if (relocationsStarted.get() == relocations) {
+            Node<V> curr = head.right;
+            while (curr != null && curr.key != key) {
+                curr = curr.key < key ? curr.right : curr.left;
+            }
+            if (curr != null) {
+                V value = curr.value;
+                return curr.marked ? null : value;
+            }
+            if (relocationsStarted.get() == relocations) {
+                return null;
+            }
+        }
+        final NodePair<V> pair = new NodePair<>();
+        findKey(key, pair);
+        Node<V> curr = pair.current;
+        if (curr == null) {
+            return null;
+        }
+        V value = curr.value;
+        return curr.marked ? null : value;
+    }
+
+    /**
+     * Atomically replace the value mapped to `key` (null if absent) with remapping(key, value):
+     * null removes the mapping, the same reference leaves the map untouched.
+     *
+     * @return the new value if `returnNew`, otherwise the previous one
+     */
+    private V update(final int key, final BiFunction<? super Integer, ? super V, ? extends V> remapping, final boolean returnNew) {
+        final Cursor<V> cursor = cursors.get();
+        final NodePair<V> pair = cursor.search;
+        while (true) {
+            findKey(key, pair);
+            Node<V> pred = pair.parent;
+            Node<V> curr = pair.current;
+            Object result;
+            try {
+                synchronized (pred) {
+                    if (!isLinked(pair)) {
+                        result = RETRY;
+                    } else if (curr == null) {
+                        result = updateLocked(pair, key, remapping, cursor);
+                    } else {
+                        synchronized (curr) {
+                            result = updateLocked(pair, key, remapping, cursor);
+                        }
+                    }
+                }
+                if (result != RETRY) {
+                    @SuppressWarnings("unchecked")
+                    V previous = (V) result;
+                    return returnNew ? cursor.value : previous;
+                }
+            } finally {
+                cursor.value = null;
+            }
+        }
+    }
+
+    /**
+     * The body of {@link #update}, called with the locks over both nodes of the search result held.
+     */
+    private Object updateLocked(NodePair<V> pair, final int key, BiFunction<? super Integer, ? super V, ? extends V> remapping, Cursor<V> cursor) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        Node<V> curr = pair.current;
+        V oldValue = curr == null ? null : curr.value;
+        V newValue = remapping.apply(key, oldValue);
+        cursor.value = newValue;
+        if (newValue == oldValue) {
+            return oldValue;
+        }
+        if (curr == null) {
+            pair.parent.setChild(new Node<>(key, newValue), pair.isRight);
+            count.increment();
+        } else if (newValue != null) {
+            curr.value = newValue;
+        } else {
+            if (curr.left != null && curr.right != null) {
+                removeBinaryNode(pair, cursor);
+            } else {
+                curr.marked = true;
+                pair.parent.setChild(curr.left != null ? curr.left : curr.right, pair.isRight);
+            }
+            count.decrement();
+        }
+        return oldValue;
+    }
+
+    private void findSuccessor(Node<V> base, NodePair<V> result) {
+        Node<V> parent = base;
+        Node<V> curr = base.right;
+        boolean isRight = true;
+        Node<V> next = curr.left;
+        while (next != null) {
+            parent = curr;
+            curr = next;
+            next = curr.left;
+            isRight = false;
+        }
+        result.set(parent, curr, isRight);
+    }
+
+    /**
+     * See {@link BST}: lock the successor found in `pair` and its parent, re-check and move it up.
+     */
+    private int relocateSuccessor(NodePair<V> toRemove, NodePair<V> pair, Node<V> base, Cursor<V> cursor) {
+        synchronized (pair.parent) {
+            if (!isLinked(pair)) {
+                return RELOCATION_RETRY;
+            }
+            synchronized (pair.current) {
+                return relocateSuccessorLocked(toRemove, pair, base, cursor);
+            }
+        }
+    }
+
+    private int relocateSuccessorLocked(NodePair<V> toRemove, NodePair<V> pair, Node<V> base, Cursor<V> cursor) {
+        Node<V> pred = pair.parent;
+        Node<V> curr = pair.current;
+        NodePair<V> secondPair = cursor.check;
+        if (!validate(pair)) {
+            return RELOCATION_RETRY;
+        }
+        findSuccessor(base, secondPair);
+        if (secondPair.current != curr || secondPair.parent != pred || secondPair.isRight != pair.isRight || curr.left != null) {
+            return RELOCATION_RETRY;
+        }
+
+        if (base == toRemove.current) {
+            if (curr.right == null) {
+                relocationsStarted.incrementAndGet();
+                removeAndReplaceWithLeaf(toRemove, pair);
+                relocationsFinished.incrementAndGet();
+            } else {
+                removeWithNonLeafSuccessor(toRemove, pair, cursor);
+            }
+        } else {
+            NodePair<V> succ = cursor.successor;
+            relocationsStarted.incrementAndGet();
+            curr.left = succ.current;
+            succ.parent.setChild(succ.current.right, succ.isRight);
+            succ.current.right = null;
+            cursor.replacement.set(curr, succ.current, false);
+            removeAndReplaceWithLeaf(toRemove, cursor.replacement);
+            relocationsFinished.incrementAndGet();
+        }
+        return RELOCATION_DONE;
+    }
+
+    private void removeBinaryNode(NodePair<V> toRemove, Cursor<V> cursor) {
+        final NodePair<V> pair = cursor.successor;
+        do {
+            findSuccessor(toRemove.current, pair);
+        } while (relocateSuccessor(toRemove, pair, toRemove.current, cursor) == RELOCATION_RETRY);
+    }
+
+    private void removeWithNonLeafSuccessor(NodePair<V> toRemove, NodePair<V> succ, Cursor<V> cursor) {
+        final NodePair<V> pair = cursor.nextSuccessor;
+        do {
+            findSuccessor(succ.current, pair);
+        } while (relocateSuccessor(toRemove, pair, succ.current, cursor) == RELOCATION_RETRY);
+    }
+
+    private void removeAndReplaceWithLeaf(NodePair<V> toRemove, NodePair<V> replacementLeaf) {
+        toRemove.current.marked = true;
+        if (toRemove.current.right != replacementLeaf.current) {
+            replacementLeaf.current.right = toRemove.current.right;
+        }
+        replacementLeaf.current.left = toRemove.current.left;
+        toRemove.parent.setChild(replacementLeaf.current, toRemove.isRight);
+        replacementLeaf.parent.setChild(null, replacementLeaf.isRight);
+    }
+
+    /**
+     * The entry whose key is nearest to `key` in the direction `rel` (GT, GT|EQ, LT or LT|EQ), or null.
+     * The nearest key lies on the search path for `key`; the traversal is repeated while a successor relocation
+     * overlaps it or while the node it found is being removed, both of which last for one locked section.
+     * After OPTIMISTIC_ATTEMPTS such retries it falls back to {@link #findNearRetrying}, so constant churn cannot
+     * starve it.
+     */
+    final Map.Entry<Integer, V> findNear(final int key, final int rel) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            final long relocations = relocationsFinished.get();
+            if (relocationsStarted.get() == relocations) {
+                Node<V> best = nearest(key, rel);
+                V value = best == null ? null : best.value;
+                if ((best == null || !best.marked) && relocationsStarted.get() == relocations) {
+                    return best == null ? null : new SimpleImmutableEntry<>(best.key, value);
+                }
+            }
+            Thread.yield();
+        }
+        return findNearRetrying(key, rel);
+    }
+
+    /**
+     * The same traversal as {@link #findNear} without waiting for relocations: like {@link #findKey}, it is repeated
+     * until two traversals in a row end at the same unmarked node, or at none.
+     */
+    private Map.Entry<Integer, V> findNearRetrying(final int key, final int rel) {
+        Node<V> previous = nearest(key, rel);
+        while (true) {
+            Node<V> best = nearest(key, rel);
+            V value = best == null ? null : best.value;
+            if (best == previous && (best == null || !best.marked)) {
+                return best == null ? null : new SimpleImmutableEntry<>(best.key, value);
+            }
+            previous = best;
+        }
+    }
+
+    /**
+     * The node nearest to `key` in the direction `rel` on the search path for `key`, marked or not.
+     */
+    private Node<V> nearest(final int key, final int rel) {
+        Node<V> best = null;
+        Node<V> curr = head.right;
+        while (curr != null) {
+            if (curr.key == key && (rel & EQ) != 0) {
+                return curr;
+            }
+            if ((rel & LT) != 0) {
+                if (curr.key < key) {
+                    best = curr;
+                    curr = curr.right;
+                } else {
+                    curr = curr.left;
+                }
+            } else {
+                if (curr.key > key) {
+                    best = curr;
+                    curr = curr.left;
+                } else {
+                    curr = curr.right;
+                }
+            }
+        }
+        return best;
+    }
+
+    final Map.Entry<Integer, V> findFirst() {
+        return findNear(Integer.MIN_VALUE, GT | EQ);
+    }
+
+    final Map.Entry<Integer, V> findLast() {
+        return findNear(Integer.MAX_VALUE, LT | EQ);
+    }
+
+    static Integer keyOrNull(Map.Entry<Integer, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    static Integer keyOrThrow(Map.Entry<Integer, ?> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+
+    // point operations
+
+    public V get(Object key) {
+        return getValue(keyOf(key));
+    }
+
+    public boolean containsKey(Object key) {
+        return getValue(keyOf(key)) != null;
+    }
+
+    public V put(Integer key, V value) {
+        Objects.requireNonNull(value);
+        return update(key, (k, old) -> value, false);
+    }
+
+    public V putIfAbsent(Integer key, V value) {
+        Objects.requireNonNull(value);
+        return update(key, (k, old) -> old != null ? old : value, false);
+    }
+
+    public V remove(Object key) {
+        return update(keyOf(key), (k, old) -> null, false);
+    }
+
+    public boolean remove(Object key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        V old = update(keyOf(key), (k, v) -> value.equals(v) ? null : v, false);
+        return value.equals(old);
+    }
+
+    public boolean replace(Integer key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        V old = update(key, (k, v) -> oldValue.equals(v) ? newValue : v, false);
+        return oldValue.equals(old);
+    }
+
+    public V replace(Integer key, V value) {
+        Objects.requireNonNull(value);
+        return update(key, (k, old) -> old != null ? value : null, false);
+    }
+
+    public V compute(Integer key, BiFunction<? super Integer, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return update(key, remappingFunction, true);
+    }
+
+    public V computeIfAbsent(Integer key, Function<? super Integer, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        V value = getValue(key);
+        if (value != null) {
+            return value;
+        }
+        return update(key, (k, old) -> old != null ? old : mappingFunction.apply(k), true);
+    }
+
+    public V computeIfPresent(Integer key, BiFunction<? super Integer, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return update(key, (k, old) -> old == null ? null : remappingFunction.apply(k, old), true);
+    }
+
+    public V merge(Integer key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        return update(key, (k, old) -> old == null ? value : remappingFunction.apply(old, value), true);
+    }
+
+    /**
+     * Exact when no update is in flight, like {@link BST#approximateSize()}.
+     */
+    public int size() {
+        return count.intValue();
+    }
+
+    public boolean isEmpty() {
+        return head.right == null;
+    }
+
+    /**
+     * Removes the entries one at a time; entries added concurrently may survive.
+     */
+    public void clear() {
+        while (pollFirstEntry() != null) ;
+    }
+
+    // navigation
+
+    public Comparator<? super Integer> comparator() {
+        return null;
+    }
+
+    public Map.Entry<Integer, V> lowerEntry(Integer key) {
+        return findNear(key, LT);
+    }
+
+    public Integer lowerKey(Integer key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    public Map.Entry<Integer, V> floorEntry(Integer key) {
+        return findNear(key, LT | EQ);
+    }
+
+    public Integer floorKey(Integer key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    public Map.Entry<Integer, V> ceilingEntry(Integer key) {
+        return findNear(key, GT | EQ);
+    }
+
+    public Integer ceilingKey(Integer key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    public Map.Entry<Integer, V> higherEntry(Integer key) {
+        return findNear(key, GT);
+    }
+
+    public Integer higherKey(Integer key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    public Map.Entry<Integer, V> firstEntry() {
+        return findFirst();
+    }
+
+    public Map.Entry<Integer, V> lastEntry() {
+        return findLast();
+    }
+
+    public Integer firstKey() {
+        return keyOrThrow(findFirst());
+    }
+
+    public Integer lastKey() {
+        return keyOrThrow(findLast());
+    }
+
+    public Map.Entry<Integer, V> pollFirstEntry() {
+        return pollEntry(this);
+    }
+
+    public Map.Entry<Integer, V> pollLastEntry() {
+        return pollEntry(descendingMap());
+    }
+
+    /**
+     * Remove the first entry of `map`, retrying when it changed between finding and removing it.
+     */
+    static <V> Map.Entry<Integer, V> pollEntry(ConcurrentNavigableMap<Integer, V> map) {
+        while (true) {
+            Map.Entry<Integer, V> entry = map.firstEntry();
+            if (entry == null || map.remove(entry.getKey(), entry.getValue())) {
+                return entry;
+            }
+        }
+    }
+
+    // views
+
+    public ConcurrentNavigableMap<Integer, V> subMap(Integer fromKey, boolean fromInclusive, Integer toKey, boolean toInclusive) {
+        return new SubMap<>(this, Objects.requireNonNull(fromKey), fromInclusive, Objects.requireNonNull(toKey), toInclusive, false);
+    }
+
+    public ConcurrentNavigableMap<Integer, V> headMap(Integer toKey, boolean inclusive) {
+        return new SubMap<>(this, null, false, Objects.requireNonNull(toKey), inclusive, false);
+    }
+
+    public ConcurrentNavigableMap<Integer, V> tailMap(Integer fromKey, boolean inclusive) {
+        return new SubMap<>(this, Objects.requireNonNull(fromKey), inclusive, null, false, false);
+    }
+
+    public ConcurrentNavigableMap<Integer, V> subMap(Integer fromKey, Integer toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    public ConcurrentNavigableMap<Integer, V> headMap(Integer toKey) {
+        return headMap(toKey, false);
+    }
+
+    public ConcurrentNavigableMap<Integer, V> tailMap(Integer fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    public ConcurrentNavigableMap<Integer, V> descendingMap() {
+        return new SubMap<>(this, null, false, null, false, true);
+    }
+
+    public NavigableSet<Integer> keySet() {
+        return navigableKeySet();
+    }
+
+    public NavigableSet<Integer> navigableKeySet() {
+        return new KeySet<>(this);
+    }
+
+    public NavigableSet<Integer> descendingKeySet() {
+        return new KeySet<>(descendingMap());
+    }
+
+    public Set<Map.Entry<Integer, V>> entrySet() {
+        return new EntrySet<>(this);
+    }
+
+    public Collection<V> values() {
+        return new Values<>(this);
+    }
+
+    /**
+     * A range of a {@link BSTMap}, in ascending or descending order; null bounds are open.
+     * All operations map onto the backing map's point operations and {@link #findNear}, clipped to the range.
+     */
+    static final class SubMap<V> extends AbstractMap<Integer, V> implements ConcurrentNavigableMap<Integer, V> {
+        private final BSTMap<V> m;
+        private final Integer lo;
+        private final Integer hi;
+        private final boolean loInclusive;
+        private final boolean hiInclusive;
+        private final boolean isDescending;
+
+        SubMap(BSTMap<V> m, Integer lo, boolean loInclusive, Integer hi, boolean hiInclusive, boolean isDescending) {
+            if (lo != null && hi != null && lo > hi) {
+                throw new IllegalArgumentException("inconsistent range: " + lo + " > " + hi);
+            }
+            this.m = m;
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.isDescending = isDescending;
+        }
+
+        private boolean tooLow(int key) {
+            return lo != null && (key < lo || (key == lo && !loInclusive));
+        }
+
+        private boolean tooHigh(int key) {
+            return hi != null && (key > hi || (key == hi && !hiInclusive));
+        }
+
+        private boolean inBounds(int key) {
+            return !tooLow(key) && !tooHigh(key);
+        }
+
+        private int checkKey(Object key) {
+            int k = keyOf(key);
+            if (!inBounds(k)) {
+                throw new IllegalArgumentException("key out of range: " + k);
+            }
+            return k;
+        }
+
+        private Map.Entry<Integer, V> lowestEntry() {
+            Map.Entry<Integer, V> entry = lo == null ? m.findFirst() : m.findNear(lo, loInclusive ? GT | EQ : GT);
+            return entry == null || tooHigh(entry.getKey()) ? null : entry;
+        }
+
+        private Map.Entry<Integer, V> highestEntry() {
+            Map.Entry<Integer, V> entry = hi == null ? m.findLast() : m.findNear(hi, hiInclusive ? LT | EQ : LT);
+            return entry == null || tooLow(entry.getKey()) ? null : entry;
+        }
+
+        /**
+         * {@link BSTMap#findNear} in this view's order, clipped to the range.
+         */
+        private Map.Entry<Integer, V> getNearEntry(int key, int rel) {
+            if (isDescending) {
+                rel ^= LT;
+            }
+            if (tooLow(key)) {
+                return (rel & LT) != 0 ? null : lowestEntry();
+            }
+            if (tooHigh(key)) {
+                return (rel & LT) != 0 ? highestEntry() : null;
+            }
+            Map.Entry<Integer, V> entry = m.findNear(key, rel);
+            return entry == null || !inBounds(entry.getKey()) ? null : entry;
+        }
+
+        private SubMap<V> newSubMap(Integer fromKey, boolean fromInclusive, Integer toKey, boolean toInclusive) {
+            if (isDescending) {
+                Integer key = fromKey;
+                fromKey = toKey;
+                toKey = key;
+                boolean inclusive = fromInclusive;
+                fromInclusive = toInclusive;
+                toInclusive = inclusive;
+            }
+            if (lo != null) {
+                if (fromKey == null) {
+                    fromKey = lo;
+                    fromInclusive = loInclusive;
+                } else if (fromKey < lo || (fromKey.equals(lo) && !loInclusive && fromInclusive)) {
+                    throw new IllegalArgumentException("key out of range: " + fromKey);
+                }
+            }
+            if (hi != null) {
+                if (toKey == null) {
+                    toKey = hi;
+                    toInclusive = hiInclusive;
+                } else if (toKey > hi || (toKey.equals(hi) && !hiInclusive && toInclusive)) {
+                    throw new IllegalArgumentException("key out of range: " + toKey);
+                }
+            }
+            return new SubMap<>(m, fromKey, fromInclusive, toKey, toInclusive, isDescending);
+        }
+
+        public V get(Object key) {
+            int k = keyOf(key);
+            return inBounds(k) ? m.get(k) : null;
+        }
+
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        public V put(Integer key, V value) {
+            return m.put(checkKey(key), value);
+        }
+
+        public V putIfAbsent(Integer key, V value) {
+            return m.putIfAbsent(checkKey(key), value);
+        }
+
+        public V remove(Object key) {
+            int k = keyOf(key);
+            return inBounds(k) ? m.remove(k) : null;
+        }
+
+        public boolean remove(Object key, Object value) {
+            int k = keyOf(key);
+            return inBounds(k) && m.remove(k, value);
+        }
+
+        public boolean replace(Integer key, V oldValue, V newValue) {
+            return m.replace(checkKey(key), oldValue, newValue);
+        }
+
+        public V replace(Integer key, V value) {
+            return m.replace(checkKey(key), value);
+        }
+
+        public V compute(Integer key, BiFunction<? super Integer, ? super V, ? extends V> remappingFunction) {
+            return m.compute(checkKey(key), remappingFunction);
+        }
+
+        public V computeIfAbsent(Integer key, Function<? super Integer, ? extends V> mappingFunction) {
+            return m.computeIfAbsent(checkKey(key), mappingFunction);
+        }
+
+        public V computeIfPresent(Integer key, BiFunction<? super Integer, ? super V, ? extends V> remappingFunction) {
+            return m.computeIfPresent(checkKey(key), remappingFunction);
+        }
+
+        public V merge(Integer key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+            return m.merge(checkKey(key), value, remappingFunction);
+        }
+
+        /**
+         * Counts the entries of the range, in O(n log n).
+         */
+        public int size() {
+            int size = 0;
+            for (Map.Entry<Integer, V> entry = firstEntry(); entry != null; entry = higherEntry(entry.getKey())) {
+                size++;
+            }
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return lowestEntry() == null;
+        }
+
+        public void clear() {
+            while (pollFirstEntry() != null) ;
+        }
+
+        public Comparator<? super Integer> comparator() {
+            return isDescending ? Collections.reverseOrder() : null;
+        }
+
+        public Map.Entry<Integer, V> lowerEntry(Integer key) {
+            return getNearEntry(key, LT);
+        }
+
+        public Integer lowerKey(Integer key) {
+            return keyOrNull(lowerEntry(key));
+        }
+
+        public Map.Entry<Integer, V> floorEntry(Integer key) {
+            return getNearEntry(key, LT | EQ);
+        }
+
+        public Integer floorKey(Integer key) {
+            return keyOrNull(floorEntry(key));
+        }
+
+        public Map.Entry<Integer, V> ceilingEntry(Integer key) {
+            return getNearEntry(key, GT | EQ);
+        }
+
+        public Integer ceilingKey(Integer key) {
+            return keyOrNull(ceilingEntry(key));
+        }
+
+        public Map.Entry<Integer, V> higherEntry(Integer key) {
+            return getNearEntry(key, GT);
+        }
+
+        public Integer higherKey(Integer key) {
+            return keyOrNull(higherEntry(key));
+        }
+
+        public Map.Entry<Integer, V> firstEntry() {
+            return isDescending ? highestEntry() : lowestEntry();
+        }
+
+        public Map.Entry<Integer, V> lastEntry() {
+            return isDescending ? lowestEntry() : highestEntry();
+        }
+
+        public Integer firstKey() {
+            return keyOrThrow(firstEntry());
+        }
+
+        public Integer lastKey() {
+            return keyOrThrow(lastEntry());
+        }
+
+        public Map.Entry<Integer, V> pollFirstEntry() {
+            return pollEntry(this);
+        }
+
+        public Map.Entry<Integer, V> pollLastEntry() {
+            return pollEntry(descendingMap());
+        }
+
+        public ConcurrentNavigableMap<Integer, V> subMap(Integer fromKey, boolean fromInclusive, Integer toKey, boolean toInclusive) {
+            return newSubMap(Objects.requireNonNull(fromKey), fromInclusive, Objects.requireNonNull(toKey), toInclusive);
+        }
+
+        public ConcurrentNavigableMap<Integer, V> headMap(Integer toKey, boolean inclusive) {
+            return newSubMap(null, false, Objects.requireNonNull(toKey), inclusive);
+        }
+
+        public ConcurrentNavigableMap<Integer, V> tailMap(Integer fromKey, boolean inclusive) {
+            return newSubMap(Objects.requireNonNull(fromKey), inclusive, null, false);
+        }
+
+        public ConcurrentNavigableMap<Integer, V> subMap(Integer fromKey, Integer toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        public ConcurrentNavigableMap<Integer, V> headMap(Integer toKey) {
+            return headMap(toKey, false);
+        }
+
+        public ConcurrentNavigableMap<Integer, V> tailMap(Integer fromKey) {
+            return tailMap(fromKey, true);
+        }
+
+        public ConcurrentNavigableMap<Integer, V> descendingMap() {
+            return new SubMap<>(m, lo, loInclusive, hi, hiInclusive, !isDescending);
+        }
+
+        public NavigableSet<Integer> keySet() {
+            return navigableKeySet();
+        }
+
+        public NavigableSet<Integer> navigableKeySet() {
+            return new KeySet<>(this);
+        }
+
+        public NavigableSet<Integer> descendingKeySet() {
+            return new KeySet<>(descendingMap());
+        }
+
+        public Set<Map.Entry<Integer, V>> entrySet() {
+            return new EntrySet<>(this);
+        }
+
+        public Collection<V> values() {
+            return new Values<>(this);
+        }
+    }
+
+    /**
+     * Steps through a map in its own order with {@link ConcurrentNavigableMap#higherEntry}.
+     */
+    static final class ViewIterator<V, T> implements Iterator<T> {
+        private final ConcurrentNavigableMap<Integer, V> m;
+        private final Function<Map.Entry<Integer, V>, T> extract;
+        private Map.Entry<Integer, V> next;
+        private Map.Entry<Integer, V> lastReturned;
+
+        ViewIterator(ConcurrentNavigableMap<Integer, V> m, Function<Map.Entry<Integer, V>, T> extract) {
+            this.m = m;
+            this.extract = extract;
+            this.next = m.firstEntry();
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public T next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = next;
+            next = m.higherEntry(next.getKey());
+            return extract.apply(lastReturned);
+        }
+
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            m.remove(lastReturned.getKey());
+            lastReturned = null;
+        }
+    }
+
+    static final class EntrySet<V> extends AbstractSet<Map.Entry<Integer, V>> {
+        private final ConcurrentNavigableMap<Integer, V> m;
+
+        EntrySet(ConcurrentNavigableMap<Integer, V> m) {
+            this.m = m;
+        }
+
+        public Iterator<Map.Entry<Integer, V>> iterator() {
+            return new ViewIterator<>(m, Function.identity());
+        }
+
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry<?, ?> entry) || !(entry.getKey() instanceof Integer key)) {
+                return false;
+            }
+            V value = m.get(key);
+            return value != null && value.equals(entry.getValue());
+        }
+
+        public boolean remove(Object o) {
+            return o instanceof Map.Entry<?, ?> entry && entry.getKey() instanceof Integer key && m.remove(key, entry.getValue());
+        }
+
+        public int size() {
+            return m.size();
+        }
+
+        public boolean isEmpty() {
+            return m.isEmpty();
+        }
+
+        public void clear() {
+            m.clear();
+        }
+    }
+
+    static final class Values<V> extends AbstractCollection<V> {
+        private final ConcurrentNavigableMap<Integer, V> m;
+
+        Values(ConcurrentNavigableMap<Integer, V> m) {
+            this.m = m;
+        }
+
+        public Iterator<V> iterator() {
+            return new ViewIterator<>(m, Map.Entry::getValue);
+        }
+
+        public int size() {
+            return m.size();
+        }
+
+        public boolean isEmpty() {
+            return m.isEmpty();
+        }
+
+        public boolean contains(Object o) {
+            return m.containsValue(o);
+        }
+
+        public void clear() {
+            m.clear();
+        }
+    }
+
+    static final class KeySet<V> extends AbstractSet<Integer> implements NavigableSet<Integer> {
+        private final ConcurrentNavigableMap<Integer, V> m;
+
+        KeySet(ConcurrentNavigableMap<Integer, V> m) {
+            this.m = m;
+        }
+
+        public Iterator<Integer> iterator() {
+            return new ViewIterator<>(m, Map.Entry::getKey);
+        }
+
+        public Iterator<Integer> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        public int size() {
+            return m.size();
+        }
+
+        public boolean isEmpty() {
+            return m.isEmpty();
+        }
+
+        public boolean contains(Object o) {
+            return m.containsKey(o);
+        }
+
+        public boolean remove(Object o) {
+            return m.remove(o) != null;
+        }
+
+        public void clear() {
+            m.clear();
+        }
+
+        public Comparator<? super Integer> comparator() {
+            return m.comparator();
+        }
+
+        public Integer lower(Integer key) {
+            return m.lowerKey(key);
+        }
+
+        public Integer floor(Integer key) {
+            return m.floorKey(key);
+        }
+
+        public Integer ceiling(Integer key) {
+            return m.ceilingKey(key);
+        }
+
+        public Integer higher(Integer key) {
+            return m.higherKey(key);
+        }
+
+        public Integer first() {
+            return m.firstKey();
+        }
+
+        public Integer last() {
+            return m.lastKey();
+        }
+
+        public Integer pollFirst() {
+            return keyOrNull(m.pollFirstEntry());
+        }
+
+        public Integer pollLast() {
+            return keyOrNull(m.pollLastEntry());
+        }
+
+        public NavigableSet<Integer> descendingSet() {
+            return new KeySet<>(m.descendingMap());
+        }
+
+        public NavigableSet<Integer> subSet(Integer fromElement, boolean fromInclusive, Integer toElement, boolean toInclusive) {
+            return new KeySet<>(m.subMap(fromElement, fromInclusive, toElement, toInclusive));
+        }
+
+        public NavigableSet<Integer> headSet(Integer toElement, boolean inclusive) {
+            return new KeySet<>(m.headMap(toElement, inclusive));
+        }
+
+        public NavigableSet<Integer> tailSet(Integer fromElement, boolean inclusive) {
+            return new KeySet<>(m.tailMap(fromElement, inclusive));
+        }
+
+        public SortedSet<Integer> subSet(Integer fromElement, Integer toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        public SortedSet<Integer> headSet(Integer toElement) {
+            return headSet(toElement, false);
+        }
+
+        public SortedSet<Integer> tailSet(Integer fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+}
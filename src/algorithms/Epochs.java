@@ -0,0 +1,109 @@
+package algorithms;
+
+import java.lang.ref.Cleaner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The global epoch of epoch-based reclamation (Fraser, "Practical lock-freedom", 2004),
+ * shared by the pools that recycle what their structure removes.
+ * <p>
+ * Everything that reads nodes announces the global epoch in a {@link Reservation} while it does, and withdraws the
+ * announcement when it is done. The epoch only moves from e to e + 1 once every announced reservation is in e,
+ * so once it has moved on twice after a node was retired, nothing that could still reach the node is running.
+ */
+final class Epochs {
+    static final long IDLE = -1;
+
+    /**
+     * An announced epoch, IDLE while its owner holds no nodes. Threads reuse theirs for every operation, until their
+     * per-thread state is collected; walks that outlive an operation, such as iterators, take their own with {@link #pin()}.
+     */
+    static final class Reservation {
+        volatile long epoch = IDLE;
+    }
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final AtomicLong epoch = new AtomicLong();
+    private final Set<Reservation> reservations = ConcurrentHashMap.newKeySet();
+
+    long current() {
+        return epoch.get();
+    }
+
+    Reservation register() {
+        Reservation reservation = new Reservation();
+        reservations.add(reservation);
+        return reservation;
+    }
+
+    /**
+     * A reservation withdrawn once `owner`, the per-thread state that holds it, is garbage collected, such as after
+     * its thread ended. Otherwise every thread that ever touched the structure would keep its state reachable and
+     * slow down {@link #tryAdvance}, which reads every reservation.
+     */
+    Reservation register(Object owner) {
+        Reservation reservation = register();
+        CLEANER.register(owner, new Unpin(this, reservation));
+        return reservation;
+    }
+
+    /**
+     * Announces the current epoch in `reservation`. The epoch may move on between reading it and the announcement
+     * becoming visible, and a stale announcement is not safe: the owner tags what it retires with the announced
+     * epoch, so a node it unlinks two epochs later could be reused at once, under readers that announced the
+     * current epoch. The epoch is read again after the announcement until it is unchanged, so the announced epoch
+     * was current while the announcement was visible.
+     */
+    void announce(Reservation reservation) {
+        long announced;
+        do {
+            announced = epoch.get();
+            reservation.epoch = announced;
+        } while (epoch.get() != announced);
+    }
+
+    /**
+     * A reservation of the current epoch, held until {@link #unpin}.
+     */
+    Reservation pin() {
+        Reservation reservation = register();
+        announce(reservation);
+        return reservation;
+    }
+
+    void unpin(Reservation reservation) {
+        reservations.remove(reservation);
+    }
+
+    /**
+     * Withdraws a pinned reservation, as the clean-up action of the walk holding it. Static so that it does not
+     * keep that walk reachable.
+     */
+    static final class Unpin implements Runnable {
+        private final Epochs epochs;
+        private final Reservation reservation;
+
+        Unpin(Epochs epochs, Reservation reservation) {
+            this.epochs = epochs;
+            this.reservation = reservation;
+        }
+
+        public void run() {
+            epochs.unpin(reservation);
+        }
+    }
+
+    void tryAdvance() {
+        final long current = epoch.get();
+        for (Reservation reservation : reservations) {
+            long announced = reservation.epoch;
+            if (announced != IDLE && announced != current) {
+                return;
+            }
+        }
+        epoch.compareAndSet(current, current + 1);
+    }
+}
@@ -0,0 +1,429 @@
+package algorithms;
+
+import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * A lock-free external (leaf-oriented) BST in the style of Ellen, Fatourou, Ruppert and van Breugel,
+ * "Non-blocking Binary Search Trees" (PODC 2010).
+ * Keys live in the leaves, internal nodes only route searches. Updates never block: an update first flags
+ * the internal node(s) it is going to change with a CAS on their `update` field, then swings a single child
+ * pointer with a CAS, and any thread that runs into a flagged node helps that update to finish.
+ * <p>
+ * The two largest int values are reserved for the dummy leaves that keep the tree non-empty.
+ */
+public class LockFreeBST implements BSTInterface {
+
+    private static final int INF1 = Integer.MAX_VALUE - 1;
+    private static final int INF2 = Integer.MAX_VALUE;
+
+    private static final int CLEAN = 0;
+    private static final int IFLAG = 1;
+    private static final int DFLAG = 2;
+    private static final int MARK = 3;
+
+    abstract static class Node {
+        final int key; // key is immutable
+
+        Node(int key) {
+            this.key = key;
+        }
+    }
+
+    static final class Leaf extends Node {
+        Leaf(int key) {
+            super(key);
+        }
+    }
+
+    static final class Internal extends Node {
+        volatile Node left;
+        volatile Node right;
+        volatile Update update;
+
+        Internal(int key, Node left, Node right) {
+            super(key);
+            this.left = left;
+            this.right = right;
+            this.update = new Update(CLEAN, null);
+        }
+    }
+
+    /**
+     * The state of an internal node together with the operation that put it into that state.
+     * Instances are immutable, so a CAS on {@link Internal#update} changes both at once.
+     */
+    static final class Update {
+        final int state;
+        final Info info;
+
+        Update(int state, Info info) {
+            this.state = state;
+            this.info = info;
+        }
+    }
+
+    abstract static class Info {
+    }
+
+    static final class InsertInfo extends Info {
+        final Internal parent;
+        final Leaf leaf;
+        final Internal newInternal;
+
+        InsertInfo(Internal parent, Leaf leaf, Internal newInternal) {
+            this.parent = parent;
+            this.leaf = leaf;
+            this.newInternal = newInternal;
+        }
+    }
+
+    static final class DeleteInfo extends Info {
+        final Internal grandParent;
+        final Internal parent;
+        final Leaf leaf;
+        final Update parentUpdate;
+
+        DeleteInfo(Internal grandParent, Internal parent, Leaf leaf, Update parentUpdate) {
+            this.grandParent = grandParent;
+            this.parent = parent;
+            this.leaf = leaf;
+            this.parentUpdate = parentUpdate;
+        }
+    }
+
+    private static final VarHandle LEFT;
+    private static final VarHandle RIGHT;
+    private static final VarHandle UPDATE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            LEFT = lookup.findVarHandle(Internal.class, "left", Node.class);
+            RIGHT = lookup.findVarHandle(Internal.class, "right", Node.class);
+            UPDATE = lookup.findVarHandle(Internal.class, "update", Update.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final Internal root;
+    /**
+     * Successful inserts minus successful removes, striped so that updates do not contend on it.
+     */
+    private final LongAdder count = new LongAdder();
+
+    public LockFreeBST() {
+        root = new Internal(INF2, new Leaf(INF1), new Leaf(INF2));
+    }
+
+    private static void checkKey(int key) {
+        if (key >= INF1) {
+            throw new IllegalArgumentException("key " + key + " is reserved by " + LockFreeBST.class.getSimpleName());
+        }
+    }
+
+    public final boolean contains(final int key) {
+        Node node = root;
+        while (node instanceof Internal) {
+            Internal internal = (Internal) node;
+            node = key < internal.key ? internal.left : internal.right;
+        }
+        return node.key == key && key < INF1;
+    }
+
+    public final boolean insert(final int key) {
+        checkKey(key);
+        while (true) {
+            Internal parent = null;
+            Update parentUpdate = null;
+            Node node = root;
+            while (node instanceof Internal) {
+                parent = (Internal) node;
+                parentUpdate = parent.update;
+                node = key < parent.key ? parent.left : parent.right;
+            }
+            Leaf leaf = (Leaf) node;
+            if (leaf.key == key) {
+                return false;
+            }
+            if (parentUpdate.state != CLEAN) {
+                help(parentUpdate);
+                continue;
+            }
+
+            Leaf newLeaf = new Leaf(key);
+            Leaf sibling = new Leaf(leaf.key);
+            Internal newInternal = key < leaf.key
+                    ? new Internal(leaf.key, newLeaf, sibling)
+                    : new Internal(key, sibling, newLeaf);
+            InsertInfo op = new InsertInfo(parent, leaf, newInternal);
+            Update flag = new Update(IFLAG, op);
+            Update witness = (Update) UPDATE.compareAndExchange(parent, parentUpdate, flag);
+            if (witness == parentUpdate) {
+                helpInsert(op);
+                count.increment();
+                return true;
+            }
+            help(witness);
+        }
+    }
+
+    public final boolean remove(final int key) {
+        if (key >= INF1) {
+            return false;
+        }
+        while (true) {
+            Internal grandParent = null;
+            Internal parent = null;
+            Update grandParentUpdate = null;
+            Update parentUpdate = null;
+            Node node = root;
+            while (node instanceof Internal) {
+                grandParent = parent;
+                grandParentUpdate = parentUpdate;
+                parent = (Internal) node;
+                parentUpdate = parent.update;
+                node = key < parent.key ? parent.left : parent.right;
+            }
+            Leaf leaf = (Leaf) node;
+            if (leaf.key != key) {
+                return false;
+            }
+            // a real leaf always has a grandparent: the root only has the dummy INF2 leaf as a direct leaf child
+            if (grandParentUpdate.state != CLEAN) {
+                help(grandParentUpdate);
+                continue;
+            }
+            if (parentUpdate.state != CLEAN) {
+                help(parentUpdate);
+                continue;
+            }
+
+            DeleteInfo op = new DeleteInfo(grandParent, parent, leaf, parentUpdate);
+            Update flag = new Update(DFLAG, op);
+            Update witness = (Update) UPDATE.compareAndExchange(grandParent, grandParentUpdate, flag);
+            if (witness == grandParentUpdate) {
+                if (helpDelete(op)) {
+                    count.decrement();
+                    return true;
+                }
+            } else {
+                help(witness);
+            }
+        }
+    }
+
+    private void help(Update update) {
+        switch (update.state) {
+            case IFLAG:
+                helpInsert((InsertInfo) update.info);
+                break;
+            case MARK:
+                helpMarked((DeleteInfo) update.info);
+                break;
+            case DFLAG:
+                helpDelete((DeleteInfo) update.info);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void helpInsert(InsertInfo op) {
+        casChild(op.parent, op.leaf, op.newInternal);
+        unflag(op.parent, op);
+    }
+
+    /**
+     * Try to mark the parent of the leaf for the delete described by `op`.
+     *
+     * @return true if the delete went through, false if it had to back off because the parent changed
+     */
+    private boolean helpDelete(DeleteInfo op) {
+        Update witness = (Update) UPDATE.compareAndExchange(op.parent, op.parentUpdate, new Update(MARK, op));
+        if (witness == op.parentUpdate || (witness.state == MARK && witness.info == op)) {
+            helpMarked(op);
+            return true;
+        }
+        help(witness);
+        unflag(op.grandParent, op);
+        return false;
+    }
+
+    private void helpMarked(DeleteInfo op) {
+        Node other = op.parent.right == op.leaf ? op.parent.left : op.parent.right;
+        casChild(op.grandParent, op.parent, other);
+        unflag(op.grandParent, op);
+    }
+
+    private static void casChild(Internal parent, Node expected, Node child) {
+        if (child.key < parent.key) {
+            LEFT.compareAndSet(parent, expected, child);
+        } else {
+            RIGHT.compareAndSet(parent, expected, child);
+        }
+    }
+
+    /**
+     * Once a node is flagged for `op`, only `op` can clean it, so it is enough to check the owner before the CAS.
+     */
+    private static void unflag(Internal node, Info op) {
+        Update update = node.update;
+        if (update.info == op && (update.state == IFLAG || update.state == DFLAG)) {
+            UPDATE.compareAndSet(node, update, new Update(CLEAN, op));
+        }
+    }
+
+    public final void bulkLoad(int[] sortedKeys) {
+        load(sortedKeys, false);
+    }
+
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        load(sortedKeys, true);
+    }
+
+    /**
+     * Builds the balanced subtree whose leaves are the keys followed by the INF1 leaf, at index sortedKeys.length.
+     * Every internal node is keyed by the smallest leaf of its right subtree.
+     */
+    private void load(int[] sortedKeys, boolean parallel) {
+        Subtrees.checkAscending(sortedKeys);
+        if (sortedKeys.length > 0) {
+            checkKey(sortedKeys[sortedKeys.length - 1]); // the largest key
+        }
+        publish(Subtrees.<Node>buildLeaves(0, sortedKeys.length, index -> new Leaf(leafKey(sortedKeys, index)),
+                (mid, left, right) -> new Internal(leafKey(sortedKeys, mid), left, right), parallel), sortedKeys.length);
+    }
+
+    /**
+     * Replace the INF1 leaf of the empty tree with a prebuilt subtree.
+     * This is an insert whose new internal node is the whole subtree, so it goes through the same flagging.
+     */
+    private void publish(Node subtree, int size) {
+        if (size == 0) {
+            return;
+        }
+        while (true) {
+            Update rootUpdate = root.update;
+            Node leaf = root.left;
+            if (!(leaf instanceof Leaf) || leaf.key != INF1) {
+                throw new IllegalStateException("bulk loading requires an empty tree");
+            }
+            if (rootUpdate.state != CLEAN) {
+                help(rootUpdate);
+                continue;
+            }
+            InsertInfo op = new InsertInfo(root, (Leaf) leaf, (Internal) subtree);
+            Update witness = (Update) UPDATE.compareAndExchange(root, rootUpdate, new Update(IFLAG, op));
+            if (witness == rootUpdate) {
+                helpInsert(op);
+                count.add(size);
+                return;
+            }
+            help(witness);
+        }
+    }
+
+    private static int leafKey(int[] keys, int index) {
+        return index < keys.length ? keys[index] : INF1;
+    }
+
+    public final int rangeCount(int lo, int hi) {
+        return new RangeCursor(lo, hi).count();
+    }
+
+    public final void rangeScan(int lo, int hi, IntConsumer consumer) {
+        new RangeCursor(lo, hi).forEachRemaining(consumer);
+    }
+
+    public final PrimitiveIterator.OfInt iterator() {
+        return new RangeCursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * An in-order walk over the leaves with an explicit stack of subtrees still to be visited.
+     * Updates only swing child pointers, and the parent a delete removes keeps its children, so a subtree on the
+     * stack still holds every key that stayed in it. A key already passed can turn up again in a subtree that
+     * moved (a new internal node copies the leaf it replaces), so only keys above the last returned one count.
+     */
+    final class RangeCursor extends AscendingCursor {
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+        private long last = Long.MIN_VALUE;
+
+        RangeCursor(int lo, int hi) {
+            super(lo, hi);
+            stack.push(root);
+        }
+
+        boolean advance() {
+            Node node;
+            while ((node = stack.poll()) != null) {
+                if (node instanceof Internal internal) {
+                    if (internal.key <= hi) {
+                        stack.push(internal.right);
+                    }
+                    if (internal.key > lo) {
+                        stack.push(internal.left);
+                    }
+                } else if (node.key > last) {
+                    if (node.key > hi || node.key >= INF1) {
+                        return false;
+                    }
+                    last = node.key;
+                    candidate = node.key;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public BST.Node getRoot() {
+        throw new UnsupportedOperationException(getName() + " is an external tree and has no BST.Node root");
+    }
+
+    public TreeSnapshot snapshot() {
+        throw new UnsupportedOperationException(getName() + " has unversioned nodes");
+    }
+
+    public String getName() {
+        return "LockFreeBST";
+    }
+
+    public final int size() {
+        return (int) Subtrees.sum(root, SHAPE, false);
+    }
+
+    public final int approximateSize() {
+        return count.intValue();
+    }
+
+    public final long getKeysum() {
+        return Subtrees.sum(root, SHAPE, true);
+    }
+
+    /**
+     * Only the real leaves hold keys.
+     */
+    private static final Subtrees.Shape<Node> SHAPE = new Subtrees.Shape<>() {
+        public Node left(Node node) {
+            return node instanceof Internal ? ((Internal) node).left : null;
+        }
+
+        public Node right(Node node) {
+            return node instanceof Internal ? ((Internal) node).right : null;
+        }
+
+        public long weight(Node node, boolean sumKeys) {
+            return node instanceof Leaf && node.key < INF1 ? (sumKeys ? node.key : 1) : 0;
+        }
+    };
+}
@@ -0,0 +1,116 @@
+package algorithms;
+
+import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Baseline: the JDK's sequential red-black tree behind a single global lock.
+ */
+public class LockedTreeSet implements BSTInterface {
+    private final TreeSet<Integer> set = new TreeSet<>();
+
+    public final synchronized boolean contains(final int key) {
+        return set.contains(key);
+    }
+
+    public final synchronized boolean insert(final int key) {
+        return set.add(key);
+    }
+
+    public final synchronized boolean remove(final int key) {
+        return set.remove(key);
+    }
+
+    public final synchronized int size() {
+        return set.size();
+    }
+
+    public final int approximateSize() {
+        return size();
+    }
+
+    public String getName() {
+        return "LockedTreeSet";
+    }
+
+    public final synchronized long getKeysum() {
+        long sum = 0;
+        for (int key : set) {
+            sum += key;
+        }
+        return sum;
+    }
+
+    public final synchronized int rangeCount(int lo, int hi) {
+        return lo > hi ? 0 : set.subSet(lo, true, hi, true).size();
+    }
+
+    /**
+     * Calls the consumer holding the lock, so the scan is atomic.
+     */
+    public final synchronized void rangeScan(int lo, int hi, IntConsumer consumer) {
+        if (lo > hi) {
+            return;
+        }
+        for (int key : set.subSet(lo, true, hi, true)) {
+            consumer.accept(key);
+        }
+    }
+
+    /**
+     * Each step is a separate {@link TreeSet#higher} under the lock, so updates can run between steps.
+     */
+    public final PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private Integer next = ceiling(Integer.MIN_VALUE);
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public int nextInt() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                int key = next;
+                next = higher(key);
+                return key;
+            }
+        };
+    }
+
+    private synchronized Integer ceiling(int key) {
+        return set.ceiling(key);
+    }
+
+    private synchronized Integer higher(int key) {
+        return set.higher(key);
+    }
+
+    public BST.Node getRoot() {
+        throw new UnsupportedOperationException(getName() + " has no BST.Node root");
+    }
+
+    public TreeSnapshot snapshot() {
+        throw new UnsupportedOperationException(getName() + " would have to copy the whole set");
+    }
+
+    public final synchronized void bulkLoad(int[] sortedKeys) {
+        if (!set.isEmpty()) {
+            throw new IllegalStateException("bulk loading requires an empty set");
+        }
+        Subtrees.checkAscending(sortedKeys);
+        for (int key : sortedKeys) {
+            set.add(key);
+        }
+    }
+
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        bulkLoad(sortedKeys);
+    }
+}
@@ -0,0 +1,527 @@
+package algorithms;
+
+import main.LongBSTInterface;
+import main.TreeSnapshot;
+
+import java.util.ArrayDeque;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * {@link BST} specialized to long keys, with monitor locks. The algorithm is the same node for node;
+ * only the key type differs, so both trees can be compared on the same key distributions.
+ */
+public class LongBST implements LongBSTInterface {
+
+    public static class Node {
+        public final long key;
+        public volatile Node left;
+        public volatile Node right;
+        volatile boolean marked; // marked for deletion
+
+        public Node(long key, Node left, Node right) {
+            this.key = key;
+            this.left = left;
+            this.right = right;
+        }
+
+        public void setChild(Node child, boolean isRight) {
+            if (isRight) {
+                this.right = child;
+            } else {
+                this.left = child;
+            }
+        }
+
+        public Node getChild(boolean isRight) {
+            return isRight ? right : left;
+        }
+    }
+
+    /**
+     * See {@link BST.NodePair}.
+     */
+    static final class NodePair {
+        Node parent;
+        Node current;
+        boolean isRight;
+
+        void set(Node parent, Node current, boolean isRight) {
+            this.parent = parent;
+            this.current = current;
+            this.isRight = isRight;
+        }
+    }
+
+    /**
+     * See {@link BST.Cursor}.
+     */
+    static final class Cursor {
+        final NodePair search = new NodePair();
+        final NodePair successor = new NodePair();
+        final NodePair nextSuccessor = new NodePair();
+        final NodePair check = new NodePair();
+        final NodePair replacement = new NodePair();
+    }
+
+    // results of an update attempt made under the locks
+    private static final int RETRY = 0;
+    private static final int FAILED = 1;
+    private static final int DONE = 2;
+
+    private final Node head = new Node(Long.MIN_VALUE, null, null);
+    private final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+    /**
+     * See {@link BST}: successor relocations are the only updates that can hide a key from a traversal.
+     */
+    private final AtomicLong relocationsStarted = new AtomicLong();
+    private final AtomicLong relocationsFinished = new AtomicLong();
+    private final LongAdder count = new LongAdder();
+
+    private boolean validate(NodePair result) {
+        Node pred = result.parent;
+        Node curr = result.current;
+        return !pred.marked && (curr == null || !curr.marked) && pred.getChild(result.isRight) == curr;
+    }
+
+    /**
+     * See {@link BST}: whether the parent of the result is unmarked and still links to the current node, checked under
+     * the parent's lock before the current node is locked, so that locks are only taken top-down along real links.
+     */
+    private boolean isLinked(NodePair result) {
+        Node pred = result.parent;
+        return !pred.marked && pred.getChild(result.isRight) == result.current;
+    }
+
+    private void findKey(final long key, final NodePair result) {
+        Node previousParent = null;
+
+        while (true) {
+            findKeyOnce(key, result);
+            if (result.parent == previousParent || result.current != null) {
+                return;
+            }
+
+            previousParent = result.parent;
+        }
+    }
+
+    private void findKeyOnce(final long key, final NodePair result) {
+        Node parent = head;
+        Node curr = head.right;
+        boolean isRight = true;
+        while (curr != null && curr.key != key) {
+            parent = curr;
+            isRight = curr.key < key;
+            curr = curr.getChild(isRight);
+        }
+        result.set(parent, curr, isRight);
+    }
+
+    /**
+     * See {@link BST#contains}.
+     */
+    public final boolean contains(final long key) {
+        final long relocations = relocationsFinished.get();
+        if (relocationsStarted.get() == relocations) {
+            Node curr = head.right;
+            while (curr != null && curr.key != key) {
+                curr = curr.key < key ? curr.right : curr.left;
+            }
+            if (curr != null) {
+                return !curr.marked;
+            }
+            if (relocationsStarted.get() == relocations) {
+                return false;
+            }
+        }
+        return containsRetrying(key);
+    }
+
+    private boolean containsRetrying(final long key) {
+        Node previousParent = null;
+
+        while (true) {
+            Node parent = head;
+            Node curr = head.right;
+            while (curr != null && curr.key != key) {
+                parent = curr;
+                curr = curr.key < key ? curr.right : curr.left;
+            }
+            if (curr != null) {
+                return !curr.marked;
+            }
+            if (parent == previousParent) {
+                return false;
+            }
+
+            previousParent = parent;
+        }
+    }
+
+    public final boolean insert(final long key) {
+        final NodePair pair = cursors.get().search;
+        while (true) {
+            findKey(key, pair);
+            Node pred = pair.parent;
+            Node curr = pair.current;
+            int result;
+            synchronized (pred) {
+                if (!isLinked(pair)) {
+                    result = RETRY;
+                } else if (curr == null) {
+                    result = insertLocked(pair, key);
+                } else {
+                    synchronized (curr) {
+                        result = insertLocked(pair, key);
+                    }
+                }
+            }
+            if (result != RETRY) {
+                return result == DONE;
+            }
+        }
+    }
+
+    private int insertLocked(NodePair pair, final long key) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        if (pair.current != null) {
+            return FAILED;
+        }
+        pair.parent.setChild(new Node(key, null, null), pair.isRight);
+        count.increment();
+        return DONE;
+    }
+
+    public final boolean remove(final long key) {
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        while (true) {
+            findKey(key, pair);
+            Node pred = pair.parent;
+            Node curr = pair.current;
+            int result;
+            synchronized (pred) {
+                if (!isLinked(pair)) {
+                    result = RETRY;
+                } else if (curr == null) {
+                    result = removeLocked(pair, cursor);
+                } else {
+                    synchronized (curr) {
+                        result = removeLocked(pair, cursor);
+                    }
+                }
+            }
+            if (result != RETRY) {
+                return result == DONE;
+            }
+        }
+    }
+
+    private int removeLocked(NodePair pair, Cursor cursor) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        Node curr = pair.current;
+        if (curr == null) {
+            return FAILED;
+        }
+        if (curr.left != null && curr.right != null) {
+            removeBinaryNode(pair, cursor);
+        } else {
+            curr.marked = true;
+            pair.parent.setChild(curr.left != null ? curr.left : curr.right, pair.isRight);
+        }
+        count.decrement();
+        return DONE;
+    }
+
+    private void findSuccessor(Node base, NodePair result) {
+        Node parent = base;
+        Node curr = base.right;
+        boolean isRight = true;
+        Node next = curr.left;
+        while (next != null) {
+            parent = curr;
+            curr = next;
+            next = curr.left;
+            isRight = false;
+        }
+        result.set(parent, curr, isRight);
+    }
+
+    private int relocateSuccessor(NodePair toRemove, NodePair pair, Node base, Cursor cursor) {
+        synchronized (pair.parent) {
+            if (!isLinked(pair)) {
+                return RETRY;
+            }
+            synchronized (pair.current) {
+                return relocateSuccessorLocked(toRemove, pair, base, cursor);
+            }
+        }
+    }
+
+    /**
+     * See {@link BST}: re-check that `pair` still describes the successor of `base` and move it up.
+     */
+    private int relocateSuccessorLocked(NodePair toRemove, NodePair pair, Node base, Cursor cursor) {
+        Node pred = pair.parent;
+        Node curr = pair.current;
+        NodePair secondPair = cursor.check;
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        findSuccessor(base, secondPair);
+        if (secondPair.current != curr || secondPair.parent != pred || secondPair.isRight != pair.isRight || curr.left != null) {
+            return RETRY;
+        }
+
+        if (base == toRemove.current) {
+            if (curr.right == null) {
+                relocationsStarted.incrementAndGet();
+                removeAndReplaceWithLeaf(toRemove, pair);
+                relocationsFinished.incrementAndGet();
+            } else {
+                removeWithNonLeafSuccessor(toRemove, pair, cursor);
+            }
+        } else {
+            NodePair succ = cursor.successor;
+            relocationsStarted.incrementAndGet();
+            curr.left = succ.current;
+            succ.parent.setChild(succ.current.right, succ.isRight);
+            succ.current.right = null;
+            cursor.replacement.set(curr, succ.current, false);
+            removeAndReplaceWithLeaf(toRemove, cursor.replacement);
+            relocationsFinished.incrementAndGet();
+        }
+        return DONE;
+    }
+
+    private void removeBinaryNode(NodePair toRemove, Cursor cursor) {
+        final NodePair pair = cursor.successor;
+        do {
+            findSuccessor(toRemove.current, pair);
+        } while (relocateSuccessor(toRemove, pair, toRemove.current, cursor) == RETRY);
+    }
+
+    private void removeWithNonLeafSuccessor(NodePair toRemove, NodePair succ, Cursor cursor) {
+        final NodePair pair = cursor.nextSuccessor;
+        do {
+            findSuccessor(succ.current, pair);
+        } while (relocateSuccessor(toRemove, pair, succ.current, cursor) == RETRY);
+    }
+
+    private void removeAndReplaceWithLeaf(NodePair toRemove, NodePair replacementLeaf) {
+        toRemove.current.marked = true;
+        if (toRemove.current.right != replacementLeaf.current) {
+            replacementLeaf.current.right = toRemove.current.right;
+        }
+        replacementLeaf.current.left = toRemove.current.left;
+        toRemove.parent.setChild(replacementLeaf.current, toRemove.isRight);
+        replacementLeaf.parent.setChild(null, replacementLeaf.isRight);
+    }
+
+    public final boolean contains(final int key) {
+        return contains((long) key);
+    }
+
+    public final boolean insert(final int key) {
+        return insert((long) key);
+    }
+
+    public final boolean remove(final int key) {
+        return remove((long) key);
+    }
+
+    public final void bulkLoad(long[] sortedKeys) {
+        load(sortedKeys, false);
+    }
+
+    public final void bulkLoadParallel(long[] sortedKeys) {
+        load(sortedKeys, true);
+    }
+
+    private void load(long[] sortedKeys, boolean parallel) {
+        Subtrees.checkAscending(sortedKeys);
+        publish(Subtrees.build(0, sortedKeys.length, null, (mid, left, right) -> new Node(sortedKeys[mid], left, right), parallel),
+                sortedKeys.length);
+    }
+
+    public final void bulkLoad(int[] sortedKeys) {
+        bulkLoad(widen(sortedKeys));
+    }
+
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        bulkLoadParallel(widen(sortedKeys));
+    }
+
+    private static long[] widen(int[] keys) {
+        long[] result = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = keys[i];
+        }
+        return result;
+    }
+
+    private void publish(Node root, int size) {
+        if (root == null) {
+            return;
+        }
+        synchronized (head) {
+            if (head.right != null) {
+                throw new IllegalStateException("bulk loading requires an empty tree");
+            }
+            head.right = root;
+            count.add(size);
+        }
+    }
+
+
+    public final int rangeCount(long lo, long hi) {
+        return new RangeCursor(lo, hi).count();
+    }
+
+    public final void rangeScanLong(long lo, long hi, LongConsumer consumer) {
+        RangeCursor cursor = new RangeCursor(lo, hi);
+        while (cursor.hasNext()) {
+            consumer.accept(cursor.nextKey());
+        }
+    }
+
+    public final int rangeCount(int lo, int hi) {
+        return rangeCount((long) lo, hi);
+    }
+
+    public final void rangeScan(int lo, int hi, IntConsumer consumer) {
+        new RangeCursor(lo, hi).forEachRemaining(consumer);
+    }
+
+    /**
+     * The keys that fit in an int, in ascending order.
+     */
+    public final PrimitiveIterator.OfInt iterator() {
+        return new RangeCursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    final class RangeCursor extends RelocatingCursor {
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+        private Node current;
+
+        RangeCursor(long lo, long hi) {
+            super(lo, hi);
+        }
+
+        long relocationsStarted() {
+            return relocationsStarted.get();
+        }
+
+        long relocationsFinished() {
+            return relocationsFinished.get();
+        }
+
+        void pushRoot() {
+            stack.clear();
+            pushPath(head.right);
+        }
+
+        boolean pop() {
+            current = stack.poll();
+            return current != null;
+        }
+
+        void pushRight() {
+            pushPath(current.right);
+        }
+
+        boolean ceiling() {
+            Node previous = lowestFrom();
+            while (true) {
+                Node node = lowestFrom();
+                if (node == previous && (node == null || !node.marked)) {
+                    current = node;
+                    return node != null;
+                }
+                previous = node;
+            }
+        }
+
+        long currentKey() {
+            return current.key;
+        }
+
+        boolean currentMarked() {
+            return current.marked;
+        }
+
+        private Node lowestFrom() {
+            Node lowest = null;
+            Node node = head.right;
+            while (node != null) {
+                if (node.key >= from) {
+                    lowest = node;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+            return lowest;
+        }
+
+        private void pushPath(Node node) {
+            while (node != null) {
+                if (node.key >= from) {
+                    stack.push(node);
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+        }
+    }
+
+    public BST.Node getRoot() {
+        throw new UnsupportedOperationException(getName() + " has long keys");
+    }
+
+    public TreeSnapshot snapshot() {
+        throw new UnsupportedOperationException(getName() + " has unversioned nodes");
+    }
+
+    public String getName() {
+        return "LongBST";
+    }
+
+    public final int size() {
+        return (int) Subtrees.sum(head.right, SHAPE, false);
+    }
+
+    public final int approximateSize() {
+        return count.intValue();
+    }
+
+    /**
+     * The sum of the keys modulo 2^64, which the harness compares with the sum of the keys its threads added and removed.
+     */
+    public final long getKeysum() {
+        return Subtrees.sum(head.right, SHAPE, true);
+    }
+
+    private static final Subtrees.Shape<Node> SHAPE = new Subtrees.Shape<>() {
+        public Node left(Node node) {
+            return node.left;
+        }
+
+        public Node right(Node node) {
+            return node.right;
+        }
+
+        public long weight(Node node, boolean sumKeys) {
+            return sumKeys ? node.key : 1;
+        }
+    };
+}
@@ -0,0 +1,118 @@
+package algorithms;
+
+import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs a ConcurrentNavigableMap as a set by mapping every key to itself,
+ * so maps are compared at the cost of their values and boxed keys, as they are used as an index.
+ */
+public class MapSet implements BSTInterface {
+    private final String name;
+    private final ConcurrentNavigableMap<Integer, Integer> map;
+
+    public MapSet(String name, ConcurrentNavigableMap<Integer, Integer> map) {
+        this.name = name;
+        this.map = map;
+    }
+
+    public final boolean contains(final int key) {
+        return map.containsKey(key);
+    }
+
+    public final boolean insert(final int key) {
+        return map.putIfAbsent(key, key) == null;
+    }
+
+    public final boolean remove(final int key) {
+        return map.remove(key) != null;
+    }
+
+    public final int size() {
+        return map.size();
+    }
+
+    /**
+     * Whatever the map's size() costs.
+     */
+    public final int approximateSize() {
+        return map.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public final long getKeysum() {
+        long sum = 0;
+        for (int key : map.keySet()) {
+            sum += key;
+        }
+        return sum;
+    }
+
+    public final int rangeCount(int lo, int hi) {
+        return lo > hi ? 0 : map.subMap(lo, true, hi, true).size();
+    }
+
+    public final void rangeScan(int lo, int hi, IntConsumer consumer) {
+        if (lo > hi) {
+            return;
+        }
+        for (int key : map.subMap(lo, true, hi, true).keySet()) {
+            consumer.accept(key);
+        }
+    }
+
+    public final PrimitiveIterator.OfInt iterator() {
+        final Iterator<Integer> keys = map.keySet().iterator();
+        return new PrimitiveIterator.OfInt() {
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public int nextInt() {
+                return keys.next();
+            }
+        };
+    }
+
+    public BST.Node getRoot() {
+        throw new UnsupportedOperationException(getName() + " does not expose its nodes");
+    }
+
+    public TreeSnapshot snapshot() {
+        throw new UnsupportedOperationException(getName() + " would have to copy the whole map");
+    }
+
+    /**
+     * Puts the keys one by one, each range's middle key before its halves, so that an unbalanced tree ends up balanced.
+     * Like {@link SkipListSet#bulkLoad} the load is not published in one step.
+     */
+    public final void bulkLoad(int[] sortedKeys) {
+        if (!map.isEmpty()) {
+            throw new IllegalStateException("bulk loading requires an empty map");
+        }
+        Subtrees.checkAscending(sortedKeys);
+        putMiddleFirst(sortedKeys, 0, sortedKeys.length);
+    }
+
+    private void putMiddleFirst(int[] keys, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        map.put(keys[mid], keys[mid]);
+        putMiddleFirst(keys, from, mid);
+        putMiddleFirst(keys, mid + 1, to);
+    }
+
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        bulkLoad(sortedKeys);
+    }
+}
@@ -0,0 +1,107 @@
+package algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Recycles the nodes removed from a {@link BST}, with epoch-based reclamation (see {@link Epochs}).
+ * <p>
+ * Every operation on a pooled tree runs inside an epoch. Each thread keeps the nodes it retired in three bags,
+ * one per epoch modulo 3, and its own free list, so retiring and allocating touch no shared state; a bag is
+ * handed out again once the epoch is two past the one it was filled in.
+ * The collector still owns every node: full bags and free lists let further nodes go to it, and a reservation
+ * held for long only stops reuse, never makes it unsafe.
+ */
+final class NodePool {
+    private static final int BAG_CAPACITY = 1 << 12;
+    private static final int FREE_CAPACITY = 1 << 13;
+    private static final int ADVANCE_INTERVAL = 64; // retirements between attempts to advance the epoch
+
+    final Epochs epochs = new Epochs();
+
+    Local local() {
+        return new Local();
+    }
+
+    /**
+     * The pool state of one thread. Not thread-safe.
+     */
+    final class Local {
+        final Epochs.Reservation reservation;
+        private int depth; // nested operations, e.g. an update made from a rangeScan consumer
+        private final BST.Node[][] bags = new BST.Node[3][BAG_CAPACITY];
+        private final int[] bagSizes = new int[3];
+        private final long[] bagEpochs = new long[3];
+        private final BST.Node[] free = new BST.Node[FREE_CAPACITY];
+        private int freeSize;
+        private int retired;
+
+        Local() {
+            this.reservation = epochs.register(this);
+        }
+
+        void enter() {
+            if (depth++ == 0) {
+                epochs.announce(reservation);
+            }
+        }
+
+        void exit() {
+            if (--depth == 0) {
+                reservation.epoch = Epochs.IDLE;
+            }
+        }
+
+        /**
+         * A leaf with `key`, recycled if a retired node is old enough, new otherwise.
+         */
+        BST.Node allocate(int key) {
+            if (freeSize == 0) {
+                collect();
+                if (freeSize == 0) {
+                    return new BST.Node(key, null, null);
+                }
+            }
+            BST.Node node = free[--freeSize];
+            free[freeSize] = null;
+            node.reset(key);
+            return node;
+        }
+
+        /**
+         * Hand in a node that the current operation unlinked.
+         */
+        void retire(BST.Node node) {
+            final long announced = reservation.epoch;
+            final int bag = (int) (announced % 3);
+            if (bagEpochs[bag] != announced) {
+                // the bag holds nodes of announced - 3 or before, and the epoch is at least `announced`
+                recycle(bag);
+                bagEpochs[bag] = announced;
+            }
+            if (bagSizes[bag] < BAG_CAPACITY) {
+                bags[bag][bagSizes[bag]++] = node;
+            }
+            if (++retired % ADVANCE_INTERVAL == 0) {
+                epochs.tryAdvance();
+            }
+        }
+
+        private void collect() {
+            final long current = epochs.current();
+            for (int bag = 0; bag < bags.length; bag++) {
+                if (bagSizes[bag] > 0 && bagEpochs[bag] <= current - 2) {
+                    recycle(bag);
+                }
+            }
+        }
+
+        private void recycle(int bag) {
+            final int size = bagSizes[bag];
+            final int moved = Math.min(size, FREE_CAPACITY - freeSize);
+            System.arraycopy(bags[bag], 0, free, freeSize, moved);
+            freeSize += moved;
+            Arrays.fill(bags[bag], 0, size, null);
+            bagSizes[bag] = 0;
+        }
+    }
+}
@@ -0,0 +1,779 @@
+package algorithms;
+
+import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * {@link BST} with its nodes outside the Java heap, as fixed-width records in direct byte buffers:
+ * an int key, the int indices of the left and right children and a state word, 16 bytes a node.
+ * Large trees then put no load on the collector and take half the memory of BST.Node objects,
+ * so more of a search path shares cache lines.
+ * <p>
+ * The algorithm is the hand-over-hand BST with {@link BST.LockStrategy#SPIN}, since records have no monitors:
+ * the LOCKED and MARKED bits live in the state word, and links are read and written with volatile semantics
+ * through a byte-buffer view VarHandle. Index 0 is the null child and index 1 the head.
+ * Nothing would ever free the record of a removed node, so records are recycled like the nodes of a pooled BST,
+ * through per-thread free lists and epoch-based reclamation (see {@link Epochs}).
+ * <p>
+ * Records live in chunks of 2^20 allocated as they are first needed, up to the direct memory limit
+ * (-XX:MaxDirectMemorySize, by default the maximum heap size). 100M keys take about 1.6 GB.
+ */
+public class OffHeapBST implements BSTInterface {
+
+    static final class NodePair {
+        int parent;
+        int current;
+        boolean isRight;
+
+        void set(int parent, int current, boolean isRight) {
+            this.parent = parent;
+            this.current = current;
+            this.isRight = isRight;
+        }
+    }
+
+    /**
+     * Per-thread search results and record pool, see {@link BST.Cursor} and {@link NodePool.Local}.
+     */
+    final class Cursor {
+        final NodePair search = new NodePair();
+        final NodePair successor = new NodePair();
+        final NodePair nextSuccessor = new NodePair();
+        final NodePair check = new NodePair();
+        final NodePair replacement = new NodePair();
+
+        final Epochs.Reservation reservation = epochs.register(this); // withdrawn when the thread's cursor is collected
+        private int depth; // nested operations, e.g. an update made from a rangeScan consumer
+        // unlike nodes, records are never reclaimed by the collector, so bags and free lists grow instead of dropping any
+        private final int[][] bags = {new int[BLOCK], new int[BLOCK], new int[BLOCK]};
+        private final int[] bagSizes = new int[3];
+        private final long[] bagEpochs = new long[3];
+        private int[] free = new int[BLOCK];
+        private int freeSize;
+        private int retired;
+        private int blockNext; // the unused records of the block this thread took from the arena
+        private int blockEnd;
+
+        void enter() {
+            if (depth++ == 0) {
+                epochs.announce(reservation);
+            }
+        }
+
+        void exit() {
+            if (--depth == 0) {
+                reservation.epoch = Epochs.IDLE;
+            }
+        }
+
+        /**
+         * A leaf record with `key`: recycled if a retired one is old enough, from this thread's block otherwise.
+         */
+        int allocate(int key) {
+            int node;
+            if (freeSize == 0) {
+                collect();
+            }
+            if (freeSize > 0) {
+                node = free[--freeSize];
+            } else {
+                if (blockNext == blockEnd) {
+                    blockNext = reserve(BLOCK);
+                    blockEnd = blockNext + BLOCK;
+                }
+                node = blockNext++;
+            }
+            initialize(node, key, NIL, NIL);
+            return node;
+        }
+
+        void retire(int node) {
+            final long announced = reservation.epoch; // current while it was visible, see Epochs.announce
+            final int bag = (int) (announced % 3);
+            if (bagEpochs[bag] != announced) {
+                recycle(bag);
+                bagEpochs[bag] = announced;
+            }
+            if (bagSizes[bag] == bags[bag].length) {
+                bags[bag] = Arrays.copyOf(bags[bag], 2 * bagSizes[bag]);
+            }
+            bags[bag][bagSizes[bag]++] = node;
+            if (++retired % ADVANCE_INTERVAL == 0) {
+                epochs.tryAdvance();
+            }
+        }
+
+        private void collect() {
+            final long current = epochs.current();
+            for (int bag = 0; bag < bags.length; bag++) {
+                if (bagSizes[bag] > 0 && bagEpochs[bag] <= current - 2) {
+                    recycle(bag);
+                }
+            }
+        }
+
+        private void recycle(int bag) {
+            final int size = bagSizes[bag];
+            if (freeSize + size > free.length) {
+                free = Arrays.copyOf(free, Math.max(2 * free.length, freeSize + size));
+            }
+            System.arraycopy(bags[bag], 0, free, freeSize, size);
+            freeSize += size;
+            bagSizes[bag] = 0;
+        }
+    }
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    // record layout
+    private static final int RECORD_SHIFT = 4;
+    private static final int KEY = 0;
+    private static final int LEFT = 4;
+    private static final int RIGHT = 8;
+    private static final int STATE = 12;
+
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int MAX_CHUNKS = 1 << (31 - CHUNK_SHIFT);
+    private static final int BLOCK = 1 << 8; // records a thread takes from the arena at once, a divisor of a chunk
+
+    private static final int NIL = 0;
+    private static final int HEAD = 1;
+
+    private static final int MARKED = 1;
+    private static final int LOCKED = 2;
+
+    private static final int RETRY = 0;
+    private static final int FAILED = 1;
+    private static final int DONE = 2;
+
+    private static final int MIN_BACKOFF = 1;
+    private static final int MAX_BACKOFF = 1 << 10;
+
+    private static final int ADVANCE_INTERVAL = 64; // retirements between attempts to advance the epoch
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Written only while holding the array's lock, and before any record in the chunk is published,
+     * so a thread that read a record index through a volatile link sees the chunk of the record.
+     */
+    private final ByteBuffer[] chunks = new ByteBuffer[MAX_CHUNKS];
+    private final AtomicInteger reserved = new AtomicInteger(BLOCK); // records of the first block hold NIL and HEAD
+    private final Epochs epochs = new Epochs();
+    private final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+    private final AtomicInteger relocationsStarted = new AtomicInteger();
+    private final AtomicInteger relocationsFinished = new AtomicInteger();
+    private final LongAdder count = new LongAdder();
+
+    public OffHeapBST() {
+        ensureChunks(0, BLOCK);
+        initialize(HEAD, Integer.MIN_VALUE, NIL, NIL);
+    }
+
+    // the arena
+
+    /**
+     * Take `size` consecutive unused records, a multiple of BLOCK, and allocate the chunks they fall in.
+     */
+    private int reserve(int size) {
+        final int start = reserved.getAndAdd(size);
+        if (start < 0 || start > Integer.MAX_VALUE - size) {
+            throw new IllegalStateException(getName() + " is out of record indices");
+        }
+        ensureChunks(start, start + size);
+        return start;
+    }
+
+    private void ensureChunks(int from, int to) {
+        synchronized (chunks) {
+            for (int chunk = from >>> CHUNK_SHIFT; chunk <= (to - 1) >>> CHUNK_SHIFT; chunk++) {
+                if (chunks[chunk] == null) {
+                    chunks[chunk] = ByteBuffer.allocateDirect(1 << (CHUNK_SHIFT + RECORD_SHIFT)).order(ByteOrder.nativeOrder());
+                }
+            }
+        }
+    }
+
+    private ByteBuffer chunk(int node) {
+        return chunks[node >>> CHUNK_SHIFT];
+    }
+
+    private static int offset(int node) {
+        return (node & CHUNK_MASK) << RECORD_SHIFT;
+    }
+
+    /**
+     * Write a record that is not reachable, to be published by a volatile link to it.
+     */
+    private void initialize(int node, int key, int left, int right) {
+        ByteBuffer chunk = chunk(node);
+        int offset = offset(node);
+        INT.set(chunk, offset + KEY, key);
+        INT.set(chunk, offset + LEFT, left);
+        INT.set(chunk, offset + RIGHT, right);
+        INT.set(chunk, offset + STATE, 0);
+    }
+
+    private int key(int node) {
+        return (int) INT.get(chunk(node), offset(node) + KEY);
+    }
+
+    private int child(int node, boolean isRight) {
+        return (int) INT.getVolatile(chunk(node), offset(node) + (isRight ? RIGHT : LEFT));
+    }
+
+    private int left(int node) {
+        return (int) INT.getVolatile(chunk(node), offset(node) + LEFT);
+    }
+
+    private int right(int node) {
+        return (int) INT.getVolatile(chunk(node), offset(node) + RIGHT);
+    }
+
+    private void setChild(int node, int child, boolean isRight) {
+        INT.setVolatile(chunk(node), offset(node) + (isRight ? RIGHT : LEFT), child);
+    }
+
+    private boolean isMarked(int node) {
+        return ((int) INT.getVolatile(chunk(node), offset(node) + STATE) & MARKED) != 0;
+    }
+
+    /**
+     * Only for the thread holding the record's lock.
+     */
+    private void mark(int node) {
+        ByteBuffer chunk = chunk(node);
+        int offset = offset(node) + STATE;
+        INT.setVolatile(chunk, offset, (int) INT.getVolatile(chunk, offset) | MARKED);
+    }
+
+    private void lock(int node) {
+        final ByteBuffer chunk = chunk(node);
+        final int offset = offset(node) + STATE;
+        int backoff = MIN_BACKOFF;
+        while (true) {
+            int state = (int) INT.getVolatile(chunk, offset);
+            if ((state & LOCKED) == 0 && INT.compareAndSet(chunk, offset, state, state | LOCKED)) {
+                return;
+            }
+            if (backoff < MAX_BACKOFF) {
+                for (int i = 0; i < backoff; i++) {
+                    Thread.onSpinWait();
+                }
+                backoff <<= 1;
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void unlock(int node) {
+        ByteBuffer chunk = chunk(node);
+        int offset = offset(node) + STATE;
+        INT.setVolatile(chunk, offset, (int) INT.getVolatile(chunk, offset) & ~LOCKED);
+    }
+
+    /**
+     * See {@link BST}: lock the parent of a search result, and its current node if the parent still links to it.
+     *
+     * @return whether both are held, nothing is held otherwise
+     */
+    private boolean lockPair(NodePair pair) {
+        lock(pair.parent);
+        if (!isLinked(pair)) {
+            unlock(pair.parent);
+            return false;
+        }
+        if (pair.current != NIL) {
+            lock(pair.current);
+        }
+        return true;
+    }
+
+    private boolean isLinked(NodePair pair) {
+        return !isMarked(pair.parent) && child(pair.parent, pair.isRight) == pair.current;
+    }
+
+    private void unlockPair(int pred, int curr) {
+        if (curr != NIL) {
+            unlock(curr);
+        }
+        unlock(pred);
+    }
+
+    // the BST algorithm on records
+
+    private boolean validate(NodePair result) {
+        int pred = result.parent;
+        int curr = result.current;
+        return !isMarked(pred) && (curr == NIL || !isMarked(curr)) && child(pred, result.isRight) == curr;
+    }
+
+    private void findKey(final int key, final NodePair result) {
+        int previousParent = NIL;
+
+        while (true) {
+            findKeyOnce(key, result);
+            if (result.parent == previousParent || result.current != NIL) {
+                return;
+            }
+
+            previousParent = result.parent;
+        }
+    }
+
+    private void findKeyOnce(final int key, final NodePair result) {
+        int parent = HEAD;
+        int curr = right(HEAD);
+        boolean isRight = true;
+        while (curr != NIL) {
+            int currKey = key(curr);
+            if (currKey == key) {
+                break;
+            }
+            parent = curr;
+            isRight = currKey < key;
+            curr = child(curr, isRight);
+        }
+        result.set(parent, curr, isRight);
+    }
+
+    /**
+     * See {@link BST#contains}.
+     */
+    public final boolean contains(final int key) {
+        final Cursor cursor = cursors.get();
+        cursor.enter();
+        try {
+            final int relocations = relocationsFinished.get();
+            if (relocationsStarted.get() == relocations) {
+                int curr = right(HEAD);
+                int currKey;
+                while (curr != NIL && (currKey = key(curr)) != key) {
+                    curr = child(curr, currKey < key);
+                }
+                if (curr != NIL) {
+                    return !isMarked(curr);
+                }
+                if (relocationsStarted.get() == relocations) {
+                    return false;
+                }
+            }
+            final NodePair pair = cursor.check;
+            findKey(key, pair);
+            return pair.current != NIL && !isMarked(pair.current);
+        } finally {
+            cursor.exit();
+        }
+    }
+
+    public final boolean insert(final int key) {
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        cursor.enter();
+        try {
+            while (true) {
+                findKey(key, pair);
+                int pred = pair.parent;
+                int curr = pair.current;
+                int result;
+                if (!lockPair(pair)) {
+                    result = RETRY;
+                } else {
+                    try {
+                        result = insertLocked(pair, key, cursor);
+                    } finally {
+                        unlockPair(pred, curr);
+                    }
+                }
+                if (result != RETRY) {
+                    return result == DONE;
+                }
+            }
+        } finally {
+            cursor.exit();
+        }
+    }
+
+    private int insertLocked(NodePair pair, final int key, Cursor cursor) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        if (pair.current != NIL) {
+            return FAILED;
+        }
+        setChild(pair.parent, cursor.allocate(key), pair.isRight);
+        count.increment();
+        return DONE;
+    }
+
+    public final boolean remove(final int key) {
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        cursor.enter();
+        try {
+            while (true) {
+                findKey(key, pair);
+                int pred = pair.parent;
+                int curr = pair.current;
+                int result;
+                if (!lockPair(pair)) {
+                    result = RETRY;
+                } else {
+                    try {
+                        result = removeLocked(pair, cursor);
+                    } finally {
+                        unlockPair(pred, curr);
+                    }
+                }
+                if (result != RETRY) {
+                    if (result == DONE) {
+                        cursor.retire(curr);
+                    }
+                    return result == DONE;
+                }
+            }
+        } finally {
+            cursor.exit();
+        }
+    }
+
+    private int removeLocked(NodePair pair, Cursor cursor) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        int curr = pair.current;
+        if (curr == NIL) {
+            return FAILED;
+        }
+        int left = left(curr);
+        int right = right(curr);
+        if (left != NIL && right != NIL) {
+            removeBinaryNode(pair, cursor);
+        } else {
+            mark(curr);
+            setChild(pair.parent, left != NIL ? left : right, pair.isRight);
+        }
+        count.decrement();
+        return DONE;
+    }
+
+    private void findSuccessor(int base, NodePair result) {
+        int parent = base;
+        int curr = right(base);
+        boolean isRight = true;
+        int next = left(curr);
+        while (next != NIL) {
+            parent = curr;
+            curr = next;
+            next = left(curr);
+            isRight = false;
+        }
+        result.set(parent, curr, isRight);
+    }
+
+    /**
+     * See {@link BST}: lock the successor found in `pair`, and its parent unless it is `base`, which is held.
+     */
+    private int relocateSuccessor(NodePair toRemove, NodePair pair, int base, Cursor cursor) {
+        int pred = pair.parent;
+        int curr = pair.current;
+        if (pred != base) {
+            lock(pred);
+        }
+        try {
+            if (!isLinked(pair)) {
+                return RETRY;
+            }
+            lock(curr);
+            try {
+                return relocateSuccessorLocked(toRemove, pair, base, cursor);
+            } finally {
+                unlock(curr);
+            }
+        } finally {
+            if (pred != base) {
+                unlock(pred);
+            }
+        }
+    }
+
+    private int relocateSuccessorLocked(NodePair toRemove, NodePair pair, int base, Cursor cursor) {
+        int pred = pair.parent;
+        int curr = pair.current;
+        NodePair secondPair = cursor.check;
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        findSuccessor(base, secondPair);
+        if (secondPair.current != curr || secondPair.parent != pred || secondPair.isRight != pair.isRight || left(curr) != NIL) {
+            return RETRY;
+        }
+
+        if (base == toRemove.current) {
+            if (right(curr) == NIL) {
+                relocationsStarted.incrementAndGet();
+                removeAndReplaceWithLeaf(toRemove, pair);
+                relocationsFinished.incrementAndGet();
+            } else {
+                removeWithNonLeafSuccessor(toRemove, pair, cursor);
+            }
+        } else {
+            // `base` is the successor of the node being removed, found by removeBinaryNode
+            NodePair succ = cursor.successor;
+            relocationsStarted.incrementAndGet();
+            setChild(curr, succ.current, false);
+            setChild(succ.parent, right(succ.current), succ.isRight);
+            setChild(succ.current, NIL, true);
+            cursor.replacement.set(curr, succ.current, false);
+            removeAndReplaceWithLeaf(toRemove, cursor.replacement);
+            relocationsFinished.incrementAndGet();
+        }
+        return DONE;
+    }
+
+    private void removeBinaryNode(NodePair toRemove, Cursor cursor) {
+        final NodePair pair = cursor.successor;
+        do {
+            findSuccessor(toRemove.current, pair);
+        } while (relocateSuccessor(toRemove, pair, toRemove.current, cursor) == RETRY);
+    }
+
+    private void removeWithNonLeafSuccessor(NodePair toRemove, NodePair succ, Cursor cursor) {
+        final NodePair pair = cursor.nextSuccessor;
+        do {
+            findSuccessor(succ.current, pair);
+        } while (relocateSuccessor(toRemove, pair, succ.current, cursor) == RETRY);
+    }
+
+    private void removeAndReplaceWithLeaf(NodePair toRemove, NodePair replacementLeaf) {
+        int removed = toRemove.current;
+        int replacement = replacementLeaf.current;
+        mark(removed);
+        if (right(removed) != replacement) {
+            setChild(replacement, right(removed), true);
+        }
+        setChild(replacement, left(removed), false);
+        setChild(toRemove.parent, replacement, toRemove.isRight);
+        setChild(replacementLeaf.parent, NIL, replacementLeaf.isRight);
+    }
+
+    // bulk loading
+
+    public final void bulkLoad(int[] sortedKeys) {
+        load(sortedKeys, false);
+    }
+
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        load(sortedKeys, true);
+    }
+
+    /**
+     * The record of keys[i] is first + i, so the halves of the balanced build write disjoint records
+     * and can be built in parallel without coordinating their allocation. Subtrees are passed around as boxed record
+     * indices, which only costs the build one short-lived object per key.
+     */
+    private void load(int[] sortedKeys, boolean parallel) {
+        Subtrees.checkAscending(sortedKeys);
+        if (sortedKeys.length == 0) {
+            return;
+        }
+        final int first = reserve((sortedKeys.length + BLOCK - 1) & -BLOCK);
+        final int root = Subtrees.build(0, sortedKeys.length, NIL, (mid, left, right) -> {
+            initialize(first + mid, sortedKeys[mid], left, right);
+            return first + mid;
+        }, parallel);
+        lock(HEAD);
+        try {
+            if (right(HEAD) != NIL) {
+                throw new IllegalStateException("bulk loading requires an empty tree");
+            }
+            setChild(HEAD, root, true);
+            count.add(sortedKeys.length);
+        } finally {
+            unlock(HEAD);
+        }
+    }
+
+    // walks
+
+    public final int rangeCount(int lo, int hi) {
+        final Cursor cursor = cursors.get();
+        cursor.enter();
+        try {
+            return new RangeCursor(lo, hi).count();
+        } finally {
+            cursor.exit();
+        }
+    }
+
+    public final void rangeScan(int lo, int hi, IntConsumer consumer) {
+        final Cursor cursor = cursors.get();
+        cursor.enter();
+        try {
+            new RangeCursor(lo, hi).forEachRemaining(consumer);
+        } finally {
+            cursor.exit();
+        }
+    }
+
+    /**
+     * The iterator holds a reservation of its own until it is exhausted or garbage collected,
+     * since the records on its stack must not be reused between calls.
+     */
+    public final PrimitiveIterator.OfInt iterator() {
+        PinnedCursor cursor = new PinnedCursor();
+        cursor.release = CLEANER.register(cursor, new Epochs.Unpin(epochs, epochs.pin()));
+        return cursor;
+    }
+
+    /**
+     * The stack of record indices is an int array.
+     */
+    class RangeCursor extends RelocatingCursor {
+        private int[] stack = new int[64];
+        private int depth;
+        private int current;
+
+        RangeCursor(int lo, int hi) {
+            super(lo, hi);
+        }
+
+        long relocationsStarted() {
+            return relocationsStarted.get();
+        }
+
+        long relocationsFinished() {
+            return relocationsFinished.get();
+        }
+
+        void pushRoot() {
+            depth = 0;
+            pushPath(right(HEAD));
+        }
+
+        boolean pop() {
+            if (depth == 0) {
+                return false;
+            }
+            current = stack[--depth];
+            return true;
+        }
+
+        void pushRight() {
+            pushPath(right(current));
+        }
+
+        boolean ceiling() {
+            int previous = lowestFrom();
+            while (true) {
+                int node = lowestFrom();
+                if (node == previous && (node == NIL || !isMarked(node))) {
+                    current = node;
+                    return node != NIL;
+                }
+                previous = node;
+            }
+        }
+
+        long currentKey() {
+            return key(current);
+        }
+
+        boolean currentMarked() {
+            return isMarked(current);
+        }
+
+        private int lowestFrom() {
+            int lowest = NIL;
+            int node = right(HEAD);
+            while (node != NIL) {
+                if (key(node) >= from) {
+                    lowest = node;
+                    node = left(node);
+                } else {
+                    node = right(node);
+                }
+            }
+            return lowest;
+        }
+
+        private void pushPath(int node) {
+            while (node != NIL) {
+                if (key(node) >= from) {
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, 2 * depth);
+                    }
+                    stack[depth++] = node;
+                    node = left(node);
+                } else {
+                    node = right(node);
+                }
+            }
+        }
+    }
+
+    final class PinnedCursor extends RangeCursor {
+        Cleaner.Cleanable release;
+
+        PinnedCursor() {
+            super(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        @Override
+        boolean advance() {
+            if (super.advance()) {
+                return true;
+            }
+            release.clean();
+            return false;
+        }
+    }
+
+    public BST.Node getRoot() {
+        throw new UnsupportedOperationException(getName() + " keeps its nodes off the heap");
+    }
+
+    public TreeSnapshot snapshot() {
+        throw new UnsupportedOperationException(getName() + " has unversioned nodes");
+    }
+
+    public String getName() {
+        return "OffHeapBST";
+    }
+
+    public final int size() {
+        return rangeCount(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public final int approximateSize() {
+        return count.intValue();
+    }
+
+    public final long getKeysum() {
+        final Cursor cursor = cursors.get();
+        cursor.enter();
+        try {
+            long sum = 0;
+            RangeCursor keys = new RangeCursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+            while (keys.hasNext()) {
+                sum += keys.nextKey();
+            }
+            return sum;
+        } finally {
+            cursor.exit();
+        }
+    }
+}
@@ -0,0 +1,906 @@
+package algorithms;
+
+import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * A concurrent relaxed-balance AVL tree after Bronson, Casper, Chafi and Olukotun,
+ * "A Practical Concurrent Binary Search Tree" (PPoPP 2010).
+ * <p>
+ * Searches take no locks: they validate every step with the version of the node they came from, which is
+ * changed by every rotation that moves keys out of that node's subtree ("shrinks" it).
+ * Updates lock only the nodes they change. A removed node that still has two children stays in the tree as a
+ * routing node (not present) and is unlinked later, once it has at most one child.
+ * Heights are repaired and rotations are done lazily after each update, one node at a time, so the tree
+ * stays within a small constant of AVL balance and every operation is O(log n).
+ */
+public class RelaxedAVLTree implements BSTInterface {
+
+    // version bits, the rest of a version is a counter bumped by every completed shrink
+    private static final long UNLINKED = 1L;
+    private static final long SHRINKING = 2L;
+    private static final long VERSION_INCREMENT = 4L;
+
+    // results of nodeCondition besides a new height
+    private static final int NOTHING_REQUIRED = -1;
+    private static final int REBALANCE_REQUIRED = -2;
+    private static final int UNLINK_REQUIRED = -3;
+
+    // results of the optimistic attempts, retried from the parent on RETRY
+    private static final int FALSE = 0;
+    private static final int TRUE = 1;
+    private static final int RETRY = 2;
+
+    private static final int SPIN_COUNT = 100;
+
+    static final class Node {
+        final int key; // key is immutable
+        volatile int height;
+        volatile long version;
+        volatile boolean present; // false for routing nodes
+        volatile Node parent;
+        volatile Node left;
+        volatile Node right;
+
+        Node(int key, int height, boolean present, Node parent, Node left, Node right) {
+            this.key = key;
+            this.height = height;
+            this.present = present;
+            this.parent = parent;
+            this.left = left;
+            this.right = right;
+        }
+
+        Node child(int direction) {
+            return direction < 0 ? left : right;
+        }
+
+        void setChild(int direction, Node child) {
+            if (direction < 0) {
+                left = child;
+            } else {
+                right = child;
+            }
+        }
+
+        /**
+         * Wait for a rotation that started at this node with the given version to finish.
+         * Rotations are done holding the node's lock, so taking it is the last resort.
+         */
+        void waitUntilShrinkCompleted(long shrinkingVersion) {
+            if (!isShrinking(shrinkingVersion)) {
+                return;
+            }
+            for (int tries = 0; tries < SPIN_COUNT; tries++) {
+                if (version != shrinkingVersion) {
+                    return;
+                }
+                Thread.onSpinWait();
+            }
+            synchronized (this) {
+                // the rotation is over once we hold the lock
+            }
+        }
+    }
+
+    private static boolean isShrinking(long version) {
+        return (version & SHRINKING) != 0;
+    }
+
+    private static boolean isUnlinked(long version) {
+        return version == UNLINKED;
+    }
+
+    private static boolean isShrinkingOrUnlinked(long version) {
+        return (version & (SHRINKING | UNLINKED)) != 0;
+    }
+
+    private static long beginChange(long version) {
+        return version | SHRINKING;
+    }
+
+    private static long endChange(long version) {
+        return version + VERSION_INCREMENT;
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * A dummy node above the root, the root is its right child. It is never rotated, so its version never changes.
+     */
+    final Node rootHolder;
+    /**
+     * Successful inserts minus successful removes, striped so that updates do not contend on it.
+     */
+    private final LongAdder count = new LongAdder();
+
+    public RelaxedAVLTree() {
+        rootHolder = new Node(Integer.MIN_VALUE, 1, false, null, null, null);
+    }
+
+    public final boolean contains(final int key) {
+        while (true) {
+            Node right = rootHolder.right;
+            if (right == null) {
+                return false;
+            }
+            int direction = Integer.compare(key, right.key);
+            if (direction == 0) {
+                return right.present;
+            }
+            long version = right.version;
+            if (isShrinkingOrUnlinked(version)) {
+                right.waitUntilShrinkCompleted(version);
+            } else if (right == rootHolder.right) {
+                int result = attemptGet(key, right, direction, version);
+                if (result != RETRY) {
+                    return result == TRUE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Search below `node`, which was valid at `nodeVersion`, towards `direction`.
+     * Returns RETRY if `node` has shrunk since, so the caller must re-check its own step.
+     */
+    private int attemptGet(final int key, Node node, int direction, long nodeVersion) {
+        while (true) {
+            Node child = node.child(direction);
+            if (child == null) {
+                if (node.version != nodeVersion) {
+                    return RETRY;
+                }
+                return FALSE;
+            }
+            int childDirection = Integer.compare(key, child.key);
+            if (childDirection == 0) {
+                return child.present ? TRUE : FALSE;
+            }
+            long childVersion = child.version;
+            if (isShrinkingOrUnlinked(childVersion)) {
+                child.waitUntilShrinkCompleted(childVersion);
+                if (node.version != nodeVersion) {
+                    return RETRY;
+                }
+            } else if (child != node.child(direction)) {
+                if (node.version != nodeVersion) {
+                    return RETRY;
+                }
+            } else {
+                if (node.version != nodeVersion) {
+                    return RETRY;
+                }
+                int result = attemptGet(key, child, childDirection, childVersion);
+                if (result != RETRY) {
+                    return result;
+                }
+            }
+        }
+    }
+
+    public final boolean insert(final int key) {
+        if (update(key, true)) {
+            count.increment();
+            return true;
+        }
+        return false;
+    }
+
+    public final boolean remove(final int key) {
+        if (update(key, false)) {
+            count.decrement();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean update(final int key, final boolean insert) {
+        while (true) {
+            Node right = rootHolder.right;
+            if (right == null) {
+                if (!insert) {
+                    return false;
+                }
+                if (attemptInsertIntoEmpty(key)) {
+                    return true;
+                }
+            } else {
+                long version = right.version;
+                if (isShrinkingOrUnlinked(version)) {
+                    right.waitUntilShrinkCompleted(version);
+                } else if (right == rootHolder.right) {
+                    int result = attemptUpdate(key, insert, rootHolder, right, version);
+                    if (result != RETRY) {
+                        return result == TRUE;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean attemptInsertIntoEmpty(final int key) {
+        synchronized (rootHolder) {
+            if (rootHolder.right != null) {
+                return false;
+            }
+            rootHolder.right = new Node(key, 1, true, rootHolder, null, null);
+            rootHolder.height = 2;
+            return true;
+        }
+    }
+
+    /**
+     * Insert or remove `key` in the subtree of `node`, which was valid at `nodeVersion`, whose parent is `parent`.
+     */
+    private int attemptUpdate(final int key, final boolean insert, Node parent, Node node, long nodeVersion) {
+        int direction = Integer.compare(key, node.key);
+        if (direction == 0) {
+            return attemptNodeUpdate(insert, parent, node);
+        }
+
+        while (true) {
+            Node child = node.child(direction);
+            if (node.version != nodeVersion) {
+                return RETRY;
+            }
+
+            if (child == null) {
+                if (!insert) {
+                    return FALSE;
+                }
+                Node damaged;
+                synchronized (node) {
+                    // with the lock held no rotation can move the key range of this empty child elsewhere
+                    if (node.version != nodeVersion) {
+                        return RETRY;
+                    }
+                    if (node.child(direction) != null) {
+                        // lost a race with a concurrent insert, retry from this node
+                        continue;
+                    }
+                    node.setChild(direction, new Node(key, 1, true, node, null, null));
+                    damaged = fixHeight(node);
+                }
+                fixHeightAndRebalance(damaged);
+                return TRUE;
+            }
+
+            long childVersion = child.version;
+            if (isShrinkingOrUnlinked(childVersion)) {
+                child.waitUntilShrinkCompleted(childVersion);
+            } else if (child == node.child(direction)) {
+                if (node.version != nodeVersion) {
+                    return RETRY;
+                }
+                int result = attemptUpdate(key, insert, node, child, childVersion);
+                if (result != RETRY) {
+                    return result;
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert or remove the key of `node` itself. A removal unlinks the node when it has at most one child,
+     * which also needs the parent's lock, otherwise it only turns the node into a routing node.
+     */
+    private int attemptNodeUpdate(final boolean insert, Node parent, Node node) {
+        if (!insert && !node.present) {
+            return FALSE;
+        }
+
+        if (!insert && (node.left == null || node.right == null)) {
+            Node damaged;
+            synchronized (parent) {
+                if (isUnlinked(parent.version) || node.parent != parent) {
+                    return RETRY;
+                }
+                synchronized (node) {
+                    if (!node.present) {
+                        return FALSE;
+                    }
+                    if (!attemptUnlink(parent, node)) {
+                        return RETRY;
+                    }
+                }
+                damaged = fixHeight(parent);
+            }
+            fixHeightAndRebalance(damaged);
+            return TRUE;
+        }
+
+        synchronized (node) {
+            if (isUnlinked(node.version)) {
+                return RETRY;
+            }
+            if (node.present == insert) {
+                return FALSE;
+            }
+            if (!insert && (node.left == null || node.right == null)) {
+                // a child disappeared meanwhile, the node can be unlinked instead
+                return RETRY;
+            }
+            node.present = insert;
+            return TRUE;
+        }
+    }
+
+    /**
+     * Splice out `node`, which has at most one child. Both `parent` and `node` must be locked.
+     */
+    private static boolean attemptUnlink(Node parent, Node node) {
+        Node parentLeft = parent.left;
+        Node parentRight = parent.right;
+        if (parentLeft != node && parentRight != node) {
+            return false;
+        }
+        Node left = node.left;
+        Node right = node.right;
+        if (left != null && right != null) {
+            return false;
+        }
+        Node splice = left != null ? left : right;
+        if (parentLeft == node) {
+            parent.left = splice;
+        } else {
+            parent.right = splice;
+        }
+        if (splice != null) {
+            splice.parent = parent;
+        }
+        node.version = UNLINKED;
+        node.present = false;
+        return true;
+    }
+
+    /**
+     * The repair `node` needs: UNLINK_REQUIRED for a routing node with at most one child,
+     * REBALANCE_REQUIRED if it is out of AVL balance, else its correct height if the stored one is stale.
+     */
+    private static int nodeCondition(Node node) {
+        Node left = node.left;
+        Node right = node.right;
+        if ((left == null || right == null) && !node.present) {
+            return UNLINK_REQUIRED;
+        }
+        int height = node.height;
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        int newHeight = 1 + Math.max(leftHeight, rightHeight);
+        int balance = leftHeight - rightHeight;
+        if (balance < -1 || balance > 1) {
+            return REBALANCE_REQUIRED;
+        }
+        return height != newHeight ? newHeight : NOTHING_REQUIRED;
+    }
+
+    /**
+     * Fix the height of the locked `node` if that is all it needs.
+     *
+     * @return the next node to repair: `node` itself if it needs more than a height fix, its parent if its
+     * height changed, or null
+     */
+    private static Node fixHeight(Node node) {
+        int condition = nodeCondition(node);
+        switch (condition) {
+            case REBALANCE_REQUIRED:
+            case UNLINK_REQUIRED:
+                return node;
+            case NOTHING_REQUIRED:
+                return null;
+            default:
+                node.height = condition;
+                return node.parent;
+        }
+    }
+
+    private void fixHeightAndRebalance(Node node) {
+        while (node != null && node.parent != null) {
+            int condition = nodeCondition(node);
+            if (condition == NOTHING_REQUIRED || isUnlinked(node.version)) {
+                return;
+            }
+            if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+                synchronized (node) {
+                    node = fixHeight(node);
+                }
+            } else {
+                Node parent = node.parent;
+                synchronized (parent) {
+                    if (!isUnlinked(parent.version) && node.parent == parent) {
+                        synchronized (node) {
+                            node = rebalance(parent, node);
+                        }
+                    }
+                    // otherwise retry with the new parent
+                }
+            }
+        }
+    }
+
+    /**
+     * Unlink, rotate or fix the height of `node`. Both `parent` and `node` must be locked.
+     *
+     * @return the next node to repair, or null
+     */
+    private Node rebalance(Node parent, Node node) {
+        Node left = node.left;
+        Node right = node.right;
+        if ((left == null || right == null) && !node.present) {
+            if (attemptUnlink(parent, node)) {
+                return fixHeight(parent);
+            }
+            return node;
+        }
+
+        int height = node.height;
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        int newHeight = 1 + Math.max(leftHeight, rightHeight);
+        int balance = leftHeight - rightHeight;
+        if (balance > 1) {
+            return rebalanceToRight(parent, node, left, rightHeight);
+        } else if (balance < -1) {
+            return rebalanceToLeft(parent, node, right, leftHeight);
+        } else if (newHeight != height) {
+            node.height = newHeight;
+            return fixHeight(parent);
+        } else {
+            return null;
+        }
+    }
+
+    private Node rebalanceToRight(Node parent, Node node, Node left, int rightHeight) {
+        synchronized (left) {
+            int leftHeight = left.height;
+            if (leftHeight - rightHeight <= 1) {
+                return node;
+            }
+            Node leftRight = left.right;
+            int leftLeftHeight = height(left.left);
+            int leftRightHeight = height(leftRight);
+            if (leftLeftHeight >= leftRightHeight) {
+                return rotateRight(parent, node, left, rightHeight, leftLeftHeight, leftRight, leftRightHeight);
+            }
+            synchronized (leftRight) {
+                // re-read under the lock, a single rotation may be enough after all
+                leftRightHeight = leftRight.height;
+                if (leftLeftHeight >= leftRightHeight) {
+                    return rotateRight(parent, node, left, rightHeight, leftLeftHeight, leftRight, leftRightHeight);
+                }
+                int leftRightLeftHeight = height(leftRight.left);
+                int leftBalance = leftLeftHeight - leftRightLeftHeight;
+                if (leftBalance >= -1 && leftBalance <= 1 && !((leftLeftHeight == 0 || leftRightLeftHeight == 0) && !left.present)) {
+                    return rotateRightOverLeft(parent, node, left, rightHeight, leftLeftHeight, leftRight, leftRightLeftHeight);
+                }
+            }
+            // a double rotation would leave `left` damaged, so fix it on its own first
+            return rebalanceToLeft(node, left, leftRight, leftLeftHeight);
+        }
+    }
+
+    private Node rebalanceToLeft(Node parent, Node node, Node right, int leftHeight) {
+        synchronized (right) {
+            int rightHeight = right.height;
+            if (leftHeight - rightHeight >= -1) {
+                return node;
+            }
+            Node rightLeft = right.left;
+            int rightLeftHeight = height(rightLeft);
+            int rightRightHeight = height(right.right);
+            if (rightRightHeight >= rightLeftHeight) {
+                return rotateLeft(parent, node, leftHeight, right, rightLeft, rightLeftHeight, rightRightHeight);
+            }
+            synchronized (rightLeft) {
+                rightLeftHeight = rightLeft.height;
+                if (rightRightHeight >= rightLeftHeight) {
+                    return rotateLeft(parent, node, leftHeight, right, rightLeft, rightLeftHeight, rightRightHeight);
+                }
+                int rightLeftRightHeight = height(rightLeft.right);
+                int rightBalance = rightRightHeight - rightLeftRightHeight;
+                if (rightBalance >= -1 && rightBalance <= 1 && !((rightRightHeight == 0 || rightLeftRightHeight == 0) && !right.present)) {
+                    return rotateLeftOverRight(parent, node, leftHeight, right, rightLeft, rightRightHeight, rightLeftRightHeight);
+                }
+            }
+            return rebalanceToRight(node, right, rightLeft, rightRightHeight);
+        }
+    }
+
+    /**
+     * Rotate `left` up over `node`. Only `node` shrinks, so only its version changes.
+     * The links are changed in an order that keeps every other node searchable throughout.
+     */
+    private Node rotateRight(Node parent, Node node, Node left, int rightHeight, int leftLeftHeight,
+                             Node leftRight, int leftRightHeight) {
+        long nodeVersion = node.version;
+        Node parentLeft = parent.left;
+        node.version = beginChange(nodeVersion);
+
+        node.left = leftRight;
+        if (leftRight != null) {
+            leftRight.parent = node;
+        }
+        left.right = node;
+        node.parent = left;
+        if (parentLeft == node) {
+            parent.left = left;
+        } else {
+            parent.right = left;
+        }
+        left.parent = parent;
+
+        int newNodeHeight = 1 + Math.max(leftRightHeight, rightHeight);
+        node.height = newNodeHeight;
+        left.height = 1 + Math.max(leftLeftHeight, newNodeHeight);
+
+        node.version = endChange(nodeVersion);
+
+        // `node` is now the deepest damaged node, repair as much as the held locks allow
+        int nodeBalance = leftRightHeight - rightHeight;
+        if (nodeBalance < -1 || nodeBalance > 1) {
+            return node;
+        }
+        if ((leftRight == null || rightHeight == 0) && !node.present) {
+            return node;
+        }
+        int leftBalance = leftLeftHeight - newNodeHeight;
+        if (leftBalance < -1 || leftBalance > 1) {
+            return left;
+        }
+        if (leftLeftHeight == 0 && !left.present) {
+            return left;
+        }
+        return fixHeight(parent);
+    }
+
+    private Node rotateLeft(Node parent, Node node, int leftHeight, Node right, Node rightLeft,
+                            int rightLeftHeight, int rightRightHeight) {
+        long nodeVersion = node.version;
+        Node parentLeft = parent.left;
+        node.version = beginChange(nodeVersion);
+
+        node.right = rightLeft;
+        if (rightLeft != null) {
+            rightLeft.parent = node;
+        }
+        right.left = node;
+        node.parent = right;
+        if (parentLeft == node) {
+            parent.left = right;
+        } else {
+            parent.right = right;
+        }
+        right.parent = parent;
+
+        int newNodeHeight = 1 + Math.max(leftHeight, rightLeftHeight);
+        node.height = newNodeHeight;
+        right.height = 1 + Math.max(newNodeHeight, rightRightHeight);
+
+        node.version = endChange(nodeVersion);
+
+        int nodeBalance = rightLeftHeight - leftHeight;
+        if (nodeBalance < -1 || nodeBalance > 1) {
+            return node;
+        }
+        if ((rightLeft == null || leftHeight == 0) && !node.present) {
+            return node;
+        }
+        int rightBalance = rightRightHeight - newNodeHeight;
+        if (rightBalance < -1 || rightBalance > 1) {
+            return right;
+        }
+        if (rightRightHeight == 0 && !right.present) {
+            return right;
+        }
+        return fixHeight(parent);
+    }
+
+    /**
+     * Double rotation that lifts `leftRight` over both `left` and `node`, which both shrink.
+     */
+    private Node rotateRightOverLeft(Node parent, Node node, Node left, int rightHeight, int leftLeftHeight,
+                                     Node leftRight, int leftRightLeftHeight) {
+        long nodeVersion = node.version;
+        long leftVersion = left.version;
+        Node parentLeft = parent.left;
+        Node leftRightLeft = leftRight.left;
+        Node leftRightRight = leftRight.right;
+        int leftRightRightHeight = height(leftRightRight);
+
+        node.version = beginChange(nodeVersion);
+        left.version = beginChange(leftVersion);
+
+        node.left = leftRightRight;
+        if (leftRightRight != null) {
+            leftRightRight.parent = node;
+        }
+        left.right = leftRightLeft;
+        if (leftRightLeft != null) {
+            leftRightLeft.parent = left;
+        }
+        leftRight.left = left;
+        left.parent = leftRight;
+        leftRight.right = node;
+        node.parent = leftRight;
+        if (parentLeft == node) {
+            parent.left = leftRight;
+        } else {
+            parent.right = leftRight;
+        }
+        leftRight.parent = parent;
+
+        int newNodeHeight = 1 + Math.max(leftRightRightHeight, rightHeight);
+        node.height = newNodeHeight;
+        int newLeftHeight = 1 + Math.max(leftLeftHeight, leftRightLeftHeight);
+        left.height = newLeftHeight;
+        leftRight.height = 1 + Math.max(newLeftHeight, newNodeHeight);
+
+        node.version = endChange(nodeVersion);
+        left.version = endChange(leftVersion);
+
+        int nodeBalance = leftRightRightHeight - rightHeight;
+        if (nodeBalance < -1 || nodeBalance > 1) {
+            return node;
+        }
+        if ((leftRightRight == null || rightHeight == 0) && !node.present) {
+            return node;
+        }
+        int leftRightBalance = newLeftHeight - newNodeHeight;
+        if (leftRightBalance < -1 || leftRightBalance > 1) {
+            return leftRight;
+        }
+        return fixHeight(parent);
+    }
+
+    private Node rotateLeftOverRight(Node parent, Node node, int leftHeight, Node right, Node rightLeft,
+                                     int rightRightHeight, int rightLeftRightHeight) {
+        long nodeVersion = node.version;
+        long rightVersion = right.version;
+        Node parentLeft = parent.left;
+        Node rightLeftLeft = rightLeft.left;
+        int rightLeftLeftHeight = height(rightLeftLeft);
+        Node rightLeftRight = rightLeft.right;
+
+        node.version = beginChange(nodeVersion);
+        right.version = beginChange(rightVersion);
+
+        node.right = rightLeftLeft;
+        if (rightLeftLeft != null) {
+            rightLeftLeft.parent = node;
+        }
+        right.left = rightLeftRight;
+        if (rightLeftRight != null) {
+            rightLeftRight.parent = right;
+        }
+        rightLeft.right = right;
+        right.parent = rightLeft;
+        rightLeft.left = node;
+        node.parent = rightLeft;
+        if (parentLeft == node) {
+            parent.left = rightLeft;
+        } else {
+            parent.right = rightLeft;
+        }
+        rightLeft.parent = parent;
+
+        int newNodeHeight = 1 + Math.max(leftHeight, rightLeftLeftHeight);
+        node.height = newNodeHeight;
+        int newRightHeight = 1 + Math.max(rightLeftRightHeight, rightRightHeight);
+        right.height = newRightHeight;
+        rightLeft.height = 1 + Math.max(newNodeHeight, newRightHeight);
+
+        node.version = endChange(nodeVersion);
+        right.version = endChange(rightVersion);
+
+        int nodeBalance = rightLeftLeftHeight - leftHeight;
+        if (nodeBalance < -1 || nodeBalance > 1) {
+            return node;
+        }
+        if ((rightLeftLeft == null || leftHeight == 0) && !node.present) {
+            return node;
+        }
+        int rightLeftBalance = newRightHeight - newNodeHeight;
+        if (rightLeftBalance < -1 || rightLeftBalance > 1) {
+            return rightLeft;
+        }
+        return fixHeight(parent);
+    }
+
+    public final void bulkLoad(int[] sortedKeys) {
+        load(sortedKeys, false);
+    }
+
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        load(sortedKeys, true);
+    }
+
+    /**
+     * The balanced subtree has its heights and parent links set by {@link #link}.
+     */
+    private void load(int[] sortedKeys, boolean parallel) {
+        Subtrees.checkAscending(sortedKeys);
+        publish(Subtrees.build(0, sortedKeys.length, null, (mid, left, right) -> link(sortedKeys[mid], left, right), parallel),
+                sortedKeys.length);
+    }
+
+    private void publish(Node root, int size) {
+        if (root == null) {
+            return;
+        }
+        synchronized (rootHolder) {
+            if (rootHolder.right != null) {
+                throw new IllegalStateException("bulk loading requires an empty tree");
+            }
+            root.parent = rootHolder;
+            rootHolder.right = root;
+            rootHolder.height = root.height + 1;
+            count.add(size);
+        }
+    }
+
+    private static Node link(int key, Node left, Node right) {
+        Node node = new Node(key, 1 + Math.max(height(left), height(right)), true, null, left, right);
+        if (left != null) {
+            left.parent = node;
+        }
+        if (right != null) {
+            right.parent = node;
+        }
+        return node;
+    }
+
+    public final int rangeCount(int lo, int hi) {
+        return new RangeCursor(lo, hi).count();
+    }
+
+    public final void rangeScan(int lo, int hi, IntConsumer consumer) {
+        new RangeCursor(lo, hi).forEachRemaining(consumer);
+    }
+
+    public final PrimitiveIterator.OfInt iterator() {
+        return new RangeCursor(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * An in-order walk with an explicit stack of the nodes whose key and right subtree are still to be visited,
+     * each with the version it had when it was pushed. Keys only leave a subtree when its root shrinks,
+     * so a node whose version changed makes the walk descend again from the root to the first key after the last
+     * one it handled, and the nodes that were not moved are simply walked again.
+     */
+    final class RangeCursor extends AscendingCursor {
+        private Node[] nodes = new Node[32];
+        private long[] versions = new long[32];
+        private int depth;
+        private long from; // the keys below `from` have been handled
+        private boolean restart = true;
+
+        RangeCursor(int lo, int hi) {
+            super(lo, hi);
+            this.from = lo;
+        }
+
+        private void push(Node node, long version) {
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * depth);
+                versions = Arrays.copyOf(versions, 2 * depth);
+            }
+            nodes[depth] = node;
+            versions[depth++] = version;
+        }
+
+        /**
+         * Push the nodes with keys of at least `from` on the search path for `from` below `node`,
+         * checking every step like {@link #attemptGet}. Returns false if a node shrank on the way.
+         */
+        private boolean pushPath(Node node) {
+            while (node != null) {
+                long version = node.version;
+                if (isShrinkingOrUnlinked(version)) {
+                    node.waitUntilShrinkCompleted(version);
+                    return false;
+                }
+                Node next;
+                if (node.key >= from) {
+                    push(node, version);
+                    next = node.left;
+                } else {
+                    next = node.right;
+                }
+                if (node.version != version) {
+                    return false;
+                }
+                node = next;
+            }
+            return true;
+        }
+
+        boolean advance() {
+            while (true) {
+                if (restart) {
+                    depth = 0;
+                    restart = !pushPath(rootHolder.right);
+                    continue;
+                }
+                if (depth == 0) {
+                    return false;
+                }
+                Node node = nodes[--depth];
+                long version = versions[depth];
+                nodes[depth] = null;
+                if (node.key > hi) {
+                    return false;
+                }
+                boolean present = node.present;
+                Node right = node.right;
+                if (node.version != version || !pushPath(right)) {
+                    restart = true;
+                    continue;
+                }
+                from = (long) node.key + 1;
+                if (present) {
+                    candidate = node.key;
+                    return true;
+                }
+            }
+        }
+    }
+
+    public BST.Node getRoot() {
+        throw new UnsupportedOperationException(getName() + " has its own node type and no BST.Node root");
+    }
+
+    public TreeSnapshot snapshot() {
+        throw new UnsupportedOperationException(getName() + " has unversioned nodes");
+    }
+
+    public String getName() {
+        return "RelaxedAVL";
+    }
+
+    public final int size() {
+        return (int) sum(false);
+    }
+
+    public final int approximateSize() {
+        return count.intValue();
+    }
+
+    public final long getKeysum() {
+        return sum(true);
+    }
+
+    /**
+     * Sums over the present nodes: their keys, or 1 per node to count them.
+     * The tree is balanced, so a plain iterative walk is enough.
+     */
+    private long sum(boolean sumKeys) {
+        long sum = 0;
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        Node root = rootHolder.right;
+        if (root != null) {
+            stack.push(root);
+        }
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node.present) {
+                sum += sumKeys ? node.key : 1;
+            }
+            if (node.left != null) {
+                stack.push(node.left);
+            }
+            if (node.right != null) {
+                stack.push(node.right);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,108 @@
+package algorithms;
+
+/**
+ * Base of the in-order walks of the trees that relocate successors, with an explicit stack of the nodes whose key
+ * and right subtree are still to be visited. Splicing out a node with at most one child leaves that node's links
+ * intact, so a walk holding it still reaches the rest of its subtree. A successor relocation can hide a key, so
+ * whenever one has started since the walk descended, the walk descends again from the root to the first key after
+ * the last one it handled. If relocations keep overlapping for OPTIMISTIC_ATTEMPTS descents, the next key is found
+ * by {@link #ceiling} instead, so constant churn cannot starve the walk.
+ * Subclasses hold the stack and the current node, in whatever form their nodes take.
+ */
+abstract class RelocatingCursor extends AscendingCursor {
+    // descents that wait for overlapping relocations before the walk falls back to a double traversal
+    private static final int OPTIMISTIC_ATTEMPTS = 16;
+
+    /**
+     * The keys below `from` have been handled.
+     */
+    long from;
+    private boolean handledMax; // `from` cannot go past Long.MAX_VALUE
+    private long relocations;
+    private boolean restart = true;
+
+    RelocatingCursor(long lo, long hi) {
+        super(lo, hi);
+        this.from = lo;
+    }
+
+    abstract long relocationsStarted();
+
+    abstract long relocationsFinished();
+
+    /**
+     * Clear the stack and push the nodes of the search path for `from` from the root that have keys of at least `from`.
+     */
+    abstract void pushRoot();
+
+    /**
+     * Pop the next node off the stack and make it the current one.
+     *
+     * @return false if the stack was empty
+     */
+    abstract boolean pop();
+
+    /**
+     * Push the nodes of the search path for `from` in the right subtree of the current node.
+     */
+    abstract void pushRight();
+
+    /**
+     * Make the unmarked node with the least key of at least `from` the current one, without waiting for relocations:
+     * the traversal is repeated until two in a row end at the same node.
+     *
+     * @return false if there is no such node
+     */
+    abstract boolean ceiling();
+
+    abstract long currentKey();
+
+    abstract boolean currentMarked();
+
+    /**
+     * Returns false if relocations kept overlapping.
+     */
+    private boolean descend() {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            final long finished = relocationsFinished();
+            if (relocationsStarted() == finished) {
+                relocations = finished;
+                pushRoot();
+                restart = false;
+                return true;
+            }
+            Thread.yield();
+        }
+        return false;
+    }
+
+    boolean advance() {
+        while (!handledMax) {
+            final boolean fallback = restart && !descend();
+            if (fallback ? !ceiling() : !pop()) {
+                return false;
+            }
+            final long key = currentKey();
+            if (key > hi) {
+                return false;
+            }
+            if (!fallback) {
+                pushRight();
+                if (relocationsStarted() != relocations) {
+                    restart = true;
+                    continue;
+                }
+            }
+            if (key == Long.MAX_VALUE) {
+                handledMax = true;
+            } else {
+                from = key + 1;
+            }
+            if (!currentMarked()) {
+                candidate = key;
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package algorithms;
+
+import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Baseline: the JDK's lock-free skip list, with boxed keys.
+ */
+public class SkipListSet implements BSTInterface {
+    private final ConcurrentSkipListSet<Integer> set = new ConcurrentSkipListSet<>();
+
+    public final boolean contains(final int key) {
+        return set.contains(key);
+    }
+
+    public final boolean insert(final int key) {
+        return set.add(key);
+    }
+
+    public final boolean remove(final int key) {
+        return set.remove(key);
+    }
+
+    public final int size() {
+        return set.size();
+    }
+
+    /**
+     * The skip list only has its O(n) traversal.
+     */
+    public final int approximateSize() {
+        return set.size();
+    }
+
+    public String getName() {
+        return "SkipListSet";
+    }
+
+    public final long getKeysum() {
+        long sum = 0;
+        for (int key : set) {
+            sum += key;
+        }
+        return sum;
+    }
+
+    /**
+     * Counts the keys one by one, like the size of any sub-set of the skip list.
+     */
+    public final int rangeCount(int lo, int hi) {
+        return lo > hi ? 0 : set.subSet(lo, true, hi, true).size();
+    }
+
+    public final void rangeScan(int lo, int hi, IntConsumer consumer) {
+        if (lo > hi) {
+            return;
+        }
+        for (int key : set.subSet(lo, true, hi, true)) {
+            consumer.accept(key);
+        }
+    }
+
+    public final PrimitiveIterator.OfInt iterator() {
+        final Iterator<Integer> keys = set.iterator();
+        return new PrimitiveIterator.OfInt() {
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public int nextInt() {
+                return keys.next();
+            }
+        };
+    }
+
+    public BST.Node getRoot() {
+        throw new UnsupportedOperationException(getName() + " is not a tree");
+    }
+
+    public TreeSnapshot snapshot() {
+        throw new UnsupportedOperationException(getName() + " would have to copy the whole set");
+    }
+
+    /**
+     * Adds the keys one by one, so unlike the trees the load is not published in one step.
+     * The harness only bulk-loads before a trial starts, where that makes no difference.
+     */
+    public final void bulkLoad(int[] sortedKeys) {
+        if (!set.isEmpty()) {
+            throw new IllegalStateException("bulk loading requires an empty set");
+        }
+        Subtrees.checkAscending(sortedKeys);
+        for (int key : sortedKeys) {
+            set.add(key);
+        }
+    }
+
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        bulkLoad(sortedKeys);
+    }
+}
@@ -0,0 +1,182 @@
+package algorithms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+
+/**
+ * The parts of bulk loading and whole-tree sums that do not depend on the node type of a tree: the check of the
+ * sorted input, the balanced split of an index range and the fork/join walks. Each tree only says how a node is
+ * made, or what its children and weight are.
+ */
+final class Subtrees {
+    private static final int SEQUENTIAL_THRESHOLD = 1 << 13; // keys below which a fork/join build stops forking
+    private static final int MAX_SURPLUS_TASKS = 3; // queued tasks above which a fork/join sum stops forking
+
+    private Subtrees() {
+    }
+
+    /**
+     * Makes the node for the key at index `mid` over its two subtrees.
+     */
+    interface Linker<N> {
+        N link(int mid, N left, N right);
+    }
+
+    /**
+     * The children of the nodes of a tree, null where there are none, and what a node adds to a sum.
+     */
+    interface Shape<N> {
+        N left(N node);
+
+        N right(N node);
+
+        /**
+         * The key of the node, or 1 to count it, if it holds a key; 0 otherwise.
+         */
+        long weight(N node, boolean sumKeys);
+    }
+
+    /**
+     * Sums over the nodes of the subtree at `root`, null for none: their keys, or 1 per node to count them.
+     * The subtree is walked iteratively with an explicit stack, so degenerate trees cannot overflow the call stack,
+     * and left subtrees are handed to other fork/join workers while they are short of work.
+     */
+    static <N> long sum(N root, Shape<N> shape, boolean sumKeys) {
+        return ForkJoinPool.commonPool().invoke(new Sum<>(shape, root, sumKeys));
+    }
+
+    static void checkAscending(int[] sortedKeys) {
+        for (int i = 1; i < sortedKeys.length; i++) {
+            if (sortedKeys[i - 1] >= sortedKeys[i]) {
+                throw new IllegalArgumentException("keys must be strictly ascending, got " + sortedKeys[i - 1] + " before " + sortedKeys[i]);
+            }
+        }
+    }
+
+    static void checkAscending(long[] sortedKeys) {
+        for (int i = 1; i < sortedKeys.length; i++) {
+            if (sortedKeys[i - 1] >= sortedKeys[i]) {
+                throw new IllegalArgumentException("keys must be strictly ascending, got " + sortedKeys[i - 1] + " before " + sortedKeys[i]);
+            }
+        }
+    }
+
+    /**
+     * The balanced subtree with a node per index of [from, to), rooted at the middle index, or `empty` for an empty
+     * range. With `parallel`, both halves of large ranges are built by separate tasks on the common fork/join pool;
+     * the subtree is then only published by the caller after the tasks have been joined.
+     */
+    static <N> N build(int from, int to, N empty, Linker<N> linker, boolean parallel) {
+        return run(new Build<>(linker, null, empty, from, to), parallel);
+    }
+
+    /**
+     * The balanced leaf-oriented subtree over the leaves of [from, to], made by `leaf`, in which every internal node is
+     * linked at the smallest leaf index of its right subtree.
+     */
+    static <N> N buildLeaves(int from, int to, IntFunction<N> leaf, Linker<N> linker, boolean parallel) {
+        return run(new Build<>(linker, leaf, null, from, to), parallel);
+    }
+
+    private static <N> N run(Build<N> build, boolean parallel) {
+        return parallel ? ForkJoinPool.commonPool().invoke(build) : build.buildRange(build.from, build.to);
+    }
+
+    private static final class Sum<N> extends RecursiveTask<Long> {
+        private final Shape<N> shape;
+        private final N root;
+        private final boolean sumKeys;
+
+        Sum(Shape<N> shape, N root, boolean sumKeys) {
+            this.shape = shape;
+            this.root = root;
+            this.sumKeys = sumKeys;
+        }
+
+        @Override
+        protected Long compute() {
+            long sum = 0;
+            ArrayList<Sum<N>> forked = new ArrayList<>();
+            ArrayDeque<N> stack = new ArrayDeque<>();
+            if (root != null) {
+                stack.push(root);
+            }
+            while (!stack.isEmpty()) {
+                N node = stack.pop();
+                sum += shape.weight(node, sumKeys);
+                N left = shape.left(node);
+                N right = shape.right(node);
+                if (right != null) {
+                    stack.push(right);
+                }
+                if (left != null) {
+                    if (right != null && getSurplusQueuedTaskCount() < MAX_SURPLUS_TASKS) {
+                        Sum<N> task = new Sum<>(shape, left, sumKeys);
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        stack.push(left);
+                    }
+                }
+            }
+            for (Sum<N> task : forked) {
+                sum += task.join();
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * A node per index of [from, to) if `leaf` is null, leaves [from, to] otherwise.
+     */
+    private static final class Build<N> extends RecursiveTask<N> {
+        private final Linker<N> linker;
+        private final IntFunction<N> leaf;
+        private final N empty;
+        private final int from;
+        private final int to;
+
+        Build(Linker<N> linker, IntFunction<N> leaf, N empty, int from, int to) {
+            this.linker = linker;
+            this.leaf = leaf;
+            this.empty = empty;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected N compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                return buildRange(from, to);
+            }
+            int mid = middle(from, to);
+            Build<N> left = new Build<>(linker, leaf, empty, from, leftEnd(mid));
+            Build<N> right = new Build<>(linker, leaf, empty, rightStart(mid), to);
+            invokeAll(left, right);
+            return linker.link(mid, left.getRawResult(), right.getRawResult());
+        }
+
+        N buildRange(int from, int to) {
+            if (leaf == null ? from >= to : from == to) {
+                return leaf == null ? empty : leaf.apply(from);
+            }
+            int mid = middle(from, to);
+            return linker.link(mid, buildRange(from, leftEnd(mid)), buildRange(rightStart(mid), to));
+        }
+
+        private int middle(int from, int to) {
+            return leaf == null ? (from + to) >>> 1 : (from + to + 1) >>> 1;
+        }
+
+        private int leftEnd(int mid) {
+            return leaf == null ? mid : mid - 1;
+        }
+
+        private int rightStart(int mid) {
+            return leaf == null ? mid + 1 : mid;
+        }
+    }
+}
@@ -0,0 +1,793 @@
+package algorithms;
+
+import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.util.ArrayDeque;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * {@link BST} with versioned child pointers, so that range queries, iteration and size are linearizable.
+ * The versioning follows Wei et al., "Constant-Time Snapshots with Applications to Concurrent Data Structures"
+ * (PPoPP 2021).
+ * <p>
+ * Every child pointer is a list of versions, newest first, each stamped with a value of a global clock.
+ * A snapshot ticks the clock and sees, for every pointer, the newest version stamped at or before its tick.
+ * All the pointer writes of one update share a {@link Stamp}, which the update takes from the clock after its
+ * last write and before it releases its locks, so a snapshot sees all of an update or none of it.
+ * Snapshot readers never wait: one that finds an update still unstamped raises the update's floor above its own
+ * tick, so the update stamps itself after the snapshot. Point operations are the BST algorithm with monitor
+ * locks on the newest versions; they wait for an unstamped update they run into, so that no update is stamped
+ * before one it depends on and no search returns a result that a later snapshot could contradict.
+ * Versions that no snapshot can still see are cut off as new ones are written.
+ * The same ticks back {@link #snapshot()}, which is O(1) and costs writers only the versions the view keeps alive.
+ */
+public class VersionedBST implements BSTInterface {
+
+    /**
+     * The stamp shared by the versions one update writes. Final once non-negative. While the update runs it is
+     * -(floor + 1), where floor is the smallest value it may take, raised by snapshots that must not see it.
+     */
+    static final class Stamp {
+        volatile long value;
+
+        Stamp(long value) {
+            this.value = value;
+        }
+    }
+
+    static final class Version {
+        final Node node;
+        final Stamp stamp;
+        volatile Version older;
+
+        Version(Node node, Stamp stamp, Version older) {
+            this.node = node;
+            this.stamp = stamp;
+            this.older = older;
+        }
+    }
+
+    static final class Node {
+        final int key; // key is immutable
+        volatile Version left;
+        volatile Version right;
+        /**
+         * The stamp of the update that removed the node, null while it is in the tree.
+         */
+        volatile Stamp removed;
+
+        Node(int key, Node left, Node right) {
+            this.key = key;
+            this.left = left == null ? EMPTY : new Version(left, INITIAL, null);
+            this.right = right == null ? EMPTY : new Version(right, INITIAL, null);
+        }
+
+        boolean isMarked() {
+            return removed != null;
+        }
+
+        Version version(boolean isRight) {
+            return isRight ? right : left;
+        }
+
+        /**
+         * The newest child. Only for threads holding the node's lock, under which no version of it is unstamped.
+         */
+        Node child(boolean isRight) {
+            return (isRight ? right : left).node;
+        }
+    }
+
+    /**
+     * A registered snapshot. `announced` is read from the clock before the snapshot ticks it,
+     * so the versions cut off below the smallest announced value are never needed by a snapshot.
+     */
+    static final class Snapshot {
+        final long announced;
+        long time;
+
+        Snapshot(long announced) {
+            this.announced = announced;
+        }
+    }
+
+    static final class NodePair {
+        Node parent;
+        Node current;
+        boolean isRight;
+
+        void set(Node parent, Node current, boolean isRight) {
+            this.parent = parent;
+            this.current = current;
+            this.isRight = isRight;
+        }
+    }
+
+    static final class Cursor {
+        final NodePair search = new NodePair();
+        final NodePair successor = new NodePair();
+        final NodePair nextSuccessor = new NodePair();
+        final NodePair check = new NodePair();
+        final NodePair replacement = new NodePair();
+        int updates; // since the horizon was last refreshed by this thread
+    }
+
+    private static final VarHandle STAMP;
+
+    static {
+        try {
+            STAMP = MethodHandles.lookup().findVarHandle(Stamp.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final long PENDING = -1;
+    private static final Stamp INITIAL = new Stamp(0);
+    private static final Version EMPTY = new Version(null, INITIAL, null);
+    private static final int SPIN_COUNT = 100;
+    private static final int HORIZON_INTERVAL = 1 << 10;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    // results of an update attempt made under the locks
+    private static final int RETRY = 0;
+    private static final int FAILED = 1;
+    private static final int DONE = 2;
+
+    private final Node head = new Node(Integer.MIN_VALUE, null, null);
+    private final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+    private final AtomicLong relocationsStarted = new AtomicLong();
+    private final AtomicLong relocationsFinished = new AtomicLong();
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong clock = new AtomicLong();
+    private final Set<Snapshot> snapshots = ConcurrentHashMap.newKeySet();
+    /**
+     * No snapshot is older than this, so versions older than the newest one stamped at or before it can go.
+     */
+    private volatile long horizon;
+
+    // stamps and versions
+
+    private static void awaitStamp(Stamp stamp) {
+        for (int tries = 0; stamp.value < 0; tries++) {
+            if (tries < SPIN_COUNT) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * The newest child behind `version`, once the update that wrote it is stamped.
+     */
+    private static Node await(Version version) {
+        Stamp stamp = version.stamp;
+        if (stamp.value < 0) {
+            awaitStamp(stamp);
+        }
+        return version.node;
+    }
+
+    /**
+     * Whether a snapshot taken at `time` sees the versions stamped with `stamp`.
+     * An unstamped update is pushed after the snapshot instead of being waited for.
+     */
+    private static boolean isVisibleAt(Stamp stamp, long time) {
+        while (true) {
+            long value = stamp.value;
+            if (value >= 0) {
+                return value <= time;
+            }
+            if (-value - 1 > time || STAMP.compareAndSet(stamp, value, -(time + 1) - 1)) {
+                return false;
+            }
+        }
+    }
+
+    private static Node childAt(Version version, long time) {
+        for (; version != null; version = version.older) {
+            if (isVisibleAt(version.stamp, time)) {
+                return version.node;
+            }
+        }
+        return null; // unreachable: a version visible at every live snapshot time is never cut off
+    }
+
+    private void finish(Stamp stamp) {
+        while (true) {
+            long value = stamp.value;
+            long stampValue = Math.max(clock.get(), -value - 1);
+            if (STAMP.compareAndSet(stamp, value, stampValue)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write a new newest version of a child pointer of `parent`, whose lock the caller holds.
+     */
+    private void link(Node parent, Node child, boolean isRight, Stamp stamp) {
+        Version version = new Version(child, stamp, parent.version(isRight));
+        if (isRight) {
+            parent.right = version;
+        } else {
+            parent.left = version;
+        }
+        final long horizon = this.horizon;
+        for (Version older = version.older; older != null; older = older.older) {
+            long value = older.stamp.value;
+            if (value >= 0 && value <= horizon) {
+                older.older = null;
+                return;
+            }
+        }
+    }
+
+    private void refreshHorizon() {
+        long horizon = clock.get();
+        for (Snapshot snapshot : snapshots) {
+            horizon = Math.min(horizon, snapshot.announced);
+        }
+        this.horizon = horizon;
+    }
+
+    private void countUpdate(Cursor cursor) {
+        if (++cursor.updates == HORIZON_INTERVAL) {
+            cursor.updates = 0;
+            refreshHorizon();
+        }
+    }
+
+    Snapshot openSnapshot() {
+        Snapshot snapshot = new Snapshot(clock.get());
+        snapshots.add(snapshot);
+        long time = clock.get();
+        clock.compareAndSet(time, time + 1);
+        snapshot.time = time;
+        return snapshot;
+    }
+
+    void closeSnapshot(Snapshot snapshot) {
+        snapshots.remove(snapshot);
+    }
+
+    // the BST algorithm on the newest versions
+
+    private boolean validate(NodePair result) {
+        Node pred = result.parent;
+        Node curr = result.current;
+        return !pred.isMarked() && (curr == null || !curr.isMarked()) && pred.child(result.isRight) == curr;
+    }
+
+    /**
+     * See {@link BST}: whether the parent of the result is unmarked and still links to the current node, checked under
+     * the parent's lock before the current node is locked, so that locks are only taken top-down along real links.
+     */
+    private boolean isLinked(NodePair result) {
+        Node pred = result.parent;
+        return !pred.isMarked() && pred.child(result.isRight) == result.current;
+    }
+
+    private void findKey(final int key, final NodePair result) {
+        Node previousParent = null;
+
+        while (true) {
+            findKeyOnce(key, result);
+            if (result.parent == previousParent || result.current != null) {
+                return;
+            }
+
+            previousParent = result.parent;
+        }
+    }
+
+    private void findKeyOnce(final int key, final NodePair result) {
+        Node parent = head;
+        Node curr = await(head.right);
+        boolean isRight = true;
+        while (curr != null && curr.key != key) {
+            parent = curr;
+            isRight = curr.key < key;
+            curr = await(curr.version(isRight));
+        }
+        result.set(parent, curr, isRight);
+    }
+
+    private static boolean isPresent(Node node) {
+        Stamp removed = node.removed;
+        if (removed == null) {
+            return true;
+        }
+        awaitStamp(removed);
+        return false;
+    }
+
+    /**
+     * See {@link BST#contains}.
+     */
+    public final boolean contains(final int key) {
+        final long relocations = relocationsFinished.get();
+        if (relocationsStarted.get() == relocations) {
+            Node curr = await(head.right);
+            while (curr != null && curr.key != key) {
+                curr = await(curr.version(curr.key < key));
+            }
+            if (curr != null) {
+                return isPresent(curr);
+            }
+            if (relocationsStarted.get() == relocations) {
+                return false;
+            }
+        }
+        final NodePair pair = cursors.get().check;
+        findKey(key, pair);
+        return pair.current != null && isPresent(pair.current);
+    }
+
+    public final boolean insert(final int key) {
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        while (true) {
+            findKey(key, pair);
+            Node pred = pair.parent;
+            Node curr = pair.current;
+            int result;
+            synchronized (pred) {
+                if (!isLinked(pair)) {
+                    result = RETRY;
+                } else if (curr == null) {
+                    result = insertLocked(pair, key);
+                } else {
+                    synchronized (curr) {
+                        result = insertLocked(pair, key);
+                    }
+                }
+            }
+            if (result != RETRY) {
+                if (result == DONE) {
+                    countUpdate(cursor);
+                }
+                return result == DONE;
+            }
+        }
+    }
+
+    private int insertLocked(NodePair pair, final int key) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        if (pair.current != null) {
+            return FAILED;
+        }
+        Node node = new Node(key, null, null);
+        Stamp stamp = new Stamp(PENDING);
+        // nobody may lock the new node before it is stamped, or an update below it could be stamped first
+        synchronized (node) {
+            link(pair.parent, node, pair.isRight, stamp);
+            finish(stamp);
+        }
+        count.increment();
+        return DONE;
+    }
+
+    public final boolean remove(final int key) {
+        final Cursor cursor = cursors.get();
+        final NodePair pair = cursor.search;
+        while (true) {
+            findKey(key, pair);
+            Node pred = pair.parent;
+            Node curr = pair.current;
+            int result;
+            synchronized (pred) {
+                if (!isLinked(pair)) {
+                    result = RETRY;
+                } else if (curr == null) {
+                    result = removeLocked(pair, cursor);
+                } else {
+                    synchronized (curr) {
+                        result = removeLocked(pair, cursor);
+                    }
+                }
+            }
+            if (result != RETRY) {
+                if (result == DONE) {
+                    countUpdate(cursor);
+                }
+                return result == DONE;
+            }
+        }
+    }
+
+    private int removeLocked(NodePair pair, Cursor cursor) {
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        Node curr = pair.current;
+        if (curr == null) {
+            return FAILED;
+        }
+        Node left = curr.child(false);
+        Node right = curr.child(true);
+        if (left != null && right != null) {
+            removeBinaryNode(pair, cursor);
+        } else {
+            Stamp stamp = new Stamp(PENDING);
+            curr.removed = stamp;
+            link(pair.parent, left != null ? left : right, pair.isRight, stamp);
+            finish(stamp);
+        }
+        count.decrement();
+        return DONE;
+    }
+
+    /**
+     * Called holding the lock of `base`, so its right child is stamped, but the nodes below are not locked.
+     */
+    private void findSuccessor(Node base, NodePair result) {
+        Node parent = base;
+        Node curr = base.child(true);
+        boolean isRight = true;
+        Node next = await(curr.left);
+        while (next != null) {
+            parent = curr;
+            curr = next;
+            next = await(curr.left);
+            isRight = false;
+        }
+        result.set(parent, curr, isRight);
+    }
+
+    private int relocateSuccessor(NodePair toRemove, NodePair pair, Node base, Cursor cursor) {
+        synchronized (pair.parent) {
+            if (!isLinked(pair)) {
+                return RETRY;
+            }
+            synchronized (pair.current) {
+                return relocateSuccessorLocked(toRemove, pair, base, cursor);
+            }
+        }
+    }
+
+    /**
+     * See {@link BST}. The writes of a relocation all happen here, under every lock the removal holds,
+     * and share one stamp.
+     */
+    private int relocateSuccessorLocked(NodePair toRemove, NodePair pair, Node base, Cursor cursor) {
+        Node pred = pair.parent;
+        Node curr = pair.current;
+        NodePair secondPair = cursor.check;
+        if (!validate(pair)) {
+            return RETRY;
+        }
+        findSuccessor(base, secondPair);
+        if (secondPair.current != curr || secondPair.parent != pred || secondPair.isRight != pair.isRight || curr.child(false) != null) {
+            return RETRY;
+        }
+
+        if (base == toRemove.current) {
+            if (curr.child(true) == null) {
+                Stamp stamp = new Stamp(PENDING);
+                relocationsStarted.incrementAndGet();
+                removeAndReplaceWithLeaf(toRemove, pair, stamp);
+                finish(stamp);
+                relocationsFinished.incrementAndGet();
+            } else {
+                removeWithNonLeafSuccessor(toRemove, pair, cursor);
+            }
+        } else {
+            NodePair succ = cursor.successor;
+            Stamp stamp = new Stamp(PENDING);
+            relocationsStarted.incrementAndGet();
+            link(curr, succ.current, false, stamp);
+            link(succ.parent, succ.current.child(true), succ.isRight, stamp);
+            link(succ.current, null, true, stamp);
+            cursor.replacement.set(curr, succ.current, false);
+            removeAndReplaceWithLeaf(toRemove, cursor.replacement, stamp);
+            finish(stamp);
+            relocationsFinished.incrementAndGet();
+        }
+        return DONE;
+    }
+
+    private void removeBinaryNode(NodePair toRemove, Cursor cursor) {
+        final NodePair pair = cursor.successor;
+        do {
+            findSuccessor(toRemove.current, pair);
+        } while (relocateSuccessor(toRemove, pair, toRemove.current, cursor) == RETRY);
+    }
+
+    private void removeWithNonLeafSuccessor(NodePair toRemove, NodePair succ, Cursor cursor) {
+        final NodePair pair = cursor.nextSuccessor;
+        do {
+            findSuccessor(succ.current, pair);
+        } while (relocateSuccessor(toRemove, pair, succ.current, cursor) == RETRY);
+    }
+
+    private void removeAndReplaceWithLeaf(NodePair toRemove, NodePair replacementLeaf, Stamp stamp) {
+        Node removed = toRemove.current;
+        Node replacement = replacementLeaf.current;
+        removed.removed = stamp;
+        if (removed.child(true) != replacement) {
+            link(replacement, removed.child(true), true, stamp);
+        }
+        link(replacement, removed.child(false), false, stamp);
+        link(toRemove.parent, replacement, toRemove.isRight, stamp);
+        link(replacementLeaf.parent, null, replacementLeaf.isRight, stamp);
+    }
+
+    // bulk loading
+
+    public final void bulkLoad(int[] sortedKeys) {
+        Subtrees.checkAscending(sortedKeys);
+        Node root = Subtrees.build(0, sortedKeys.length, null, (mid, left, right) -> new Node(sortedKeys[mid], left, right), false);
+        if (root == null) {
+            return;
+        }
+        synchronized (head) {
+            if (head.child(true) != null) {
+                throw new IllegalStateException("bulk loading requires an empty tree");
+            }
+            Stamp stamp = new Stamp(PENDING);
+            link(head, root, true, stamp);
+            finish(stamp);
+            count.add(sortedKeys.length);
+        }
+    }
+
+    /**
+     * Builds sequentially, the build is cheap next to versioning the whole tree afterwards.
+     */
+    public final void bulkLoadParallel(int[] sortedKeys) {
+        bulkLoad(sortedKeys);
+    }
+
+    // snapshot reads
+
+    /**
+     * Linearizable: the count of one snapshot.
+     */
+    public final int rangeCount(int lo, int hi) {
+        Snapshot snapshot = openSnapshot();
+        try {
+            return new SnapshotCursor(snapshot.time, lo, hi).count();
+        } finally {
+            closeSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Linearizable: the keys of one snapshot.
+     */
+    public final void rangeScan(int lo, int hi, IntConsumer consumer) {
+        Snapshot snapshot = openSnapshot();
+        try {
+            new SnapshotCursor(snapshot.time, lo, hi).forEachRemaining(consumer);
+        } finally {
+            closeSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Linearizable: the keys of the snapshot taken by this call. The snapshot is released when the iteration
+     * ends or, if it is abandoned, when the iterator is garbage collected.
+     */
+    public final PrimitiveIterator.OfInt iterator() {
+        Snapshot snapshot = openSnapshot();
+        SnapshotIterator iterator = new SnapshotIterator(snapshot.time);
+        iterator.release = CLEANER.register(iterator, new Release(snapshots, snapshot));
+        return iterator;
+    }
+
+    /**
+     * Unregisters a snapshot. Static so that it does not keep the iterator it cleans up after reachable.
+     */
+    private static final class Release implements Runnable {
+        private final Set<Snapshot> snapshots;
+        private final Snapshot snapshot;
+
+        Release(Set<Snapshot> snapshots, Snapshot snapshot) {
+            this.snapshots = snapshots;
+            this.snapshot = snapshot;
+        }
+
+        public void run() {
+            snapshots.remove(snapshot);
+        }
+    }
+
+    final class SnapshotIterator extends SnapshotCursor {
+        Cleaner.Cleanable release;
+
+        SnapshotIterator(long time) {
+            super(time, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        boolean advance() {
+            if (super.advance()) {
+                return true;
+            }
+            release.clean();
+            return false;
+        }
+    }
+
+    /**
+     * An in-order walk of the tree as it was at `time`. Nothing it reads can change, so it never restarts.
+     */
+    class SnapshotCursor extends AscendingCursor {
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+        private final long time;
+
+        SnapshotCursor(long time, int lo, int hi) {
+            super(lo, hi);
+            this.time = time;
+            pushPath(childAt(head.right, time));
+        }
+
+        private void pushPath(Node node) {
+            while (node != null) {
+                if (node.key >= lo) {
+                    stack.push(node);
+                    node = childAt(node.left, time);
+                } else {
+                    node = childAt(node.right, time);
+                }
+            }
+        }
+
+        boolean advance() {
+            Node node = stack.poll();
+            if (node == null || node.key > hi) {
+                return false;
+            }
+            pushPath(childAt(node.right, time));
+            candidate = node.key;
+            return true;
+        }
+    }
+
+    /**
+     * O(1): a registered tick of the clock, read through the version lists. The view and the writers never wait
+     * for each other; the writers only keep the versions the view can see until it is closed.
+     */
+    public final TreeSnapshot snapshot() {
+        Snapshot snapshot = openSnapshot();
+        View view = new View(snapshot.time);
+        view.release = CLEANER.register(view, new Release(snapshots, snapshot));
+        return view;
+    }
+
+    final class View implements TreeSnapshot {
+        private final long time;
+        private Cleaner.Cleanable release;
+        private volatile boolean closed;
+
+        View(long time) {
+            this.time = time;
+        }
+
+        /**
+         * A walk of the view that keeps it reachable, so its versions are not released under the walk.
+         */
+        private final class Keys extends SnapshotCursor {
+            @SuppressWarnings("unused")
+            private final View view = View.this; // javac drops the implicit reference when nothing uses it
+
+            Keys(int lo, int hi) {
+                super(time, lo, hi);
+            }
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("the snapshot is closed");
+            }
+        }
+
+        public boolean contains(final int key) {
+            checkOpen();
+            try {
+                Node curr = childAt(head.right, time);
+                while (curr != null && curr.key != key) {
+                    curr = childAt(curr.version(curr.key < key), time);
+                }
+                return curr != null;
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+
+        public int size() {
+            return rangeCount(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        public long getKeysum() {
+            checkOpen();
+            try {
+                long sum = 0;
+                Keys keys = new Keys(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                while (keys.hasNext()) {
+                    sum += keys.nextKey();
+                }
+                return sum;
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+
+        public int rangeCount(int lo, int hi) {
+            checkOpen();
+            try {
+                return new Keys(lo, hi).count();
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+
+        public void rangeScan(int lo, int hi, IntConsumer consumer) {
+            checkOpen();
+            try {
+                new Keys(lo, hi).forEachRemaining(consumer);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+
+        /**
+         * Must not be used after the view is closed.
+         */
+        public PrimitiveIterator.OfInt iterator() {
+            checkOpen();
+            return new Keys(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        public void close() {
+            closed = true;
+            release.clean();
+        }
+    }
+
+    public BST.Node getRoot() {
+        throw new UnsupportedOperationException(getName() + " has versioned nodes and no BST.Node root");
+    }
+
+    public String getName() {
+        return "VersionedBST";
+    }
+
+    /**
+     * Linearizable, counted on a snapshot.
+     */
+    public final int size() {
+        return rangeCount(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public final int approximateSize() {
+        return count.intValue();
+    }
+
+    public final long getKeysum() {
+        Snapshot snapshot = openSnapshot();
+        try {
+            long sum = 0;
+            SnapshotCursor cursor = new SnapshotCursor(snapshot.time, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            while (cursor.hasNext()) {
+                sum += cursor.nextKey();
+            }
+            return sum;
+        } finally {
+            closeSnapshot(snapshot);
+        }
+    }
+}
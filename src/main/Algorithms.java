@@ -0,0 +1,77 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import algorithms.*;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * The data structures the harness can run, by the name given to the -alg switch.
+ */
+public final class Algorithms {
+    private static final Map<String, Supplier<BSTInterface>> REGISTRY = new LinkedHashMap<>();
+
+    static {
+        register("BST", BST::new);
+        register("BST-spin", () -> new BST(BST.LockStrategy.SPIN));
+        register("BST-stamped", () -> new BST(BST.LockStrategy.STAMPED));
+        register("BST-pool", () -> new BST(BST.LockStrategy.MONITOR, true));
+        register("LockFreeBST", LockFreeBST::new);
+        register("RelaxedAVL", RelaxedAVLTree::new);
+        register("SkipListSet", SkipListSet::new);
+        register("LockedTreeSet", LockedTreeSet::new);
+        register("LongBST", LongBST::new);
+        register("OffHeapBST", OffHeapBST::new);
+        register("BPlusTree", BPlusTree::new);
+        register("BPlusTree-64", () -> new BPlusTree(64));
+        register("VersionedBST", VersionedBST::new);
+        register("BSTMap", () -> new MapSet("BSTMap", new BSTMap<>()));
+        register("SkipListMap", () -> new MapSet("SkipListMap", new ConcurrentSkipListMap<>()));
+    }
+
+    private Algorithms() {
+    }
+
+    public static void register(String name, Supplier<BSTInterface> factory) {
+        REGISTRY.put(name, factory);
+    }
+
+    public static boolean contains(String name) {
+        return REGISTRY.containsKey(name);
+    }
+
+    public static Set<String> names() {
+        return Collections.unmodifiableSet(REGISTRY.keySet());
+    }
+
+    public static BSTInterface create(String name) {
+        Supplier<BSTInterface> factory = REGISTRY.get(name);
+        if (factory == null) {
+            throw new IllegalArgumentException("unknown algorithm " + name);
+        }
+        return factory.get();
+    }
+}
@@ -21,6 +21,9 @@ package main;
 
 import algorithms.BST;
 
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
 public interface BSTInterface {
     public boolean contains(final int key);
 
@@ -28,11 +31,117 @@ public interface BSTInterface {
 
     public boolean remove(final int key);
 
+    /**
+     * Insert every key of the batch, setting out[i] to whether keys[i] was inserted by this call.
+     * A key that appears more than once is inserted for its first occurrence only.
+     * Structures without a batch traversal of their own insert the keys one at a time.
+     *
+     * @return the number of keys inserted
+     */
+    public default int insertAll(int[] keys, boolean[] out) {
+        checkBatch(keys, out);
+        int inserted = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (out[i] = insert(keys[i])) {
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Remove every key of the batch, setting out[i] to whether keys[i] was removed by this call.
+     * A key that appears more than once is removed for its first occurrence only.
+     *
+     * @return the number of keys removed
+     */
+    public default int removeAll(int[] keys, boolean[] out) {
+        checkBatch(keys, out);
+        int removed = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (out[i] = remove(keys[i])) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Set out[i] to whether keys[i] is in the set, each lookup with the consistency of {@link #contains}.
+     */
+    public default void containsAll(int[] keys, boolean[] out) {
+        checkBatch(keys, out);
+        for (int i = 0; i < keys.length; i++) {
+            out[i] = contains(keys[i]);
+        }
+    }
+
+    /**
+     * Throws an IllegalArgumentException unless `out` has a result for every key of the batch.
+     */
+    public static void checkBatch(int[] keys, boolean[] out) {
+        if (out.length < keys.length) {
+            throw new IllegalArgumentException("a batch of " + keys.length + " keys needs as many results, got " + out.length);
+        }
+    }
+
     public int size();
 
+    /**
+     * O(1) size maintained by the updates themselves. It is exact whenever no update is in flight,
+     * while {@link #size()} is an exact traversal of the whole tree.
+     */
+    public int approximateSize();
+
     public String getName();
 
     public long getKeysum();
 
     public BST.Node getRoot();
+
+    /**
+     * Build a perfectly balanced tree from strictly ascending keys in O(n) and publish it in one step.
+     * The tree must be empty, otherwise an IllegalStateException is thrown.
+     */
+    public void bulkLoad(int[] sortedKeys);
+
+    /**
+     * Same as {@link #bulkLoad}, but the subtrees are built in parallel on the common fork/join pool.
+     */
+    public void bulkLoadParallel(int[] sortedKeys);
+
+    /**
+     * Same as {@link #bulkLoad}, with the `size` strictly ascending keys taken from `sortedKeys` in order,
+     * so they can be streamed from a file. Structures that build from an array collect the keys first.
+     */
+    public default void bulkLoad(int size, PrimitiveIterator.OfInt sortedKeys) {
+        int[] keys = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = sortedKeys.nextInt();
+        }
+        bulkLoad(keys);
+    }
+
+    /**
+     * The number of keys in [lo, hi], with the consistency of {@link #iterator()}.
+     */
+    public int rangeCount(int lo, int hi);
+
+    /**
+     * Pass the keys in [lo, hi] to `consumer` in ascending order, with the consistency of {@link #iterator()}.
+     */
+    public void rangeScan(int lo, int hi, IntConsumer consumer);
+
+    /**
+     * The keys in ascending order. Unless an implementation promises more, the iteration is weakly consistent:
+     * it returns every key at most once, only keys that were present at some point during the iteration,
+     * and every key that was present throughout it.
+     */
+    public PrimitiveIterator.OfInt iterator();
+
+    /**
+     * An immutable point-in-time view of the set, taken in O(1).
+     * Structures that cannot take one without copying throw an UnsupportedOperationException.
+     */
+    public TreeSnapshot snapshot();
 }
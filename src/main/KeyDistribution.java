@@ -0,0 +1,254 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+/**
+ * How the workers draw their keys from [1, maxKey], parsed from the -dist switch as a kind and colon-separated
+ * parameters, e.g. "zipf:0.99" or "hotspot:0.2:0.8".
+ * <p>
+ * Each worker samples through its own {@link Sampler}, so no state is shared between threads while a trial runs.
+ */
+public final class KeyDistribution {
+    public enum Kind {
+        /**
+         * Every key equally likely.
+         */
+        UNIFORM,
+        /**
+         * Key k with probability proportional to 1 / k^theta, so the smallest keys are the hottest and share a subtree.
+         */
+        ZIPF,
+        /**
+         * A fraction hotOps of the operations goes to the first hotKeys fraction of the key range, the rest to the others.
+         */
+        HOTSPOT,
+        /**
+         * Zipfian distances behind a frontier that every draw of a thread advances, so the hot keys are the most
+         * recent ones and the hot region slides through the whole key range.
+         */
+        LATEST,
+        /**
+         * Consecutive keys, the threads interleaved so that together they walk the key range in order and wrap around.
+         */
+        SEQUENTIAL,
+        /**
+         * Uniform keys from a disjoint slice of the key range per thread, so threads never touch each other's keys.
+         */
+        PARTITIONED
+    }
+
+    public static final KeyDistribution UNIFORM = new KeyDistribution(Kind.UNIFORM, 0, 0, 0);
+
+    private static final double DEFAULT_THETA = 0.99;
+    private static final double DEFAULT_HOT_KEYS = 0.2;
+    private static final double DEFAULT_HOT_OPS = 0.8;
+
+    public final Kind kind;
+    final double theta;
+    final double hotKeys;
+    final double hotOps;
+    private Zipf zipf; // of the last key range sampled, computing zeta(n) takes O(min(n, 2^24)) time
+
+    private KeyDistribution(Kind kind, double theta, double hotKeys, double hotOps) {
+        this.kind = kind;
+        this.theta = theta;
+        this.hotKeys = hotKeys;
+        this.hotOps = hotOps;
+    }
+
+    /**
+     * Parse "uniform", "zipf[:theta]", "hotspot[:hotKeys[:hotOps]]", "latest[:theta]", "sequential" or "partitioned".
+     *
+     * @throws IllegalArgumentException for an unknown kind or out-of-range parameters
+     */
+    public static KeyDistribution parse(String spec) {
+        String[] parts = spec.split(":");
+        final Kind kind;
+        try {
+            kind = Kind.valueOf(parts[0].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown key distribution \"" + parts[0] + "\"");
+        }
+        int parameters = kind == Kind.HOTSPOT ? 2 : kind == Kind.ZIPF || kind == Kind.LATEST ? 1 : 0;
+        if (parts.length - 1 > parameters) {
+            throw new IllegalArgumentException(kind.name().toLowerCase() + " takes " + parameters + " parameters, got \"" + spec + "\"");
+        }
+        double[] values = new double[parts.length - 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Double.parseDouble(parts[i + 1]);
+        }
+        switch (kind) {
+            case ZIPF:
+            case LATEST:
+                double theta = values.length > 0 ? values[0] : DEFAULT_THETA;
+                if (!(theta > 0 && theta < 1)) {
+                    throw new IllegalArgumentException("theta must be in (0, 1), got " + theta);
+                }
+                return new KeyDistribution(kind, theta, 0, 0);
+            case HOTSPOT:
+                double hotKeys = values.length > 0 ? values[0] : DEFAULT_HOT_KEYS;
+                double hotOps = values.length > 1 ? values[1] : DEFAULT_HOT_OPS;
+                if (!(hotKeys > 0 && hotKeys <= 1) || !(hotOps >= 0 && hotOps <= 1)) {
+                    throw new IllegalArgumentException("the hot key fraction must be in (0, 1] and the hot operation fraction in [0, 1], got " + hotKeys + " and " + hotOps);
+                }
+                return new KeyDistribution(kind, 0, hotKeys, hotOps);
+            case UNIFORM:
+                return UNIFORM;
+            default:
+                return new KeyDistribution(kind, 0, 0, 0);
+        }
+    }
+
+    private synchronized Zipf zipf(long n) {
+        if (zipf == null || zipf.n != n) {
+            zipf = new Zipf(n, theta);
+        }
+        return zipf;
+    }
+
+    /**
+     * A sampler for the worker `id` of `numberOfIds`.
+     */
+    public Sampler sampler(int id, int numberOfIds, Random rng, long maxKey) {
+        return new Sampler(this, id, numberOfIds, rng, maxKey);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case ZIPF:
+            case LATEST:
+                return kind.name().toLowerCase() + theta;
+            case HOTSPOT:
+                return "hotspot" + hotKeys + "-" + hotOps;
+            default:
+                return kind.name().toLowerCase();
+        }
+    }
+
+    public static final class Sampler {
+        private final Kind kind;
+        private final Random rng;
+        private final long maxKey;
+        private final int numberOfIds;
+        private final Zipf zipf;
+        private final long hotKeys;
+        private final double hotOps;
+        private final long partitionStart;
+        private final long partitionSize;
+        private long position; // frontier of LATEST, next key of SEQUENTIAL, both 0-based
+
+        private Sampler(KeyDistribution dist, int id, int numberOfIds, Random rng, long maxKey) {
+            this.kind = dist.kind;
+            this.rng = rng;
+            this.maxKey = maxKey;
+            this.numberOfIds = numberOfIds;
+            this.zipf = dist.kind == Kind.ZIPF || dist.kind == Kind.LATEST ? dist.zipf(maxKey) : null;
+            this.hotKeys = Math.max(1, (long) (maxKey * dist.hotKeys));
+            this.hotOps = dist.hotOps;
+            this.partitionStart = maxKey * id / numberOfIds;
+            this.partitionSize = Math.max(1, maxKey * (id + 1) / numberOfIds - partitionStart);
+            this.position = id;
+        }
+
+        /**
+         * The next key, in [1, maxKey].
+         */
+        public long next() {
+            switch (kind) {
+                case ZIPF:
+                    return zipf.next(uniform()) + 1;
+                case HOTSPOT:
+                    if (hotKeys == maxKey || uniform() < hotOps) {
+                        return rng.nextNatural(hotKeys) + 1;
+                    }
+                    return hotKeys + rng.nextNatural(maxKey - hotKeys) + 1;
+                case LATEST:
+                    position += numberOfIds;
+                    return Math.floorMod(position - zipf.next(uniform()), maxKey) + 1;
+                case SEQUENTIAL: {
+                    long key = position;
+                    position = (position + numberOfIds) % maxKey;
+                    return key % maxKey + 1;
+                }
+                case PARTITIONED:
+                    return Math.min(partitionStart + rng.nextNatural(partitionSize), maxKey - 1) + 1;
+                default:
+                    return rng.nextNatural(maxKey) + 1;
+            }
+        }
+
+        private double uniform() {
+            return (rng.nextLong() >>> 11) * 0x1.0p-53;
+        }
+    }
+
+    /**
+     * Zipfian ranks in [0, n) by the method of Gray et al., "Quickly Generating Billion-Record Synthetic Databases",
+     * which takes O(1) per sample once zeta(n) is known.
+     */
+    static final class Zipf {
+        private static final long EXACT_TERMS = 1 << 24;
+
+        final long n;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+        private final double halfPowTheta;
+
+        Zipf(long n, double theta) {
+            this.n = n;
+            this.alpha = 1 / (1 - theta);
+            this.zetaN = zeta(n, theta);
+            double zeta2 = zeta(Math.min(n, 2), theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+            this.halfPowTheta = 1 + Math.pow(0.5, theta);
+        }
+
+        /**
+         * The sum of 1 / i^theta for i in [1, n], summed exactly up to 2^24 terms and by the Euler-Maclaurin
+         * approximation of the integral beyond.
+         */
+        static double zeta(long n, double theta) {
+            long exact = Math.min(n, EXACT_TERMS);
+            double sum = 0;
+            for (long i = 1; i <= exact; i++) {
+                sum += Math.pow(i, -theta);
+            }
+            if (n > exact) {
+                double a = exact, b = n;
+                sum += (Math.pow(b, 1 - theta) - Math.pow(a, 1 - theta)) / (1 - theta)
+                        + (Math.pow(b, -theta) - Math.pow(a, -theta)) / 2;
+            }
+            return sum;
+        }
+
+        long next(double u) {
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < halfPowTheta) {
+                return Math.min(1, n - 1);
+            }
+            return Math.min((long) (n * Math.pow(eta * u - eta + 1, alpha)), n - 1);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of non-negative latencies in the style of HdrHistogram.
+ * Every power of two is split into SUB_BUCKETS / 2 linear buckets, so a value is reported with a relative error
+ * below 2 / SUB_BUCKETS (under 1%), and recording is a few shifts and an array increment.
+ * Not thread-safe: each worker records into its own histograms, which are merged after the trial.
+ * The buckets are allocated up to the largest value recorded so far, so thousands of workers can each keep a few.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int MAX_BUCKET = 64 - SUB_BUCKET_BITS;
+
+    private static final int MAX_COUNTS = (MAX_BUCKET + 1) * HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+
+    private long[] counts = new long[SUB_BUCKETS];
+    private long totalCount;
+    private long maxValue;
+
+    private static int indexOf(long value) {
+        int bucket = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return bucket * HALF_SUB_BUCKETS + (int) (value >>> bucket);
+    }
+
+    /**
+     * The largest value that is recorded into the same bucket as the values at `index`.
+     */
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int bucket = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = index - bucket * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << bucket) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("latency must be >= 0, got " + value);
+        }
+        final int index = indexOf(value);
+        if (index >= counts.length) {
+            grow(index + 1);
+        }
+        counts[index]++;
+        totalCount++;
+        if (value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+    /**
+     * Record `value` for an operation that was supposed to start every `expectedInterval`.
+     * If it took longer than that, the operations that a fixed-rate client would have issued meanwhile were
+     * delayed too: they are recorded as value - interval, value - 2 * interval, ... to correct for coordinated omission.
+     */
+    public void recordWithExpectedInterval(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missed = value - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+            record(missed);
+        }
+    }
+
+    private void grow(int length) {
+        counts = Arrays.copyOf(counts, Math.min(MAX_COUNTS, Math.max(length, counts.length * 2)));
+    }
+
+    public void add(LatencyHistogram other) {
+        if (other.counts.length > counts.length) {
+            grow(other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * The smallest recorded value (up to the bucket resolution) that at least `percentile` % of the values are at or below.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+}
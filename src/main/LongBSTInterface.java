@@ -0,0 +1,51 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.util.function.LongConsumer;
+
+/**
+ * A set of 64-bit keys. The int operations of {@link BSTInterface} widen their keys to long,
+ * and the harness drives implementations through the long operations, so keys are never boxed or truncated.
+ */
+public interface LongBSTInterface extends BSTInterface {
+    public boolean contains(final long key);
+
+    public boolean insert(final long key);
+
+    public boolean remove(final long key);
+
+    /**
+     * See {@link BSTInterface#bulkLoad}.
+     */
+    public void bulkLoad(long[] sortedKeys);
+
+    public void bulkLoadParallel(long[] sortedKeys);
+
+    /**
+     * See {@link BSTInterface#rangeCount}.
+     */
+    public int rangeCount(long lo, long hi);
+
+    /**
+     * See {@link BSTInterface#rangeScan}. Named apart from it, since a lambda would fit either consumer.
+     */
+    public void rangeScanLong(long lo, long hi, LongConsumer consumer);
+}
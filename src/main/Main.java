@@ -20,15 +20,25 @@
 package main;
 
 import algorithms.*;
+import persistence.Checkpoint;
+import persistence.DurableSet;
+import persistence.WriteAheadLog;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.lang.management.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.PrimitiveIterator;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class Main {
 
@@ -39,51 +49,92 @@ public class Main {
     public static final boolean PRINT_FREEMEM = false; // note: just a (rather inaccurate) estimate
     private long startFreemem = 0;
 
+    // operation types, in the order their latency columns are printed
+    protected static final int INS = 0, DEL = 1, FIND = 2, RANGE = 3;
+    protected static final String[] OP_NAMES = {"ins", "del", "find", "range"};
+    protected static final double[] LATENCY_PERCENTILES = {50, 99, 99.9};
+    protected static final String[] LATENCY_COLUMNS = {"p50", "p99", "p999"};
+    protected static final double RATE_SATURATION = 0.95; // an offered rate is sustained while 95% of it is achieved
+    protected static final long DEFAULT_SWEEP_RATE = 100_000;
+    protected static final double DEFAULT_SWEEP_FACTOR = 1.5;
+    protected static final long MAX_SWEEP_RATE = 1_000_000_000;
+
     // variables for the experiment
     protected final int nthreads;
     protected final int ntrials;
     protected final double nseconds;
+    protected final long keyRange;
     protected final String filename;
     protected final Ratio ratio;
-    protected final String alg;
+    protected final List<String> algs;
+    protected final List<Integer> snapshotRates; // snapshots per second to sweep, empty unless -snapshotRate is given
+    protected final List<WriteAheadLog.FsyncPolicy> walPolicies; // fsync policies to sweep, empty unless -wal is given
+    protected final Path walDirectory; // where each trial's log directory is created
+    protected final List<KeyDistribution> distributions; // key distributions to sweep, empty unless -dist is given
+    protected final Path traceRecord; // file to record the operations of the last trial to, null for none
+    protected final Path traceReplay; // trace to replay instead of generating operations, null for none
+    protected final List<Long> rates; // offered ops/s to sweep in open-loop mode, empty unless -rate is given
     protected final SwitchMap switches;
-    protected final boolean prefill;
+    protected final PrefillMode prefill;
+    protected final Path prefillFile; // checkpoint to prefill from, written by the first prefill if missing; null for none
     private final boolean validate;
 
     // some timing variables
     protected AtomicLong startUserTime = new AtomicLong(0);
     protected AtomicLong startWallTime = new AtomicLong(0);
 
-    protected List<Integer> resultArr = new ArrayList<>();
+    protected List<Long> resultArr = new ArrayList<>(); // keys of the last tree, as longs so long keys are not truncated
     protected int i = 0;
 
-    public Main(int nthreads, int ntrials, double nseconds, String filename,
-                Ratio ratio, SwitchMap switches, boolean prefill, boolean validate) {
+    public Main(int nthreads, int ntrials, double nseconds, long keyRange, String filename,
+                Ratio ratio, List<String> algs, List<Integer> snapshotRates, List<WriteAheadLog.FsyncPolicy> walPolicies,
+                Path walDirectory, List<KeyDistribution> distributions,
+                Path traceRecord, Path traceReplay, List<Long> rates, SwitchMap switches, PrefillMode prefill, Path prefillFile, boolean validate) {
         this.nthreads = nthreads;
         this.ntrials = ntrials;
         this.nseconds = nseconds;
+        this.keyRange = keyRange;
         this.filename = filename;
         this.ratio = ratio;
-        this.alg = "BST";
+        this.algs = algs;
+        this.snapshotRates = snapshotRates;
+        this.walPolicies = walPolicies;
+        this.walDirectory = walDirectory;
+        this.distributions = distributions;
+        this.traceRecord = traceRecord;
+        this.traceReplay = traceReplay;
+        this.rates = rates;
         this.switches = switches;
         this.prefill = prefill;
+        this.prefillFile = prefillFile;
         this.validate = validate;
     }
 
     public final class RandomGenerator {
         final Random rng;
-        final int maxKey;
+        final long maxKey;
         final int id, numberOfIds;
+        final KeyDistribution.Sampler sampler; // null for uniform keys
 
-        public RandomGenerator(final int id, final int numberOfIds, final Random rng, final int maxKey) {
+        public RandomGenerator(final int id, final int numberOfIds, final Random rng, final long maxKey, final KeyDistribution dist) {
             if (maxKey < 0) throw new RuntimeException("maxKey must be > 0");
             this.rng = rng;
             this.maxKey = maxKey;
             this.id = id;
             this.numberOfIds = numberOfIds;
+            this.sampler = dist.kind == KeyDistribution.Kind.UNIFORM ? null : dist.sampler(id, numberOfIds, rng, maxKey);
         }
 
         public Integer next() {
+            if (sampler != null) return (int) sampler.next();
+            return rng.nextNatural((int) maxKey) + 1;
+        }
+
+        /**
+         * A key of [1, maxKey] for long-keyed structures, which may have ranges beyond Integer.MAX_VALUE.
+         */
+        public long nextLong() {
+            if (sampler != null) return sampler.next();
             return rng.nextNatural(maxKey) + 1;
         }
     }
@@ -103,11 +154,36 @@ public class Main {
 
         public abstract int getFalseFind();
 
+        public abstract int getRangeOps();
+
         public abstract long getEndTime();
 
         public abstract long getStartTime();
 
         public abstract long getKeysum();
+
+        /**
+         * Bytes the worker allocated during the trial, 0 unless allocation is measured.
+         */
+        public abstract long getAllocatedBytes();
+
+        /**
+         * Lock contention of the worker during the trial, 0 unless contention is measured: the times it blocked
+         * entering a monitor and the ms it spent blocked, then the same for waiting, which covers parking in
+         * java.util.concurrent locks. Spinning, as in LockStrategy.SPIN, is not seen.
+         */
+        public abstract long getBlocked();
+
+        public abstract long getBlockedMs();
+
+        public abstract long getWaited();
+
+        public abstract long getWaitedMs();
+
+        /**
+         * Per-operation-type latency histograms indexed by INS, DEL, FIND and RANGE, or null if latencies are not measured.
+         */
+        public abstract LatencyHistogram[] getLatencies();
     }
 
     public class TimedWorker extends Worker {
@@ -115,10 +191,24 @@ public class Main {
         CyclicBarrier start;
         RandomGenerator gen;
         BSTInterface tree;
+        final LongBSTInterface longTree; // the same tree if it has long keys, which are then used for every operation
         int trueDel, falseDel, trueIns, falseIns, trueFind, falseFind;
+        int rangeOps;
+        long rangeKeys; // keys counted by range queries, kept so that the queries cannot be optimized away
+        final int rangeSize; // number of keys covered by a range query
         long keysum; // sum of new keys inserted by this thread minus keys deleted by this thread
         final Experiment ex;
         Random rng;
+        final LatencyHistogram[] latencies;
+        final long expectedInterval; // ns between the scheduled starts of two operations in fixed-rate mode, 0 otherwise
+        final double openLoopInterval; // ns between the scheduled starts of two operations in open-loop mode, 0 otherwise
+        final boolean measureAllocation;
+        long allocatedBytes;
+        final boolean measureContention;
+        long blocked, blockedMs, waited, waitedMs;
+        final int batchSize; // keys per batch operation, 0 for single-key operations
+        final boolean virtual; // runs on a virtual thread, which yields after every operation
+        Trace.Recorder recorder; // records every operation when the trial is traced, null otherwise
 
         private long id;
         private ThreadMXBean bean;
@@ -147,10 +237,31 @@ public class Main {
             this.ex = ex;
             this.rng = new Random(rng.nextInt());
             this.tree = tree;
+            this.longTree = tree instanceof LongBSTInterface ? (LongBSTInterface) tree : null;
             this.start = start;
             this.sharedStartUserTime = sharedStart;
             this.workers3 = workers;
             this.sharedStartWallTime = sharedStartWallTime;
+            if (switches.get("latency") != 0) {
+                latencies = new LatencyHistogram[OP_NAMES.length];
+                for (int i = 0; i < latencies.length; i++) latencies[i] = new LatencyHistogram();
+            } else {
+                latencies = null;
+            }
+            this.expectedInterval = (long) switches.get("latencyInterval");
+            this.openLoopInterval = ex.rate > 0 ? ex.nprocs * 1e9 / ex.rate : 0;
+            this.rangeSize = (int) switches.get("rangeSize");
+            this.measureAllocation = switches.get("alloc") != 0;
+            this.measureContention = switches.get("contention") != 0;
+            this.batchSize = (int) switches.get("batch");
+            this.virtual = switches.get("vthreads") != 0;
+        }
+
+        /**
+         * The last key of the range query starting at `key`, clamped to the key type.
+         */
+        private long rangeEnd(long key, long maxValue) {
+            return key > maxValue - (rangeSize - 1) ? maxValue : key + (rangeSize - 1);
         }
 
         @Override
@@ -166,6 +277,14 @@ public class Main {
                 System.exit(-1);
             }
             id = Thread.currentThread().threadId();
+            if (measureAllocation && !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled()) {
+                System.out.println("THREAD ALLOCATED MEMORY UNSUPPORTED OR DISABLED");
+                System.exit(-1);
+            }
+            if (measureContention && !bean.isThreadContentionMonitoringEnabled()) {
+                System.out.println("THREAD CONTENTION MONITORING UNSUPPORTED OR DISABLED");
+                System.exit(-1);
+            }
 
             // everyone waits on barrier
             if (start != null) try {
@@ -175,7 +294,7 @@ public class Main {
             }
 
             // everyone waits until main thread sets experiment state to RUNNING
-            while (ex.state == ExperimentState.PENDING) ;
+            while (ex.state == ExperimentState.PENDING) if (virtual) Thread.yield();
 
             // start timing
             myStartUserTime = bean.getThreadUserTime(id);
@@ -183,9 +302,14 @@ public class Main {
             myStartWallTime = System.nanoTime();
             sharedStartUserTime.compareAndSet(0, myStartUserTime);
             sharedStartWallTime.compareAndSet(0, myStartWallTime);
+            final long startAllocatedBytes = measureAllocation ? threadAllocatedBytes() : 0;
+            final ThreadInfo startInfo = measureContention ? bean.getThreadInfo(id) : null;
 
             // perform operations while experiment's state is running
-            while (ex.state == ExperimentState.RUNNING) {
+            if (latencies != null) runMeasuringLatency();
+            else if (longTree != null) runLongOperations();
+            else if (batchSize > 0) runBatches();
+            else while (ex.state == ExperimentState.RUNNING) {
                 final int key = gen.next();
                 final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
                 if (op < ratio.ins) {
@@ -198,16 +322,165 @@ public class Main {
                         keysum -= key;
                         trueDel++;
                     } else falseDel++;
+                } else if (op < ratio.ins + ratio.del + ratio.range) {
+                    rangeKeys += tree.rangeCount(key, (int) rangeEnd(key, Integer.MAX_VALUE));
+                    rangeOps++;
                 } else {
                     if (tree.contains(key)) trueFind++;
                     else falseFind++;
                 }
+                if (virtual) Thread.yield();
             }
 
             // finish timing
             wallTime = System.nanoTime();
             userTime = bean.getThreadUserTime(id);
             cpuTime = bean.getThreadCpuTime(id);
+            if (measureAllocation) allocatedBytes = threadAllocatedBytes() - startAllocatedBytes;
+            if (measureContention) {
+                final ThreadInfo info = bean.getThreadInfo(id);
+                blocked = info.getBlockedCount() - startInfo.getBlockedCount();
+                blockedMs = info.getBlockedTime() - startInfo.getBlockedTime();
+                waited = info.getWaitedCount() - startInfo.getWaitedCount();
+                waitedMs = info.getWaitedTime() - startInfo.getWaitedTime();
+            }
+        }
+
+        private long threadAllocatedBytes() {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(id);
+        }
+
+        /**
+         * The operation loop with long keys.
+         */
+        private void runLongOperations() {
+            while (ex.state == ExperimentState.RUNNING) {
+                final long key = gen.nextLong();
+                final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
+                if (op < ratio.ins) {
+                    if (longTree.insert(key)) {
+                        keysum += key;
+                        trueIns++;
+                    } else falseIns++;
+                } else if (op < ratio.ins + ratio.del) {
+                    if (longTree.remove(key)) {
+                        keysum -= key;
+                        trueDel++;
+                    } else falseDel++;
+                } else if (op < ratio.ins + ratio.del + ratio.range) {
+                    rangeKeys += longTree.rangeCount(key, rangeEnd(key, Long.MAX_VALUE));
+                    rangeOps++;
+                } else {
+                    if (longTree.contains(key)) trueFind++;
+                    else falseFind++;
+                }
+                if (virtual) Thread.yield();
+            }
+        }
+
+        /**
+         * The operation loop in batches: every batch draws one operation type by the ratio and batchSize keys,
+         * and each key of it counts as an operation, so the throughput is per key. Range counts are not batched.
+         */
+        private void runBatches() {
+            final int[] keys = new int[batchSize];
+            final boolean[] results = new boolean[batchSize];
+            while (ex.state == ExperimentState.RUNNING) {
+                for (int i = 0; i < batchSize; i++) keys[i] = gen.next();
+                final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
+                if (op < ratio.ins) {
+                    tree.insertAll(keys, results);
+                    for (int i = 0; i < batchSize; i++) {
+                        if (results[i]) {
+                            keysum += keys[i];
+                            trueIns++;
+                        } else falseIns++;
+                    }
+                } else if (op < ratio.ins + ratio.del) {
+                    tree.removeAll(keys, results);
+                    for (int i = 0; i < batchSize; i++) {
+                        if (results[i]) {
+                            keysum -= keys[i];
+                            trueDel++;
+                        } else falseDel++;
+                    }
+                } else if (op < ratio.ins + ratio.del + ratio.range) {
+                    for (int i = 0; i < batchSize; i++) {
+                        rangeKeys += tree.rangeCount(keys[i], (int) rangeEnd(keys[i], Integer.MAX_VALUE));
+                    }
+                    rangeOps += batchSize;
+                } else {
+                    tree.containsAll(keys, results);
+                    for (int i = 0; i < batchSize; i++) {
+                        if (results[i]) trueFind++;
+                        else falseFind++;
+                    }
+                }
+                if (virtual) Thread.yield();
+            }
+        }
+
+        /**
+         * The same operation loop, timing every operation. With an expected interval, operations are paced to start
+         * one every expectedInterval ns, and an operation that overruns its slot is recorded together with the
+         * latencies the operations queued behind it would have seen, so stalls are not hidden by coordinated omission.
+         * Those operations are then skipped rather than run late, so every slot is recorded exactly once.
+         * In open-loop mode operations are due on a fixed schedule that does not wait for them to finish, a late
+         * operation starts as soon as the previous one is done, and its latency counts from when it was due.
+         */
+        private void runMeasuringLatency() {
+            long nextStart = myStartWallTime;
+            long scheduled = 0;
+            while (ex.state == ExperimentState.RUNNING) {
+                final long key = longTree != null ? gen.nextLong() : gen.next();
+                final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
+                long startTime = System.nanoTime();
+                if (openLoopInterval > 0) {
+                    final long due = myStartWallTime + (long) (scheduled++ * openLoopInterval);
+                    if (startTime < due) {
+                        startTime = awaitNanoTime(due, ex);
+                        if (ex.state != ExperimentState.RUNNING) break;
+                    }
+                    startTime = due;
+                } else if (expectedInterval > 0) {
+                    while (startTime < nextStart && ex.state == ExperimentState.RUNNING) {
+                        Thread.onSpinWait();
+                        startTime = System.nanoTime();
+                    }
+                    nextStart += expectedInterval;
+                }
+                final int opType;
+                if (op < ratio.ins) {
+                    opType = INS;
+                    if (longTree != null ? longTree.insert(key) : tree.insert((int) key)) {
+                        keysum += key;
+                        trueIns++;
+                    } else falseIns++;
+                } else if (op < ratio.ins + ratio.del) {
+                    opType = DEL;
+                    if (longTree != null ? longTree.remove(key) : tree.remove((int) key)) {
+                        keysum -= key;
+                        trueDel++;
+                    } else falseDel++;
+                } else if (op < ratio.ins + ratio.del + ratio.range) {
+                    opType = RANGE;
+                    rangeKeys += longTree != null
+                            ? longTree.rangeCount(key, rangeEnd(key, Long.MAX_VALUE))
+                            : tree.rangeCount((int) key, (int) rangeEnd(key, Integer.MAX_VALUE));
+                    rangeOps++;
+                } else {
+                    opType = FIND;
+                    if (longTree != null ? longTree.contains(key) : tree.contains((int) key)) trueFind++;
+                    else falseFind++;
+                }
+                final long endTime = System.nanoTime();
+                latencies[opType].recordWithExpectedInterval(endTime - startTime, expectedInterval);
+                if (expectedInterval > 0 && endTime > nextStart) {
+                    nextStart += ((endTime - nextStart) / expectedInterval + 1) * expectedInterval; // slots backfilled above
+                }
+                if (recorder != null) recorder.record(opType, key, startTime);
+                if (virtual) Thread.yield();
+            }
         }
 
         public int getOpCount() {
@@ -238,6 +511,10 @@ public class Main {
             return falseFind;
         }
 
+        public int getRangeOps() {
+            return rangeOps;
+        }
+
         public long getStartTime() {
             return myStartWallTime;
         }
@@ -273,6 +550,207 @@ public class Main {
         public long getKeysum() {
             return keysum;
         }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public long getBlocked() {
+            return blocked;
+        }
+
+        public long getBlockedMs() {
+            return blockedMs;
+        }
+
+        public long getWaited() {
+            return waited;
+        }
+
+        public long getWaitedMs() {
+            return waitedMs;
+        }
+
+        public LatencyHistogram[] getLatencies() {
+            return latencies;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the tree `rate` times per second while the trial runs and exports it the way a background
+     * dump would, by iterating all of its keys, so the rows of a -snapshotRate sweep show what snapshots cost writers.
+     */
+    final class SnapshotWorker extends Thread {
+        final BSTInterface tree;
+        final Experiment ex;
+        final long interval;
+        int snapshots;
+        long exportTime; // ns spent taking and exporting snapshots
+        long exportedKeysum;
+
+        SnapshotWorker(final BSTInterface tree, final Experiment ex) {
+            this.tree = tree;
+            this.ex = ex;
+            this.interval = (long) (1e9 / ex.snapshotRate);
+        }
+
+        @Override
+        public void run() {
+            long nextStart = System.nanoTime();
+            while (ex.state == ExperimentState.RUNNING) {
+                long now = System.nanoTime();
+                if (now < nextStart) {
+                    LockSupport.parkNanos(nextStart - now);
+                    continue;
+                }
+                nextStart += interval;
+                try (TreeSnapshot snapshot = tree.snapshot()) {
+                    for (PrimitiveIterator.OfInt keys = snapshot.iterator(); keys.hasNext(); ) {
+                        exportedKeysum += keys.nextInt();
+                    }
+                }
+                exportTime += System.nanoTime() - now;
+                snapshots++;
+            }
+        }
+    }
+
+    /**
+     * Replays one section of a trace: as fast as possible, or paced to the recorded start times, in which case
+     * latencies are measured from the intended start, so that falling behind the recording shows up as latency.
+     */
+    final class ReplayWorker extends Thread {
+        final Trace.Cursor cursor;
+        final BSTInterface tree;
+        final LongBSTInterface longTree; // the same tree if it has long keys
+        final boolean paced;
+        final CyclicBarrier start;
+        final AtomicLong replayStart; // System.nanoTime() the recorded offsets count from, set when the barrier trips
+        final int rangeSize;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        long ops;
+        long keysum;
+        long rangeKeys;
+        long endTime;
+
+        ReplayWorker(final Trace.Cursor cursor, final BSTInterface tree, final boolean paced, final CyclicBarrier start,
+                     final AtomicLong replayStart) {
+            this.cursor = cursor;
+            this.tree = tree;
+            this.longTree = tree instanceof LongBSTInterface ? (LongBSTInterface) tree : null;
+            this.paced = paced;
+            this.start = start;
+            this.replayStart = replayStart;
+            this.rangeSize = (int) switches.get("rangeSize");
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            final long base = replayStart.get();
+            while (cursor.next()) {
+                final long key = cursor.key;
+                long startTime = System.nanoTime();
+                if (paced) {
+                    final long intended = base + cursor.offset;
+                    if (startTime < intended) awaitNanoTime(intended, null);
+                    startTime = intended;
+                }
+                switch (cursor.op) {
+                    case INS:
+                        if (longTree != null ? longTree.insert(key) : tree.insert((int) key)) keysum += key;
+                        break;
+                    case DEL:
+                        if (longTree != null ? longTree.remove(key) : tree.remove((int) key)) keysum -= key;
+                        break;
+                    case RANGE:
+                        rangeKeys += longTree != null
+                                ? longTree.rangeCount(key, key > Long.MAX_VALUE - (rangeSize - 1) ? Long.MAX_VALUE : key + (rangeSize - 1))
+                                : tree.rangeCount((int) key, (int) Math.min(Integer.MAX_VALUE, key + (rangeSize - 1)));
+                        break;
+                    default:
+                        if (longTree != null) longTree.contains(key);
+                        else tree.contains((int) key);
+                }
+                latencies.record(System.nanoTime() - startTime);
+                ops++;
+            }
+            endTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Counts how many carrier threads of the virtual-thread scheduler are blocked on a monitor, SAMPLES_PER_SECOND times
+     * per second while the trial runs. A virtual thread that blocks entering a `synchronized` block cannot unmount,
+     * so each such carrier is pinned: it runs no other virtual thread until the monitor is free.
+     */
+    final class CarrierSampler extends Thread {
+        static final int SAMPLES_PER_SECOND = 1000;
+        static final int SAMPLES_PER_SCAN = 100; // the carriers are listed again every this many samples, as the pool grows
+        // how the default scheduler names its workers; the harness creates no other ForkJoinPool, and the workers of
+        // the common pool are named ForkJoinPool.commonPool-worker-#
+        static final String CARRIER_NAME = "ForkJoinPool-\\d+-worker-\\d+";
+        final Experiment ex;
+        int carriers; // the most carriers seen at once
+        long samples;
+        long blocked; // carriers found blocked over all samples
+
+        CarrierSampler(final Experiment ex) {
+            this.ex = ex;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final long interval = 1_000_000_000L / SAMPLES_PER_SECOND;
+            List<Thread> pool = new ArrayList<>();
+            while (ex.state == ExperimentState.RUNNING) {
+                if (samples % SAMPLES_PER_SCAN == 0) {
+                    pool.clear();
+                    for (Thread t : Thread.getAllStackTraces().keySet()) {
+                        if (t.getName().matches(CARRIER_NAME)) pool.add(t);
+                    }
+                    carriers = Math.max(carriers, pool.size());
+                }
+                for (Thread carrier : pool) {
+                    if (carrier.getState() == Thread.State.BLOCKED) blocked++;
+                }
+                samples++;
+                LockSupport.parkNanos(interval);
+            }
+        }
+
+        /**
+         * The most carriers seen at once and the mean number of them blocked on a monitor, as CSV columns, or n/a if
+         * no thread named like CARRIER_NAME was found, e.g. on a JDK that names its carriers differently.
+         */
+        String columns() {
+            if (carriers == 0) return "n/a,n/a";
+            return carriers + "," + blocked / (double) samples;
+        }
+    }
+
+    /**
+     * Wait until System.nanoTime() reaches `deadline`, parking while it is far off and spinning for the last stretch,
+     * or until the experiment (if any) stops running. A virtual thread parks all the way, so it never spins on a
+     * carrier that other virtual threads are waiting for.
+     *
+     * @return the time waited until
+     */
+    static long awaitNanoTime(final long deadline, final Experiment ex) {
+        final boolean virtual = Thread.currentThread().isVirtual();
+        long now = System.nanoTime();
+        while (now < deadline && (ex == null || ex.state == ExperimentState.RUNNING)) {
+            if (virtual) LockSupport.parkNanos(deadline - now);
+            else if (deadline - now > 100_000) LockSupport.parkNanos(deadline - now - 50_000);
+            else Thread.onSpinWait();
+            now = System.nanoTime();
+        }
+        return now;
     }
 
     final class BoolHolder {
@@ -354,15 +832,33 @@ public class Main {
         ArrayList<RandomGenerator> arrays = new ArrayList<RandomGenerator>(ex.nprocs); // generators supply keys for each thread
         ArrayList<Worker> workers = new ArrayList<Worker>(ex.nprocs);    // these are the threads that perform random operations
         for (int i = 0; i < ex.nprocs; i++) {
-            arrays.add(new RandomGenerator(i, ex.nprocs, new Random(rng.nextInt()), ex.maxkey));
+            arrays.add(new RandomGenerator(i, ex.nprocs, new Random(rng.nextInt()), ex.maxkey, ex.dist));
             workers.add(new TimedWorker((long) (nseconds * 1e9), arrays.get(i), ex, rng, tree, start, startUserTime, startWallTime, workers));
         }
+        // only the last trial is recorded, the earlier ones warm up
+        final List<Trace.Recorder> recorders = new ArrayList<>();
+        if (traceRecord != null && shouldMeasureTrees) {
+            for (int i = 0; i < ex.nprocs; i++) {
+                Trace.Recorder recorder = new Trace.Recorder(traceRecord, i);
+                ((TimedWorker) workers.get(i)).recorder = recorder;
+                recorders.add(recorder);
+            }
+        }
         System.gc();
         final long gcTimeStart = totalGarbageCollectionTimeMillis();
 
         // run the trial
-        for (int i = 0; i < ex.nprocs; i++) workers.get(i).start();
+        // with -vthreads every worker runs on a virtual thread of its own instead of being started itself
+        final Thread[] threads = new Thread[ex.nprocs];
+        for (int i = 0; i < ex.nprocs; i++) {
+            if (switches.get("vthreads") != 0) threads[i] = Thread.ofVirtual().name("worker-" + i).start(workers.get(i));
+            else (threads[i] = workers.get(i)).start();
+        }
         ex.state = ExperimentState.RUNNING;
+        final CarrierSampler carrierSampler = switches.get("vthreads") != 0 ? new CarrierSampler(ex) : null;
+        if (carrierSampler != null) carrierSampler.start();
+        final SnapshotWorker snapshotter = ex.snapshotRate > 0 ? new SnapshotWorker(tree, ex) : null;
+        if (snapshotter != null) snapshotter.start();
         long localStartTime = System.nanoTime();
         try {
             Thread.sleep((long) (nseconds * 1e3));
@@ -373,12 +869,20 @@ public class Main {
         ex.state = ExperimentState.STOPPED;
 
         try {
-            for (int i = 0; i < ex.nprocs; i++) workers.get(i).join();
+            for (int i = 0; i < ex.nprocs; i++) threads[i].join();
+            if (snapshotter != null) snapshotter.join();
+            if (carrierSampler != null) carrierSampler.join();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
         final long gcTimeEnd = totalGarbageCollectionTimeMillis();
-
+        if (!recorders.isEmpty()) {
+            try {
+                Trace.assemble(traceRecord, recorders, tree instanceof LongBSTInterface);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
         long threadsKeysum = pair.keysum;
         for (int i = 0; i < ex.nprocs; ++i) {
@@ -388,6 +892,14 @@ public class Main {
         if (dsKeysum != threadsKeysum) {
             throw new RuntimeException("threadsKeysum=" + threadsKeysum + " does not match dsKeysum=" + dsKeysum);
         }
+        long walForces = 0, checkpoints = 0;
+        double recoveryMs = 0;
+        if (ex.walPolicy != null) {
+            DurableSet durable = (DurableSet) tree;
+            walForces = durable.forces();
+            checkpoints = durable.checkpoints();
+            recoveryMs = closeAndRecover(durable, ex, dsKeysum);
+        }
         // produce output
         if (!discardResults) {
             long endWallTime = Long.MAX_VALUE;
@@ -398,7 +910,7 @@ public class Main {
 
             double elapsed = (localEndTime - localStartTime) / 1e9;
             out.print(prefix + ",");
-            long ntrueins = 0, nfalseins = 0, ntruedel = 0, nfalsedel = 0, ntruefind = 0, nfalsefind = 0;
+            long ntrueins = 0, nfalseins = 0, ntruedel = 0, nfalsedel = 0, ntruefind = 0, nfalsefind = 0, nrange = 0;
             for (Worker w : workers) {
                 ntrueins += w.getTrueIns();
                 nfalseins += w.getFalseIns();
@@ -406,11 +918,12 @@ public class Main {
                 nfalsedel += w.getFalseDel();
                 ntruefind += w.getTrueFind();
                 nfalsefind += w.getFalseFind();
+                nrange += w.getRangeOps();
             }
             int nnodes = 0;
             double averageDepth = 0;
             long ntrue = ntrueins + ntruedel + ntruefind, nfalse = nfalseins + nfalsedel + nfalsefind;
-            long nops = ntrue + nfalse;
+            long nops = ntrue + nfalse + nrange;
             ex.throughput = (int) (nops / (double) elapsed);
             out.print(ex.nprocs + "," + nops + "," + ex.maxkey + ",");
             out.print(ex.ratio + ",");
@@ -421,6 +934,62 @@ public class Main {
 
             out.print(ex.throughput);
 
+            if (switches.get("batch") != 0) {
+                out.print("," + (int) switches.get("batch"));
+            }
+
+            if (switches.get("alloc") != 0) {
+                long allocatedBytes = 0;
+                for (Worker w : workers) allocatedBytes += w.getAllocatedBytes();
+                out.print("," + allocatedBytes / elapsed / 1e6 + "," + (nops == 0 ? 0 : allocatedBytes / (double) nops));
+            }
+
+            if (switches.get("contention") != 0) {
+                long blocked = 0, blockedMs = 0, waited = 0, waitedMs = 0;
+                for (Worker w : workers) {
+                    blocked += w.getBlocked();
+                    blockedMs += w.getBlockedMs();
+                    waited += w.getWaited();
+                    waitedMs += w.getWaitedMs();
+                }
+                out.print("," + blocked + "," + blockedMs + "," + waited + "," + waitedMs);
+            }
+
+            if (!snapshotRates.isEmpty()) {
+                int snapshots = snapshotter == null ? 0 : snapshotter.snapshots;
+                double exportMs = snapshots == 0 ? 0 : snapshotter.exportTime / 1e6 / snapshots;
+                out.print("," + ex.snapshotRate + "," + snapshots + "," + exportMs);
+            }
+
+            if (!distributions.isEmpty()) {
+                out.print("," + ex.dist);
+            }
+
+            if (!walPolicies.isEmpty()) {
+                out.print("," + (ex.walPolicy == null ? "none" : ex.walPolicy.name().toLowerCase()) + "," + walForces + "," + checkpoints + "," + recoveryMs);
+            }
+
+            if (!rates.isEmpty()) {
+                out.print("," + ex.rate);
+            }
+
+            if (carrierSampler != null) {
+                out.print("," + carrierSampler.columns());
+            }
+
+            if (switches.get("latency") != 0) {
+                ex.latencies = new LatencyHistogram();
+                for (int op = 0; op < OP_NAMES.length; op++) {
+                    LatencyHistogram merged = new LatencyHistogram();
+                    for (Worker w : workers) merged.add(w.getLatencies()[op]);
+                    ex.latencies.add(merged);
+                    for (double percentile : LATENCY_PERCENTILES) {
+                        out.print("," + merged.getValueAtPercentile(percentile));
+                    }
+                    out.print("," + merged.getMaxValue());
+                }
+            }
+
             if (PRINT_FREEMEM) {
                 System.gc();
                 final long freemem = Runtime.getRuntime().freeMemory();
@@ -432,6 +1001,55 @@ public class Main {
         return true;
     }
 
+    /**
+     * Replay every section of the trace on its own thread against the prefilled `tree`, whatever the thread count and
+     * duration of the run, and print a row per replay thread and one for all of them.
+     */
+    protected void runReplay(final PrintStream out, final String prefix, final SizeKeysumPair pair, final BSTInterface tree) {
+        final List<ReplayWorker> workers = new ArrayList<>();
+        final AtomicLong replayStart = new AtomicLong();
+        try (Trace trace = Trace.open(traceReplay)) {
+            if (trace.hasLongKeys() && !(tree instanceof LongBSTInterface)) {
+                throw new RuntimeException("the trace " + traceReplay + " has long keys, " + tree.getName() + " has int keys");
+            }
+            final CyclicBarrier start = new CyclicBarrier(trace.threads(), () -> replayStart.set(System.nanoTime()));
+            for (int i = 0; i < trace.threads(); i++) {
+                workers.add(new ReplayWorker(trace.cursor(i), tree, switches.get("replayTiming") != 0, start, replayStart));
+            }
+            System.gc();
+            for (ReplayWorker w : workers) w.start();
+            for (ReplayWorker w : workers) w.join();
+
+            long threadsKeysum = pair.keysum;
+            for (ReplayWorker w : workers) threadsKeysum += w.keysum;
+            if (tree.getKeysum() != threadsKeysum) {
+                throw new RuntimeException("threadsKeysum=" + threadsKeysum + " does not match dsKeysum=" + tree.getKeysum());
+            }
+
+            LatencyHistogram all = new LatencyHistogram();
+            long allOps = 0, end = 0;
+            for (int i = 0; i < workers.size(); i++) {
+                ReplayWorker w = workers.get(i);
+                printReplayRow(out, prefix + "," + i + "," + trace.threadId(i), w.ops, w.endTime - replayStart.get(), w.latencies);
+                all.add(w.latencies);
+                allOps += w.ops;
+                end = Math.max(end, w.endTime);
+            }
+            printReplayRow(out, prefix + ",all,all", allOps, end - replayStart.get(), all);
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void printReplayRow(final PrintStream out, final String prefix, final long ops, final long nanos, final LatencyHistogram latencies) {
+        final double elapsed = nanos / 1e9;
+        out.print(prefix + "," + ops + "," + elapsed + "," + (elapsed > 0 ? (long) (ops / elapsed) : 0));
+        for (double percentile : LATENCY_PERCENTILES) {
+            out.print("," + latencies.getValueAtPercentile(percentile));
+        }
+        out.println("," + latencies.getMaxValue());
+    }
+
     private long totalGarbageCollectionTimeMillis() {
         final List<GarbageCollectorMXBean> gcbeans = ManagementFactory.getGarbageCollectorMXBeans();
         long result = 0;
@@ -442,41 +1060,72 @@ public class Main {
     }
 
     protected static final class Ratio {
-        final double del, ins;
+        final double del, ins, range;
 
         public Ratio(final double ins, final double del) {
-            if (ins < 0 || del < 0 || ins + del > 1)
-                throw new RuntimeException("invalid ratio " + ins + "i-" + del + "d");
+            this(ins, del, 0);
+        }
+
+        public Ratio(final double ins, final double del, final double range) {
+            if (ins < 0 || del < 0 || range < 0 || ins + del + range > 1)
+                throw new RuntimeException("invalid ratio " + ins + "i-" + del + "d-" + range + "r");
             this.del = del;
             this.ins = ins;
+            this.range = range;
         }
 
         @Override
         public String toString() {
-            return (int) (100 * ins) + "i-" + (int) (100 * del) + "d";
+            return (int) (100 * ins) + "i-" + (int) (100 * del) + "d" + (range > 0 ? "-" + (int) (100 * range) + "r" : "");
         }
     }
 
     protected enum ExperimentState {PENDING, RUNNING, STOPPED}
 
+    /**
+     * RANDOM reaches the steady state with random inserts and removes, BULK bulk-loads a random key set of the steady-state size.
+     */
+    protected enum PrefillMode {NONE, RANDOM, BULK}
+
     public final class Experiment {
         volatile ExperimentState state = ExperimentState.PENDING;
         double totalThreadTime;
         final String alg;
-        final int nprocs, maxkey;
+        final int nprocs;
+        final long maxkey;
         final Ratio ratio;
+        final int snapshotRate; // snapshots per second taken while the trial runs
+        final WriteAheadLog.FsyncPolicy walPolicy; // null unless the updates are logged
+        final KeyDistribution dist;
+        final long rate; // offered ops/s over all threads in open-loop mode, 0 for closed-loop workers
+        LatencyHistogram latencies; // of all operations of the last trial, if latencies are measured
         int throughput; // exists to make access to this convenient so that we can decide whether we have finished warming up
 
-        public Experiment(final String alg, final int nprocs, final int maxkey, final Ratio ratio) {
+        public Experiment(final String alg, final int nprocs, final long maxkey, final Ratio ratio, final int snapshotRate,
+                          final WriteAheadLog.FsyncPolicy walPolicy, final KeyDistribution dist, final long rate) {
             this.alg = alg;
             this.nprocs = nprocs;
             this.maxkey = maxkey;
             this.ratio = ratio;
+            this.snapshotRate = snapshotRate;
+            this.walPolicy = walPolicy;
+            this.dist = dist;
+            this.rate = rate;
+        }
+
+        /**
+         * The same experiment at another offered rate.
+         */
+        Experiment withRate(final long rate) {
+            return new Experiment(alg, nprocs, maxkey, ratio, snapshotRate, walPolicy, dist, rate);
         }
 
         @Override
         public String toString() {
-            return alg + "-" + nprocs + "thr-" + maxkey + "keys-" + ratio;
+            return alg + "-" + nprocs + "thr-" + maxkey + "keys-" + ratio + (snapshotRate > 0 ? "-" + snapshotRate + "snap/s" : "")
+                    + (walPolicy != null ? "-wal-" + walPolicy.name().toLowerCase() : "")
+                    + (dist.kind != KeyDistribution.Kind.UNIFORM ? "-" + dist : "")
+                    + (rate > 0 ? "-" + rate + "ops/s" : "");
         }
     }
 
@@ -597,7 +1246,7 @@ public class Main {
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
             }
-            treeSize = tree.size();
+            treeSize = tree.approximateSize(); // exact here, all prefilling threads have finished
             for (int i = 0; i < numThreads; i++) {
                 keysum += workers[i].getKeysum();
             }
@@ -609,9 +1258,119 @@ public class Main {
         return new SizeKeysumPair(treeSize, keysum);
     }
 
+    /**
+     * Bulk-load every key of [1, maxkey] with the steady-state probability ins/(ins+del),
+     * which gives a tree of the same expected size as {@link #fillToSteadyState} in one linear pass.
+     */
+    SizeKeysumPair fillByBulkLoad(
+            final java.util.Random rand,
+            final BSTInterface tree,
+            Ratio ratio,
+            int maxkey) {
+
+        final double probability = Math.abs(ratio.ins + ratio.del) < 1e-8 ? 0.5 : ratio.ins / (ratio.ins + ratio.del);
+        long startFilling = System.nanoTime();
+
+        int[] keys = new int[(int) Math.min(maxkey, maxkey * probability * 1.1 + 16)];
+        int treeSize = 0;
+        long keysum = 0;
+        for (int key = 1; key <= maxkey && key > 0; key++) {
+            if (rand.nextDouble() < probability) {
+                if (treeSize == keys.length) keys = Arrays.copyOf(keys, Math.min(maxkey, 2 * keys.length));
+                keys[treeSize++] = key;
+                keysum += key;
+            }
+        }
+        tree.bulkLoadParallel(Arrays.copyOf(keys, treeSize));
+
+        long endFilling = System.nanoTime();
+        System.out.print("initnodes-" + treeSize + "-");
+        System.out.print("in" + toPercent((endFilling - startFilling) / 1e6 / 100) + "ms[bulk]-");
+        return new SizeKeysumPair(treeSize, keysum);
+    }
+
+    /**
+     * Bulk-load the keys of a checkpoint file, decoded straight from its mapping.
+     */
+    SizeKeysumPair fillFromCheckpoint(final BSTInterface tree, final Path file) {
+        long startFilling = System.nanoTime();
+        try {
+            Checkpoint.Keys keys = Checkpoint.open(file);
+            tree.bulkLoad(keys.size(), keys);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        long endFilling = System.nanoTime();
+        int treeSize = tree.approximateSize();
+        System.out.print("initnodes-" + treeSize + "-");
+        System.out.print("in" + toPercent((endFilling - startFilling) / 1e6 / 100) + "ms[mapped]-");
+        return new SizeKeysumPair(treeSize, tree.getKeysum());
+    }
+
+    /**
+     * Save the keys of a prefilled tree, in order from its root when it has BST nodes, for later runs to load.
+     */
+    void writeCheckpoint(final BSTInterface tree, final Path file) {
+        PrimitiveIterator.OfInt keys;
+        try {
+            keys = Checkpoint.inOrder(tree.getRoot());
+        } catch (UnsupportedOperationException e) {
+            keys = tree.iterator();
+        }
+        try {
+            Checkpoint.write(file, keys);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Make the updates of the prefilled `tree` durable in a fresh directory under -walDir.
+     */
+    private DurableSet openLog(final BSTInterface tree, final Experiment ex) {
+        try {
+            Path directory = Files.createTempDirectory(Files.createDirectories(walDirectory), "wal-");
+            return DurableSet.create(tree, directory, ex.walPolicy, (long) switches.get("walSyncMs"), (long) switches.get("checkpointMs"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Close the log of a trial, rebuild the set from it into a fresh tree and delete it.
+     *
+     * @return the milliseconds that recovery took
+     */
+    private double closeAndRecover(final DurableSet durable, final Experiment ex, final long expectedKeysum) {
+        try {
+            durable.close();
+            long start = System.nanoTime();
+            BSTInterface recovered = Algorithms.create(ex.alg);
+            DurableSet.load(recovered, durable.directory());
+            double recoveryMs = (System.nanoTime() - start) / 1e6;
+            if (recovered.getKeysum() != expectedKeysum) {
+                throw new RuntimeException("recovered keysum=" + recovered.getKeysum() + " does not match dsKeysum=" + expectedKeysum);
+            }
+            DurableSet.delete(durable.directory());
+            return recoveryMs;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     protected ArrayList<Experiment> getExperiments() {
         final ArrayList<Experiment> exp = new ArrayList<Experiment>();
-        exp.add(new Experiment(alg, nthreads, (int) switches.get("keyRange"), ratio));
+        for (String alg : algs) {
+            for (int snapshotRate : snapshotRates.isEmpty() ? List.of(0) : snapshotRates) {
+                for (WriteAheadLog.FsyncPolicy walPolicy : walPolicies.isEmpty() ? Collections.<WriteAheadLog.FsyncPolicy>singletonList(null) : walPolicies) {
+                    for (KeyDistribution dist : distributions.isEmpty() ? List.of(KeyDistribution.UNIFORM) : distributions) {
+                        for (long rate : rates.isEmpty() ? List.of(0L) : rates) {
+                            exp.add(new Experiment(alg, nthreads, keyRange, ratio, snapshotRate, walPolicy, dist, rate));
+                        }
+                    }
+                }
+            }
+        }
         return exp;
     }
 
@@ -636,8 +1395,47 @@ public class Main {
             throw new RuntimeException(e);
         }
 
-        out.print("name,trial,nthreads,threadops,maxkey,ratio,seed,time,gcTime,throughput");
-        out.println();
+        if (traceReplay != null) {
+            out.print("name,trial,thread,recordedThread,ops,time,throughput");
+            for (String percentile : LATENCY_COLUMNS) {
+                out.print("," + percentile + "ns");
+            }
+            out.println(",maxns");
+        } else out.print("name,trial,nthreads,threadops,maxkey,ratio,seed,time,gcTime,throughput");
+        if (switches.get("batch") != 0) {
+            out.print(",batch");
+        }
+        if (switches.get("alloc") != 0) {
+            out.print(",allocMBps,allocBytesPerOp");
+        }
+        if (switches.get("contention") != 0) {
+            out.print(",blocked,blockedMs,waited,waitedMs");
+            bean.setThreadContentionMonitoringEnabled(bean.isThreadContentionMonitoringSupported());
+        }
+        if (!snapshotRates.isEmpty()) {
+            out.print(",snapshotRate,snapshots,snapshotExportMs");
+        }
+        if (!distributions.isEmpty()) {
+            out.print(",dist");
+        }
+        if (!walPolicies.isEmpty()) {
+            out.print(",wal,walForces,checkpoints,recoveryMs");
+        }
+        if (!rates.isEmpty()) {
+            out.print(",rate");
+        }
+        if (switches.get("vthreads") != 0) {
+            out.print(",carriers,pinnedCarriers");
+        }
+        if (switches.get("latency") != 0) {
+            for (String op : OP_NAMES) {
+                for (String percentile : LATENCY_COLUMNS) {
+                    out.print("," + op + "_" + percentile + "ns");
+                }
+                out.print("," + op + "_maxns");
+            }
+        }
+        if (traceReplay == null) out.println();
 
         ArrayList<Experiment> exp = getExperiments();
 
@@ -645,6 +1443,10 @@ public class Main {
             System.out.println(ex);
         }
         System.out.println(exp.size() + " experiments in total");
+        if (traceRecord != null && exp.size() > 1) {
+            System.out.println("-traceRecord records a single experiment, got " + exp.size());
+            System.exit(-1);
+        }
         int numberOfRuns = exp.size() * ntrials;
 
         final long startTime = System.nanoTime();
@@ -656,41 +1458,70 @@ public class Main {
             System.out.println(" free memory: " + startFreemem);
         }
 
-        BST.Node root = null;
+        BSTInterface lastTree = null;
         java.util.Random rng = new java.util.Random((int) switches.get("seed"));
-        for (Experiment ex : exp) {
-            int experimentSeed = rng.nextInt();
+        // every algorithm runs on the same seed, so the rows of one run compare like for like
+        int experimentSeed = rng.nextInt();
+        final double sweepFactor = switches.get("rateSweepFactor");
+        for (int e = 0; e < exp.size(); e++) {
+            final Experiment ex = exp.get(e);
             java.util.Random experimentRng = new java.util.Random(experimentSeed);
 
             for (int trial = 0; trial < ntrials; ++trial) {
-                BSTInterface tree = new BST();
+                BSTInterface tree = Algorithms.create(ex.alg);
                 SizeKeysumPair p = new SizeKeysumPair(0, 0);
-                if (prefill) p = fillToSteadyState(experimentRng, tree, ex.ratio, ex.maxkey, false);
-                if (!runTrial(out, false, trial + 1 == ntrials, tree.getName() + "," + trial, p, experimentRng, tree, ex))
+                // prefilling is only allowed for key ranges of at most Integer.MAX_VALUE
+                if (prefillFile != null && Files.exists(prefillFile)) p = fillFromCheckpoint(tree, prefillFile);
+                else {
+                    if (prefill == PrefillMode.RANDOM) p = fillToSteadyState(experimentRng, tree, ex.ratio, (int) ex.maxkey, false);
+                    else if (prefill == PrefillMode.BULK) p = fillByBulkLoad(experimentRng, tree, ex.ratio, (int) ex.maxkey);
+                    if (prefillFile != null) writeCheckpoint(tree, prefillFile);
+                }
+                // the prefilled keys become the first checkpoint, only the trial's updates are logged
+                if (ex.walPolicy != null) tree = openLog(tree, ex);
+                if (traceReplay != null) runReplay(out, ex.alg + "," + trial, p, tree);
+                else if (!runTrial(out, false, trial + 1 == ntrials, ex.alg + "," + trial, p, experimentRng, tree, ex))
                     System.exit(-1);
                 progress(stdout, tree, ++nCompleted, trial, tree.getName(), startTime, numberOfRuns, ex);
-                root = tree.getRoot();
+                lastTree = tree;
+            }
+            // a rate sweep raises the offered rate for as long as the structure keeps up with it
+            if (sweepFactor > 0 && ex.throughput >= RATE_SATURATION * ex.rate && ex.rate < MAX_SWEEP_RATE) {
+                exp.add(e + 1, ex.withRate((long) Math.ceil(ex.rate * sweepFactor)));
+                numberOfRuns += ntrials;
             }
         }
+        if (!rates.isEmpty()) printRateCurve(exp);
         if (validate) {
-            traverseInOrder(root);
+            if (lastTree instanceof LongBSTInterface) {
+                ((LongBSTInterface) lastTree).rangeScanLong(Long.MIN_VALUE, Long.MAX_VALUE, key -> resultArr.add(i++, key));
+            } else {
+                for (PrimitiveIterator.OfInt keys = lastTree.iterator(); keys.hasNext(); ) {
+                    resultArr.add(i++, (long) keys.nextInt());
+                }
+            }
             writeResultArrayToFile(filename, resultArr);
             validateResultTree();
         }
     }
 
-    void traverseInOrder(BST.Node node) {
-        if (node != null) {
-            traverseInOrder(node.left);
-            resultArr.add(i++, node.key);
-            traverseInOrder(node.right);
+    /**
+     * Print the throughput and latency of every offered rate, marking the rates the structure could not sustain.
+     */
+    void printRateCurve(final List<Experiment> exp) {
+        System.out.println("throughput and latency by offered rate:");
+        System.out.printf("%-40s %12s %12s %12s %12s %12s%n", "experiment", "offered", "achieved", "p50ns", "p99ns", "p99.9ns");
+        for (Experiment ex : exp) {
+            System.out.printf("%-40s %12d %12d %12d %12d %12d%s%n", ex.withRate(0), ex.rate, ex.throughput,
+                    ex.latencies.getValueAtPercentile(50), ex.latencies.getValueAtPercentile(99), ex.latencies.getValueAtPercentile(99.9),
+                    ex.throughput < RATE_SATURATION * ex.rate ? "  saturated" : "");
         }
     }
 
-    void writeResultArrayToFile(String filename, List<Integer> array) {
+    void writeResultArrayToFile(String filename, List<Long> array) {
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(filename, true))) {
             bw.append("Result arr: ").append("\n");
-            for (int value : array) {
+            for (long value : array) {
                 bw.append(String.valueOf(value)).append(" ");
             }
             bw.append("\n");
@@ -700,8 +1531,8 @@ public class Main {
     }
 
     void validateResultTree() {
-        int curVal = Integer.MIN_VALUE;
-        for (Integer key : resultArr) {
+        long curVal = Long.MIN_VALUE;
+        for (long key : resultArr) {
             assert key >= curVal : "Expected greater than or equal to key";
             curVal = key;
         }
@@ -733,23 +1564,64 @@ public class Main {
             System.out.println("Can also include switches after mandatory arguments:");
             System.out.println("\t-s###     to set the random seed (32-bit signed int; default is " + Globals.DEFAULT_SEED + ")");
             System.out.println("\t-prefill  to prefill structures to steady state with random operations");
+            System.out.println("\t-prefill=bulk to prefill structures by bulk-loading a random key set of the steady-state size");
+            System.out.println("\t-prefillFile=### to prefill from the checkpoint file ###, mapped and bulk-loaded; it is written by the first prefill if missing");
             System.out.println("\t-file-### to specify an output file to store results in");
+            System.out.println("\t-alloc    to add the allocation rate of the worker threads (MB/s and bytes per operation)");
+            System.out.println("\t-contention to add the times the workers blocked on monitors and waited (parked) during the trial, and the ms they spent so");
+            System.out.println("\t-vthreads to run the #THREADS workers on virtual threads, each yielding after every operation like a request handler,");
+            System.out.println("\t          and to add the carrier threads and the mean number of them pinned by a virtual thread blocked on a monitor");
+            System.out.println("\t          (carriers are the threads named ForkJoinPool-#-worker-#, as the default scheduler names them; n/a if there are none)");
+            System.out.println("\t-latency  to add p50/p99/p99.9/max latency columns (ns) per operation type");
+            System.out.println("\t-latencyInterval### to also pace each thread to one operation every ### ns, correcting latencies for coordinated omission");
+            System.out.println("\t-rate=### comma-separated offered rates (ops/s over all threads) to run each algorithm at in an open loop:");
+            System.out.println("\t          each thread starts its operations on a fixed schedule, and latency counts from the scheduled start");
+            System.out.println("\t-rate=sweep[:start[:factor]] to raise the offered rate from start (default " + DEFAULT_SWEEP_RATE + ") by factor (default "
+                    + DEFAULT_SWEEP_FACTOR + ") until the achieved rate falls below " + (int) (RATE_SATURATION * 100) + "% of it, then print the curve");
+            System.out.println("\t-batch=### to run inserts, deletes and searches in batches of ### keys (insertAll, removeAll, containsAll); throughput counts keys;");
+            System.out.println("\t          not for long-keyed structures (LongBST)");
+            System.out.println("\t-snapshotRate=### comma-separated snapshots per second to run each algorithm at, exporting every snapshot (0 for none)");
+            System.out.println("\t-wal=###  comma-separated fsync policies (always, interval, never) to run each algorithm at, logging every update");
+            System.out.println("\t-walDir=### directory to create the logs and checkpoints in (default: the temporary directory)");
+            System.out.println("\t-walSyncMs### period of the forces of the interval policy (default 100)");
+            System.out.println("\t-checkpointMs### period of the background checkpoints while logging (default 0, none)");
+            System.out.println("\t-traceRecord=### to record the operations of the last trial (type, key, thread, start time) to the file ###");
+            System.out.println("\t-traceReplay=### to replay the trace ### instead, a thread per recorded thread, printing per-thread throughput and latency");
+            System.out.println("\t          (prefill the way the recording did, e.g. with the same -prefillFile, to replay against the same keys)");
+            System.out.println("\t-replayTiming to pace the replay to the recorded start times (default: as fast as possible)");
+            System.out.println("\t-alg=###  comma-separated data structures to compare, from " + Algorithms.names() + " (default BST)");
             System.out.println("The following switches determine which operations are run (leftover % becomes search):");
             System.out.println("\t-ins%     to specify what % (0 to 100) of ops should be inserts");
             System.out.println("\t-del%     to specify what % (0 to 100) of ops should be deletes");
-            System.out.println("\t-keysM    random keys will be uniformly from range [0,M) (default 1000000)");
+            System.out.println("\t-range%   to specify what % (0 to 100) of ops should be range counts");
+            System.out.println("\t-rangeSize### number of keys covered by a range count (default 100)");
+            System.out.println("\t-dist=###  comma-separated key distributions to run each algorithm at (default uniform):");
+            System.out.println("\t          zipf[:theta], hotspot[:hotKeys[:hotOps]], latest[:theta], sequential, partitioned (disjoint key slices per thread)");
+            System.out.println("\t-keysM    keys are drawn from range [1,M] (default 1000000)");
+            System.out.println("\t          M may exceed " + Integer.MAX_VALUE + " for long-keyed structures (LongBST), without prefilling");
             System.exit(-1);
         }
         int nthreads = 0;
         int ntrials = 0;
         double nseconds = 0;
         String filename = null;
-        boolean prefill = false;
+        List<String> algs = new ArrayList<>();
+        List<Integer> snapshotRates = new ArrayList<>();
+        List<WriteAheadLog.FsyncPolicy> walPolicies = new ArrayList<>();
+        List<KeyDistribution> distributions = new ArrayList<>();
+        List<Long> rates = new ArrayList<>();
+        Path traceRecord = null, traceReplay = null;
+        Path walDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+        PrefillMode prefill = PrefillMode.NONE;
+        Path prefillFile = null;
         boolean validate = false;
 
+        long keyRange = Globals.DEFAULT_KEYRANGE;
+
         SwitchMap switches = new SwitchMap();
         switches.put("seed", (double) Globals.DEFAULT_SEED);
-        switches.put("keyRange", (double) Globals.DEFAULT_KEYRANGE);
+        switches.put("rangeSize", 100.);
+        switches.put("walSyncMs", 100.);
 
         try {
             nthreads = Integer.parseInt(args[0]);
@@ -807,23 +1679,163 @@ public class Main {
                         System.out.println("The delete percentage must be a 32-bit integer.");
                         System.exit(-1);
                     }
+                } else if (arg.matches("-range[0-9]+(\\.[0-9]+){0,1}")) {
+                    try {
+                        switches.put("ratio-range", Double.parseDouble(arg.substring("-range".length())));
+                        totalOpPercent += (int) switches.get("ratio-range");
+                    } catch (Exception ex) {
+                        System.out.println("The range query percentage must be a 32-bit integer.");
+                        System.exit(-1);
+                    }
+                } else if (arg.matches("-rangeSize[0-9]+")) {
+                    try {
+                        switches.put("rangeSize", (double) Integer.parseInt(arg.substring("-rangeSize".length())));
+                        if (switches.get("rangeSize") < 1) {
+                            System.out.println("The range size must be > 0");
+                            System.exit(-1);
+                        }
+                    } catch (Exception ex) {
+                        System.out.println("The range size must be a 32-bit integer.");
+                        System.exit(-1);
+                    }
                 } else if (arg.matches("-validate")) {
                     validate = true;
                 } else if (arg.matches("-keys[0-9]+")) {
                     try {
-                        switches.put("keyRange", (double) Integer.parseInt(arg.substring(5)));
-                        if (switches.get("keyRange") < 1) {
+                        keyRange = Long.parseLong(arg.substring(5));
+                        if (keyRange < 1) {
                             System.out.println("The key range must be > 0");
                             System.exit(-1);
                         }
                     } catch (Exception ex) {
-                        System.out.println("The key range must be a 32-bit integer.");
+                        System.out.println("The key range must be a 64-bit integer.");
+                        System.exit(-1);
+                    }
+                } else if (arg.startsWith("-alg=")) {
+                    for (String alg : arg.substring("-alg=".length()).split(",")) {
+                        if (!Algorithms.contains(alg)) {
+                            System.out.println("Unknown algorithm \"" + alg + "\", expected one of " + Algorithms.names());
+                            System.exit(-1);
+                        }
+                        algs.add(alg);
+                    }
+                } else if (arg.matches("-snapshotRate=[0-9]+(,[0-9]+)*")) {
+                    try {
+                        for (String rate : arg.substring("-snapshotRate=".length()).split(",")) {
+                            snapshotRates.add(Integer.parseInt(rate));
+                        }
+                    } catch (Exception ex) {
+                        System.out.println("Snapshot rates must be 32-bit integers.");
+                        System.exit(-1);
+                    }
+                } else if (arg.startsWith("-wal=")) {
+                    for (String policy : arg.substring("-wal=".length()).split(",")) {
+                        try {
+                            walPolicies.add(WriteAheadLog.FsyncPolicy.valueOf(policy.toUpperCase()));
+                        } catch (IllegalArgumentException ex) {
+                            System.out.println("Unknown fsync policy \"" + policy + "\", expected always, interval or never");
+                            System.exit(-1);
+                        }
+                    }
+                } else if (arg.startsWith("-dist=")) {
+                    for (String dist : arg.substring("-dist=".length()).split(",")) {
+                        try {
+                            distributions.add(KeyDistribution.parse(dist));
+                        } catch (IllegalArgumentException ex) {
+                            System.out.println("Invalid key distribution \"" + dist + "\": " + ex.getMessage());
+                            System.exit(-1);
+                        }
+                    }
+                } else if (arg.startsWith("-rate=sweep")) {
+                    String[] parts = arg.substring("-rate=sweep".length()).split(":", -1);
+                    try {
+                        if (parts.length > 3 || !parts[0].isEmpty()) throw new IllegalArgumentException();
+                        long start = parts.length > 1 ? Long.parseLong(parts[1]) : DEFAULT_SWEEP_RATE;
+                        double factor = parts.length > 2 ? Double.parseDouble(parts[2]) : DEFAULT_SWEEP_FACTOR;
+                        if (start < 1 || !(factor > 1)) throw new IllegalArgumentException();
+                        rates.add(start);
+                        switches.put("rateSweepFactor", factor);
+                        switches.put("latency", 1.);
+                    } catch (IllegalArgumentException ex) {
+                        System.out.println("Expected -rate=sweep[:start[:factor]] with a start of at least 1 op/s and a factor > 1, got \"" + arg + "\"");
+                        System.exit(-1);
+                    }
+                } else if (arg.startsWith("-rate=")) {
+                    for (String rate : arg.substring("-rate=".length()).split(",")) {
+                        try {
+                            rates.add(Long.parseLong(rate));
+                        } catch (NumberFormatException ex) {
+                            System.out.println("Rates must be 64-bit integer numbers of operations per second.");
+                            System.exit(-1);
+                        }
+                        if (rates.get(rates.size() - 1) < 1) {
+                            System.out.println("Rates must be > 0");
+                            System.exit(-1);
+                        }
+                    }
+                    switches.put("latency", 1.); // latencies are what an open loop measures
+                } else if (arg.startsWith("-traceRecord=")) {
+                    traceRecord = Paths.get(arg.substring("-traceRecord=".length()));
+                    switches.put("latency", 1.); // operations are recorded by the timed loop
+                } else if (arg.startsWith("-traceReplay=")) {
+                    traceReplay = Paths.get(arg.substring("-traceReplay=".length()));
+                } else if (arg.matches("-replayTiming")) {
+                    switches.put("replayTiming", 1.);
+                } else if (arg.startsWith("-walDir=")) {
+                    walDirectory = Paths.get(arg.substring("-walDir=".length()));
+                } else if (arg.matches("-walSyncMs[0-9]+")) {
+                    try {
+                        switches.put("walSyncMs", (double) Long.parseLong(arg.substring("-walSyncMs".length())));
+                        if (switches.get("walSyncMs") < 1) {
+                            System.out.println("The sync interval must be > 0");
+                            System.exit(-1);
+                        }
+                    } catch (Exception ex) {
+                        System.out.println("The sync interval must be a 64-bit integer number of milliseconds.");
+                        System.exit(-1);
+                    }
+                } else if (arg.matches("-checkpointMs[0-9]+")) {
+                    try {
+                        switches.put("checkpointMs", (double) Long.parseLong(arg.substring("-checkpointMs".length())));
+                    } catch (Exception ex) {
+                        System.out.println("The checkpoint interval must be a 64-bit integer number of milliseconds.");
                         System.exit(-1);
                     }
                 } else if (arg.startsWith("-file-")) {
                     filename = arg.substring("-file-".length());
+                } else if (arg.matches("-vthreads")) {
+                    switches.put("vthreads", 1.);
+                } else if (arg.matches("-alloc")) {
+                    switches.put("alloc", 1.);
+                } else if (arg.matches("-contention")) {
+                    switches.put("contention", 1.);
+                } else if (arg.matches("-latency")) {
+                    switches.put("latency", 1.);
+                } else if (arg.matches("-latencyInterval[0-9]+")) {
+                    try {
+                        switches.put("latency", 1.);
+                        switches.put("latencyInterval", (double) Long.parseLong(arg.substring("-latencyInterval".length())));
+                    } catch (Exception ex) {
+                        System.out.println("The latency interval must be a 64-bit integer number of nanoseconds.");
+                        System.exit(-1);
+                    }
+                } else if (arg.matches("-batch=[0-9]+")) {
+                    try {
+                        switches.put("batch", (double) Integer.parseInt(arg.substring("-batch=".length())));
+                        if (switches.get("batch") < 1) {
+                            System.out.println("The batch size must be > 0");
+                            System.exit(-1);
+                        }
+                    } catch (Exception ex) {
+                        System.out.println("The batch size must be a 32-bit integer.");
+                        System.exit(-1);
+                    }
+                } else if (arg.startsWith("-prefillFile=")) {
+                    prefillFile = Paths.get(arg.substring("-prefillFile=".length()));
                 } else if (arg.matches("-prefill")) {
-                    prefill = true;
+                    prefill = PrefillMode.RANDOM;
+                } else if (arg.matches("-prefill=bulk")) {
+                    prefill = PrefillMode.BULK;
                 } else {
                     System.out.println("Unrecognized command-line switch: \"" + arg + "\"");
                     System.exit(-1);
@@ -831,14 +1843,90 @@ public class Main {
             }
         }
 
+        if (algs.isEmpty()) {
+            algs.add("BST");
+        }
+
+        if (prefillFile != null && prefill == PrefillMode.NONE) {
+            prefill = PrefillMode.RANDOM; // to create the file when it is missing
+        }
+
+        if (keyRange > Integer.MAX_VALUE) {
+            for (String alg : algs) {
+                if (!(Algorithms.create(alg) instanceof LongBSTInterface)) {
+                    System.out.println("Key ranges beyond " + Integer.MAX_VALUE + " need long-keyed structures, \"" + alg + "\" has int keys");
+                    System.exit(-1);
+                }
+            }
+            if (prefill != PrefillMode.NONE || prefillFile != null) {
+                System.out.println("Prefilling is not supported for key ranges beyond " + Integer.MAX_VALUE);
+                System.exit(-1);
+            }
+        }
+
+        if (switches.get("batch") != 0 && (switches.get("latency") != 0 || keyRange > Integer.MAX_VALUE)) {
+            System.out.println("-batch runs int keys without per-operation latencies, it cannot be combined with -latency or long key ranges");
+            System.exit(-1);
+        }
+        if (switches.get("batch") != 0) {
+            for (String alg : algs) {
+                if (Algorithms.create(alg) instanceof LongBSTInterface) {
+                    System.out.println("-batch runs int keys, \"" + alg + "\" has long keys");
+                    System.exit(-1);
+                }
+            }
+        }
+
+        if (traceRecord != null && traceReplay != null) {
+            System.out.println("-traceRecord and -traceReplay cannot be combined");
+            System.exit(-1);
+        }
+
+        if (switches.get("vthreads") != 0 && (switches.get("alloc") != 0 || switches.get("contention") != 0 || traceReplay != null)) {
+            System.out.println("-vthreads cannot be combined with -alloc or -contention, which need per-thread counters, or -traceReplay, which runs a thread per recorded thread");
+            System.exit(-1);
+        }
+
+        if (traceReplay != null && (switches.get("batch") != 0 || switches.get("alloc") != 0 || switches.get("contention") != 0
+                || switches.get("latency") != 0 || !snapshotRates.isEmpty() || !distributions.isEmpty() || !walPolicies.isEmpty())) {
+            System.out.println("-traceReplay prints its own columns, it cannot be combined with -batch, -alloc, -contention, -latency, -snapshotRate, -dist or -wal");
+            System.exit(-1);
+        }
+
+        if (!rates.isEmpty() && (switches.get("latencyInterval") != 0 || switches.get("batch") != 0 || traceReplay != null)) {
+            System.out.println("-rate schedules every operation itself, it cannot be combined with -latencyInterval, -batch or -traceReplay");
+            System.exit(-1);
+        }
+
+        if (switches.get("rateSweepFactor") != 0 && (rates.size() > 1 || traceRecord != null)) {
+            System.out.println("-rate=sweep chooses the rates itself, it cannot be combined with other rates or -traceRecord");
+            System.exit(-1);
+        }
+
+        if (!walPolicies.isEmpty() && keyRange > Integer.MAX_VALUE) {
+            System.out.println("-wal logs int keys, it cannot be combined with long key ranges");
+            System.exit(-1);
+        }
+
+        if (snapshotRates.stream().anyMatch(rate -> rate > 0)) {
+            for (String alg : algs) {
+                try {
+                    Algorithms.create(alg).snapshot().close();
+                } catch (UnsupportedOperationException ex) {
+                    System.out.println("-snapshotRate needs structures that take snapshots, \"" + alg + "\" cannot");
+                    System.exit(-1);
+                }
+            }
+        }
+
         if (totalOpPercent > 100) {
             System.out.println("Total percentage over all operations cannot exceed 100");
             System.exit(-1);
         }
 
-        (new Main(nthreads, ntrials, nseconds, filename,
-                new Ratio(switches.get("ratio-ins") / 100., switches.get("ratio-del") / 100.),
-                switches, prefill, validate)).run(output);
+        (new Main(nthreads, ntrials, nseconds, keyRange, filename,
+                new Ratio(switches.get("ratio-ins") / 100., switches.get("ratio-del") / 100., switches.get("ratio-range") / 100.),
+                algs, snapshotRates, walPolicies, walDirectory, distributions, traceRecord, traceReplay, rates, switches, prefill, prefillFile, validate)).run(output);
     }
 
     public static void main(String[] args) throws Exception {
@@ -47,4 +47,22 @@ public class Random {
         seed ^= seed << 7;
         return seed;
     }
+
+    /**
+     * Two steps of the same stream as the int methods, high word first.
+     */
+    public long nextLong() {
+        return ((long) nextInt() << 32) | (nextInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The same as nextNatural((int) n) when n fits an int, so long-keyed structures see the same keys as int-keyed
+     * ones under the same seed; larger ranges take a whole nextLong().
+     */
+    public long nextNatural(long n) {
+        if (n <= Integer.MAX_VALUE) {
+            return nextNatural((int) n);
+        }
+        return (nextLong() >>> 1) % n;
+    }
 }
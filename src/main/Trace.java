@@ -0,0 +1,300 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A recorded stream of operations, one section per worker thread, to replay against any structure.
+ * <p>
+ * The file starts with a header (magic, version, flags, number of threads) and a table with the recorded thread id,
+ * the number of records, the offset and length of the section and the start of its first operation relative to the
+ * earliest thread's, then the sections. A record is the operation type (an index of {@link Main#OP_NAMES}) as a byte,
+ * the zigzag varint of the key and the varint of the ns since the start of the thread's previous operation.
+ * Range counts only record their first key, the replay covers the -rangeSize of the replaying run.
+ * <p>
+ * Each worker records into its own spill file while it runs, and the spills are assembled after the trial.
+ * A replay maps each section and decodes it as it goes.
+ */
+public final class Trace implements AutoCloseable {
+    private static final int MAGIC = 0x42535454; // "BSTT"
+    private static final short VERSION = 1;
+    private static final short LONG_KEYS = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int ENTRY_BYTES = 40;
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final int MAX_RECORD_BYTES = 1 + 10 + 10;
+
+    private final FileChannel channel;
+    private final boolean longKeys;
+    private final int[] threadIds;
+    private final long[] records;
+    private final long[] offsets;
+    private final long[] lengths;
+    private final long[] startOffsets;
+
+    private Trace(FileChannel channel, boolean longKeys, int threads) {
+        this.channel = channel;
+        this.longKeys = longKeys;
+        this.threadIds = new int[threads];
+        this.records = new long[threads];
+        this.offsets = new long[threads];
+        this.lengths = new long[threads];
+        this.startOffsets = new long[threads];
+    }
+
+    /**
+     * Records the operations of one worker into a spill file next to the trace. Not thread-safe.
+     */
+    public static final class Recorder implements AutoCloseable {
+        private final Path spill;
+        private final int threadId;
+        private final FileChannel out;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        private long records;
+        private long bytes;
+        private long firstStart;
+        private long lastStart;
+
+        public Recorder(Path trace, int threadId) {
+            this.spill = trace.resolveSibling(trace.getFileName() + ".t" + threadId);
+            this.threadId = threadId;
+            try {
+                this.out = FileChannel.open(spill, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Append an operation of type `op` on `key` that started at System.nanoTime() `start`.
+         */
+        public void record(int op, long key, long start) {
+            if (records == 0) {
+                firstStart = lastStart = start;
+            }
+            if (buffer.remaining() < MAX_RECORD_BYTES) {
+                flush();
+            }
+            buffer.put((byte) op);
+            putVarint(buffer, (key << 1) ^ (key >> 63));
+            putVarint(buffer, start - lastStart);
+            lastStart = start;
+            records++;
+        }
+
+        private void flush() {
+            buffer.flip();
+            bytes += buffer.remaining();
+            try {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out.isOpen()) {
+                flush();
+                out.close();
+            }
+        }
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Write the trace of the closed `recorders` to `file`, one section per recorder in order, and delete their spills.
+     */
+    public static void assemble(Path file, List<Recorder> recorders, boolean longKeys) throws IOException {
+        long earliest = Long.MAX_VALUE;
+        for (Recorder recorder : recorders) {
+            recorder.close();
+            if (recorder.records > 0) {
+                earliest = Math.min(earliest, recorder.firstStart);
+            }
+        }
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer table = ByteBuffer.allocate(HEADER_BYTES + ENTRY_BYTES * recorders.size()).order(ByteOrder.BIG_ENDIAN);
+            table.putInt(MAGIC).putShort(VERSION).putShort(longKeys ? LONG_KEYS : 0).putInt(recorders.size()).putInt(0);
+            long offset = table.capacity();
+            for (Recorder recorder : recorders) {
+                table.putInt(recorder.threadId).putInt(0).putLong(recorder.records).putLong(offset).putLong(recorder.bytes)
+                        .putLong(recorder.records > 0 ? recorder.firstStart - earliest : 0);
+                offset += recorder.bytes;
+            }
+            table.flip();
+            while (table.hasRemaining()) {
+                out.write(table);
+            }
+            for (Recorder recorder : recorders) {
+                try (FileChannel in = FileChannel.open(recorder.spill, StandardOpenOption.READ)) {
+                    for (long done = 0; done < recorder.bytes; ) {
+                        done += in.transferTo(done, recorder.bytes - done, out);
+                    }
+                }
+                Files.delete(recorder.spill);
+            }
+        }
+    }
+
+    /**
+     * Open a trace for replay.
+     *
+     * @throws IOException if the file is not a trace
+     */
+    public static Trace open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.BIG_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC || header.getShort(4) != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " trace");
+            }
+            int threads = header.getInt(8);
+            if (threads < 0 || HEADER_BYTES + (long) ENTRY_BYTES * threads > channel.size()) {
+                throw new IOException("corrupt trace " + file + " of " + threads + " threads");
+            }
+            Trace trace = new Trace(channel, (header.getShort(6) & LONG_KEYS) != 0, threads);
+            ByteBuffer table = ByteBuffer.allocate(ENTRY_BYTES * threads).order(ByteOrder.BIG_ENDIAN);
+            readFully(channel, table, HEADER_BYTES);
+            for (int i = 0; i < threads; i++) {
+                trace.threadIds[i] = table.getInt();
+                table.getInt();
+                trace.records[i] = table.getLong();
+                trace.offsets[i] = table.getLong();
+                trace.lengths[i] = table.getLong();
+                trace.startOffsets[i] = table.getLong();
+                if (trace.offsets[i] + trace.lengths[i] > channel.size() || trace.lengths[i] > Integer.MAX_VALUE) {
+                    throw new IOException("corrupt or oversized section " + i + " in trace " + file);
+                }
+            }
+            return trace;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("truncated trace");
+            }
+        }
+        buffer.flip();
+    }
+
+    public int threads() {
+        return threadIds.length;
+    }
+
+    /**
+     * Whether the trace was recorded against a long-keyed structure, whose keys may not fit an int.
+     */
+    public boolean hasLongKeys() {
+        return longKeys;
+    }
+
+    public int threadId(int section) {
+        return threadIds[section];
+    }
+
+    public long records(int section) {
+        return records[section];
+    }
+
+    /**
+     * A cursor over the records of a section, decoded from its mapping.
+     */
+    public Cursor cursor(int section) throws IOException {
+        return new Cursor(channel.map(FileChannel.MapMode.READ_ONLY, offsets[section], lengths[section]),
+                records[section], startOffsets[section]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static final class Cursor {
+        private final MappedByteBuffer in;
+        private long remaining;
+        public int op;
+        public long key;
+        /**
+         * The ns from the start of the earliest thread's first operation to the start of this operation.
+         */
+        public long offset;
+
+        private Cursor(MappedByteBuffer in, long records, long startOffset) {
+            this.in = in;
+            this.remaining = records;
+            this.offset = startOffset;
+        }
+
+        /**
+         * Decode the next record into the public fields.
+         *
+         * @return false if the section has no more records
+         */
+        public boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            op = in.get();
+            long zigzag = getVarint();
+            key = (zigzag >>> 1) ^ -(zigzag & 1);
+            offset += getVarint();
+            return true;
+        }
+
+        private long getVarint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
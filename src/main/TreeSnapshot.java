@@ -0,0 +1,50 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable view of a set as it was at the moment {@link BSTInterface#snapshot()} returned.
+ * Reads on the view see none of the updates made after that moment and never block them.
+ * A view keeps the versions it sees alive until it is closed, or until it is garbage collected if it never is.
+ */
+public interface TreeSnapshot extends AutoCloseable {
+    public boolean contains(final int key);
+
+    public int size();
+
+    public long getKeysum();
+
+    public int rangeCount(int lo, int hi);
+
+    public void rangeScan(int lo, int hi, IntConsumer consumer);
+
+    /**
+     * The keys of the view in ascending order.
+     */
+    public PrimitiveIterator.OfInt iterator();
+
+    /**
+     * Release the view. Reading it afterwards throws an IllegalStateException.
+     */
+    public void close();
+}
@@ -0,0 +1,265 @@
+package persistence;
+
+import algorithms.BST;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.zip.CRC32C;
+
+/**
+ * Checkpoint files: the keys of a set in ascending order, delta-encoded as varints behind a small header.
+ * <p>
+ * The header holds a magic number, the format version, the number of keys, the length of the payload and a CRC32C
+ * of the payload followed by the header fields before it. The payload encodes every key as the unsigned LEB128 varint
+ * of its distance to the previous key minus one, the first one from Integer.MIN_VALUE - 1, so a dense set takes
+ * a byte per key. A file is read through memory mapping, and the keys stream out in order, which lets
+ * {@link main.BSTInterface#bulkLoad(int, PrimitiveIterator.OfInt)} rebuild a balanced tree in one pass.
+ * <p>
+ * The checkpoint numbered `segment` of a log directory was started when the log rotated to that segment, so recovery
+ * loads it and replays the log from that segment on.
+ */
+public final class Checkpoint {
+    private static final int MAGIC = 0x4253544B; // "BSTK"
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int CHECKSUMMED_HEADER_BYTES = 24; // magic, version, reserved, count and payload length
+    private static final int CHECKSUM_OFFSET = 24;
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final int MAX_VARINT_BYTES = 5;
+    private static final long MAPPED_CHUNK_BYTES = 1L << 30;
+
+    private Checkpoint() {
+    }
+
+    static Path path(Path directory, long segment) {
+        return directory.resolve(String.format("checkpoint-%016d.ckp", segment));
+    }
+
+    /**
+     * The numbers of the complete checkpoints in `directory`, ascending.
+     */
+    static List<Long> checkpoints(Path directory) throws IOException {
+        List<Long> checkpoints = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "checkpoint-*.ckp")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                checkpoints.add(Long.parseLong(name.substring("checkpoint-".length(), name.length() - ".ckp".length())));
+            }
+        }
+        Collections.sort(checkpoints);
+        return checkpoints;
+    }
+
+    /**
+     * Write `keys` as the checkpoint of `segment` in `directory`.
+     *
+     * @return the number of keys written
+     */
+    static long write(Path directory, long segment, PrimitiveIterator.OfInt keys) throws IOException {
+        return write(path(directory, segment), keys);
+    }
+
+    /**
+     * Write the strictly ascending `keys` to `file`. The file is written under a temporary name, forced and renamed,
+     * so a checkpoint file is always complete.
+     *
+     * @return the number of keys written
+     */
+    public static long write(Path file, PrimitiveIterator.OfInt keys) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32C crc = new CRC32C();
+        long count = 0;
+        long payloadBytes = 0;
+        try {
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                out.position(HEADER_BYTES);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+                long previous = (long) Integer.MIN_VALUE - 1;
+                while (keys.hasNext()) {
+                    int key = keys.nextInt();
+                    long delta = key - previous - 1;
+                    if (delta < 0) {
+                        throw new IllegalArgumentException("keys must be strictly ascending, got " + previous + " before " + key);
+                    }
+                    previous = key;
+                    if (buffer.remaining() < MAX_VARINT_BYTES) {
+                        payloadBytes += writeFully(out, buffer, crc);
+                    }
+                    while (delta >= 0x80) {
+                        buffer.put((byte) (delta | 0x80));
+                        delta >>>= 7;
+                    }
+                    buffer.put((byte) delta);
+                    count++;
+                }
+                payloadBytes += writeFully(out, buffer, crc);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.BIG_ENDIAN);
+                header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(count).putLong(payloadBytes);
+                crc.update(header.array(), 0, CHECKSUMMED_HEADER_BYTES);
+                header.putInt(CHECKSUM_OFFSET, (int) crc.getValue());
+                header.clear();
+                while (header.hasRemaining()) {
+                    out.write(header, header.position());
+                }
+                out.force(true);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory != null) {
+            forceDirectory(directory);
+        }
+        return count;
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer buffer, CRC32C crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        int written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    /**
+     * Make a rename in `directory` durable.
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+    }
+
+    /**
+     * The keys of a BST in ascending order, by an in-order traversal from its {@link BST#getRoot() root}.
+     * Unlike the tree's own iterator it does not follow concurrent updates, so no thread may update the tree meanwhile.
+     */
+    public static PrimitiveIterator.OfInt inOrder(BST.Node root) {
+        return new PrimitiveIterator.OfInt() {
+            private final ArrayDeque<BST.Node> path = new ArrayDeque<>();
+            private BST.Node next = root;
+
+            public boolean hasNext() {
+                return next != null || !path.isEmpty();
+            }
+
+            public int nextInt() {
+                for (; next != null; next = next.left) {
+                    path.push(next);
+                }
+                if (path.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                BST.Node node = path.pop();
+                next = node.right;
+                return node.getKey();
+            }
+        };
+    }
+
+    /**
+     * Map a checkpoint file and verify its checksum.
+     *
+     * @throws IOException if the file is not a complete checkpoint
+     */
+    public static Keys open(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("corrupt checkpoint " + file + " of " + size + " bytes");
+            }
+            ByteBuffer header = in.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.BIG_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getShort(4) != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " checkpoint");
+            }
+            long count = header.getLong(8);
+            long payloadBytes = header.getLong(16);
+            if (count < 0 || count > Integer.MAX_VALUE || payloadBytes != size - HEADER_BYTES) {
+                throw new IOException("corrupt checkpoint " + file + " of " + count + " keys in " + size + " bytes");
+            }
+            // the mappings stay valid after the channel is closed
+            int chunks = (int) ((payloadBytes + MAPPED_CHUNK_BYTES - 1) / MAPPED_CHUNK_BYTES);
+            MappedByteBuffer[] payload = new MappedByteBuffer[Math.max(chunks, 1)];
+            CRC32C crc = new CRC32C();
+            for (int i = 0; i < payload.length; i++) {
+                long offset = i * MAPPED_CHUNK_BYTES;
+                payload[i] = in.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + offset, Math.min(MAPPED_CHUNK_BYTES, payloadBytes - offset));
+                crc.update(payload[i].duplicate());
+            }
+            crc.update(header.duplicate().limit(CHECKSUMMED_HEADER_BYTES));
+            if ((int) crc.getValue() != header.getInt(CHECKSUM_OFFSET)) {
+                throw new IOException("checksum mismatch in checkpoint " + file);
+            }
+            return new Keys((int) count, payload);
+        }
+    }
+
+    /**
+     * The keys of a mapped checkpoint, decoded in ascending order as they are iterated.
+     */
+    public static final class Keys implements PrimitiveIterator.OfInt {
+        private final int size;
+        private final MappedByteBuffer[] payload;
+        private int chunk;
+        private int remaining;
+        private long previous = (long) Integer.MIN_VALUE - 1;
+
+        private Keys(int size, MappedByteBuffer[] payload) {
+            this.size = size;
+            this.payload = payload;
+            this.remaining = size;
+        }
+
+        /**
+         * The number of keys in the checkpoint.
+         */
+        public int size() {
+            return size;
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        public int nextInt() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            ByteBuffer in = payload[chunk];
+            long delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (!in.hasRemaining()) {
+                    in = payload[++chunk]; // checksummed, so a varint can only be cut by the end of a mapping
+                }
+                byte b = in.get();
+                delta |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            remaining--;
+            previous += delta + 1;
+            return (int) previous;
+        }
+    }
+}
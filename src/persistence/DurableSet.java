@@ -0,0 +1,320 @@
+package persistence;
+
+import algorithms.BST;
+import main.BSTInterface;
+import main.TreeSnapshot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Makes the updates of a {@link BSTInterface} durable: every successful insert and remove is appended to a
+ * {@link WriteAheadLog}, and checkpoints of the keys let recovery bulk-load the set and replay only the log written
+ * since.
+ * <p>
+ * The update and the append of its record happen under a lock striped by key, so the records of one key are in the
+ * log in the order their updates took effect, and replaying the log from any point converges to the same set.
+ * A checkpoint rotates the log first and scans the keys after, without stopping updates: every update that the scan
+ * may have missed or half-seen took effect after the rotation, so its record is in the log that recovery replays over
+ * the checkpoint.
+ */
+public final class DurableSet implements BSTInterface, AutoCloseable {
+    private static final int STRIPES = 1 << 10;
+
+    private final BSTInterface tree;
+    private final Path directory;
+    private final WriteAheadLog log;
+    private final WriteAheadLog.FsyncPolicy policy;
+    private final Object[] stripes = new Object[STRIPES];
+    private final Object checkpointLock = new Object();
+    private long checkpoints;
+    private final Thread checkpointer;
+    private volatile boolean closed;
+    private volatile IOException failure; // of the background checkpointer, reported by close
+
+    private DurableSet(BSTInterface tree, Path directory, long segment, WriteAheadLog.FsyncPolicy policy,
+                       long syncIntervalMillis, long checkpointIntervalMillis) throws IOException {
+        this.tree = tree;
+        this.directory = directory;
+        this.policy = policy;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        this.log = new WriteAheadLog(directory, segment, policy, syncIntervalMillis);
+        checkpoint();
+        if (checkpointIntervalMillis > 0) {
+            checkpointer = new Thread(() -> checkpointPeriodically(checkpointIntervalMillis), "checkpointer");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        } else {
+            checkpointer = null;
+        }
+    }
+
+    /**
+     * Start logging the updates of `tree` to `directory`, which must hold no log yet.
+     * The current keys of the tree are checkpointed first, so a prefilled tree can be made durable without logging
+     * every key.
+     *
+     * @param syncIntervalMillis       period of the forces with {@link WriteAheadLog.FsyncPolicy#INTERVAL}
+     * @param checkpointIntervalMillis period of the background checkpoints, 0 for none
+     */
+    public static DurableSet create(BSTInterface tree, Path directory, WriteAheadLog.FsyncPolicy policy,
+                                    long syncIntervalMillis, long checkpointIntervalMillis) throws IOException {
+        Files.createDirectories(directory);
+        if (!WriteAheadLog.segments(directory).isEmpty() || !Checkpoint.checkpoints(directory).isEmpty()) {
+            throw new IllegalStateException(directory + " already holds a log, recover it instead");
+        }
+        return new DurableSet(tree, directory, 0, policy, syncIntervalMillis, checkpointIntervalMillis);
+    }
+
+    /**
+     * Rebuild the set logged in `directory` into the empty `tree`, and continue logging its updates there.
+     */
+    public static DurableSet recover(BSTInterface tree, Path directory, WriteAheadLog.FsyncPolicy policy,
+                                     long syncIntervalMillis, long checkpointIntervalMillis) throws IOException {
+        long next = load(tree, directory) + 1;
+        return new DurableSet(tree, directory, next, policy, syncIntervalMillis, checkpointIntervalMillis);
+    }
+
+    /**
+     * Rebuild the set logged in `directory` into the empty `tree`: bulk-load the newest checkpoint and replay the
+     * segments of the log from the one it was started at.
+     *
+     * @return the highest segment or checkpoint number found, 0 if there is none
+     */
+    public static long load(BSTInterface tree, Path directory) throws IOException {
+        List<Long> checkpoints = Checkpoint.checkpoints(directory);
+        long start = 0;
+        if (!checkpoints.isEmpty()) {
+            start = checkpoints.get(checkpoints.size() - 1);
+            Checkpoint.Keys keys = Checkpoint.open(Checkpoint.path(directory, start));
+            tree.bulkLoad(keys.size(), keys);
+        }
+        long last = -1;
+        for (long segment : WriteAheadLog.segments(directory)) {
+            last = segment;
+            if (segment >= start) {
+                WriteAheadLog.replay(WriteAheadLog.segmentPath(directory, segment), (op, key) -> {
+                    if (op == WriteAheadLog.INSERT) {
+                        tree.insert(key);
+                    } else {
+                        tree.remove(key);
+                    }
+                });
+            }
+        }
+        return Math.max(last, start);
+    }
+
+    /**
+     * Delete the log and checkpoints in `directory`, and the directory if nothing else is left in it.
+     */
+    public static void delete(Path directory) throws IOException {
+        for (long segment : WriteAheadLog.segments(directory)) {
+            Files.delete(WriteAheadLog.segmentPath(directory, segment));
+        }
+        for (long checkpoint : Checkpoint.checkpoints(directory)) {
+            Files.delete(Checkpoint.path(directory, checkpoint));
+        }
+        try (Stream<Path> rest = Files.list(directory)) {
+            if (rest.findAny().isEmpty()) {
+                Files.delete(directory);
+            }
+        }
+    }
+
+    private Object stripe(int key) {
+        return stripes[(key * 0x9E3779B9) >>> (Integer.SIZE - 10)];
+    }
+
+    public boolean insert(final int key) {
+        final long position;
+        synchronized (stripe(key)) {
+            if (!tree.insert(key)) {
+                return false;
+            }
+            position = log.append(WriteAheadLog.INSERT, key);
+        }
+        if (policy == WriteAheadLog.FsyncPolicy.ALWAYS) {
+            log.sync(position);
+        }
+        return true;
+    }
+
+    public boolean remove(final int key) {
+        final long position;
+        synchronized (stripe(key)) {
+            if (!tree.remove(key)) {
+                return false;
+            }
+            position = log.append(WriteAheadLog.REMOVE, key);
+        }
+        if (policy == WriteAheadLog.FsyncPolicy.ALWAYS) {
+            log.sync(position);
+        }
+        return true;
+    }
+
+    /**
+     * Rotate the log and write the keys to a checkpoint of the new segment, then delete the checkpoints and
+     * segments it makes obsolete.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long segment = log.rotate();
+            Checkpoint.write(directory, segment, tree.iterator());
+            for (long older : Checkpoint.checkpoints(directory)) {
+                if (older < segment) {
+                    Files.delete(Checkpoint.path(directory, older));
+                }
+            }
+            for (long older : WriteAheadLog.segments(directory)) {
+                if (older < segment) {
+                    Files.delete(WriteAheadLog.segmentPath(directory, older));
+                }
+            }
+            checkpoints++;
+        }
+    }
+
+    // parked rather than interrupted by close, as an interrupt during a write would close the checkpoint's channel
+    private void checkpointPeriodically(long intervalMillis) {
+        long next = System.nanoTime();
+        while (true) {
+            next += intervalMillis * 1_000_000L;
+            for (long wait; (wait = next - System.nanoTime()) > 0; ) {
+                LockSupport.parkNanos(this, wait);
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                checkpoint();
+            } catch (IllegalStateException e) {
+                return; // the log was closed in the meantime
+            } catch (IOException e) {
+                failure = e;
+                return;
+            }
+        }
+    }
+
+    public long checkpoints() {
+        synchronized (checkpointLock) {
+            return checkpoints;
+        }
+    }
+
+    /**
+     * The number of forces of the log so far, each of which may have covered the records of many updates.
+     */
+    public long forces() {
+        return log.forces();
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Stop the checkpoints and close the log, with everything appended forced.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (checkpointer != null) {
+            LockSupport.unpark(checkpointer);
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.close();
+        IOException failed = failure;
+        if (failed != null) {
+            throw new IOException("a background checkpoint failed", failed);
+        }
+    }
+
+    // bulk loads are made durable by a checkpoint rather than by a record per key
+
+    public void bulkLoad(int[] sortedKeys) {
+        tree.bulkLoad(sortedKeys);
+        checkpointUnchecked();
+    }
+
+    public void bulkLoadParallel(int[] sortedKeys) {
+        tree.bulkLoadParallel(sortedKeys);
+        checkpointUnchecked();
+    }
+
+    @Override
+    public void bulkLoad(int size, PrimitiveIterator.OfInt sortedKeys) {
+        tree.bulkLoad(size, sortedKeys);
+        checkpointUnchecked();
+    }
+
+    private void checkpointUnchecked() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // reads go straight to the tree
+
+    public boolean contains(final int key) {
+        return tree.contains(key);
+    }
+
+    @Override
+    public void containsAll(int[] keys, boolean[] out) {
+        tree.containsAll(keys, out);
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    public int approximateSize() {
+        return tree.approximateSize();
+    }
+
+    public String getName() {
+        return tree.getName() + "-wal-" + policy.name().toLowerCase();
+    }
+
+    public long getKeysum() {
+        return tree.getKeysum();
+    }
+
+    public BST.Node getRoot() {
+        return tree.getRoot();
+    }
+
+    public int rangeCount(int lo, int hi) {
+        return tree.rangeCount(lo, hi);
+    }
+
+    public void rangeScan(int lo, int hi, IntConsumer consumer) {
+        tree.rangeScan(lo, hi, consumer);
+    }
+
+    public PrimitiveIterator.OfInt iterator() {
+        return tree.iterator();
+    }
+
+    public TreeSnapshot snapshot() {
+        return tree.snapshot();
+    }
+}
@@ -0,0 +1,337 @@
+package persistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append-only log of the successful updates of a set, in numbered segment files of fixed-width records
+ * (one op byte and a big-endian int key) in a directory.
+ * <p>
+ * Appending only copies the record into an in-memory buffer under the log's monitor. The buffer is written out by
+ * whichever thread needs it on disk first: that thread becomes the leader, swaps in the spare buffer so the others
+ * keep appending, and writes and forces the full one outside the monitor, while the threads that wait for records of
+ * the same buffer are released by its single force. That is group commit: under load, one fsync covers the records
+ * of many threads.
+ */
+public final class WriteAheadLog implements AutoCloseable {
+
+    /**
+     * When appended records are forced to disk.
+     */
+    public enum FsyncPolicy {
+        /**
+         * An update returns once a force covers its record, concurrent updates share forces (group commit).
+         */
+        ALWAYS,
+        /**
+         * A background thread forces the log every sync interval, an update never waits for the disk,
+         * and a crash loses at most the last interval.
+         */
+        INTERVAL,
+        /**
+         * Records go to the operating system when a buffer fills up, and are only forced when the segment is rotated
+         * or the log closed.
+         */
+        NEVER
+    }
+
+    /**
+     * Receives the records of a segment during replay.
+     */
+    interface RecordConsumer {
+        void accept(byte op, int key);
+    }
+
+    static final byte INSERT = 1;
+    static final byte REMOVE = 2;
+    static final int RECORD_BYTES = 5;
+    private static final int BUFFER_BYTES = RECORD_BYTES << 13;
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private FileChannel channel;
+    private long segment;
+    private ByteBuffer filling = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    // positions in bytes over all segments, appended >= written >= durable
+    private long appended;
+    private long written;
+    private long durable;
+    private boolean flushing; // a leader is writing a buffer out, or the segment is being rotated
+    private boolean closed;
+    private long forces;
+    private volatile IOException failure; // of a write or force, after which the log refuses further use
+    private final Thread syncer;
+
+    /**
+     * Start a log whose first segment is `segment`, which must not exist yet.
+     *
+     * @param syncIntervalMillis period of the background forces with {@link FsyncPolicy#INTERVAL}, ignored otherwise
+     */
+    public WriteAheadLog(Path directory, long segment, FsyncPolicy policy, long syncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.segment = segment;
+        this.channel = FileChannel.open(segmentPath(directory, segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        if (policy == FsyncPolicy.INTERVAL) {
+            if (syncIntervalMillis <= 0) {
+                throw new IllegalArgumentException("the sync interval must be positive, got " + syncIntervalMillis);
+            }
+            syncer = new Thread(() -> syncPeriodically(syncIntervalMillis), "wal-syncer");
+            syncer.setDaemon(true);
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+
+    static Path segmentPath(Path directory, long segment) {
+        return directory.resolve(String.format("wal-%016d.log", segment));
+    }
+
+    /**
+     * The numbers of the segment files in `directory`, ascending.
+     */
+    static List<Long> segments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring("wal-".length(), name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Pass every complete record of a segment file to `consumer`, in order. The log ends at a torn record or at zeros,
+     * which is what a crash in the middle of a write leaves behind.
+     */
+    static void replay(Path file, RecordConsumer consumer) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+            while (in.read(buffer) > 0 || buffer.position() >= RECORD_BYTES) {
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_BYTES) {
+                    byte op = buffer.get();
+                    int key = buffer.getInt();
+                    if (op == 0) {
+                        return;
+                    }
+                    if (op != INSERT && op != REMOVE) {
+                        throw new IOException("corrupt record with op " + op + " in " + file);
+                    }
+                    consumer.accept(op, key);
+                }
+                buffer.compact();
+            }
+        }
+    }
+
+    /**
+     * Append a record to the buffer.
+     *
+     * @return the position of the end of the record, to pass to {@link #sync}
+     */
+    public long append(byte op, int key) {
+        while (true) {
+            final long end;
+            synchronized (this) {
+                checkOpen();
+                if (filling.remaining() >= RECORD_BYTES) {
+                    filling.put(op).putInt(key);
+                    appended += RECORD_BYTES;
+                    return appended;
+                }
+                if (flushing) {
+                    awaitFlush();
+                    continue;
+                }
+                end = appended;
+            }
+            // the buffer is full: write it out, and force it if the policy forces every record anyway
+            flush(end, policy == FsyncPolicy.ALWAYS);
+        }
+    }
+
+    /**
+     * Return once the records up to `position` are written, and forced if `force`, leading a flush if none is running.
+     */
+    public void flush(long position, boolean force) {
+        while (true) {
+            final ByteBuffer buffer;
+            final long end;
+            final FileChannel target;
+            synchronized (this) {
+                checkOpen();
+                if ((force ? durable : written) >= position) {
+                    return;
+                }
+                if (flushing) {
+                    awaitFlush();
+                    continue;
+                }
+                flushing = true;
+                buffer = filling;
+                filling = spare;
+                spare = buffer;
+                end = appended;
+                target = channel;
+            }
+            boolean done = false;
+            try {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+                if (force) {
+                    target.force(false);
+                }
+                done = true;
+            } catch (IOException e) {
+                failure = e;
+                throw new UncheckedIOException(e);
+            } finally {
+                synchronized (this) {
+                    if (done) {
+                        written = end;
+                        if (force) {
+                            durable = end;
+                            forces++;
+                        }
+                    }
+                    flushing = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return once the records up to `position` are on disk.
+     */
+    public void sync(long position) {
+        flush(position, true);
+    }
+
+    /**
+     * Force everything appended so far and continue in a new segment.
+     *
+     * @return the number of the new segment; every record appended before the call is in an earlier one
+     */
+    public long rotate() throws IOException {
+        synchronized (this) {
+            checkOpen();
+            while (flushing) {
+                awaitFlush();
+            }
+            // the log is held for the whole rotation, appenders wait on the monitor
+            writeOutLocked();
+            channel.close();
+            segment++;
+            channel = FileChannel.open(segmentPath(directory, segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return segment;
+        }
+    }
+
+    private void writeOutLocked() throws IOException {
+        filling.flip();
+        while (filling.hasRemaining()) {
+            channel.write(filling);
+        }
+        filling.clear();
+        channel.force(false);
+        written = durable = appended;
+        forces++;
+    }
+
+    public synchronized long forces() {
+        return forces;
+    }
+
+    // the syncer is parked rather than interrupted when the log closes: an interrupt during a force would close the channel
+    private void syncPeriodically(long intervalMillis) {
+        long next = System.nanoTime();
+        while (true) {
+            next += intervalMillis * 1_000_000L;
+            for (long wait; (wait = next - System.nanoTime()) > 0; ) {
+                LockSupport.parkNanos(this, wait);
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                }
+            }
+            final long position;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                position = appended;
+            }
+            try {
+                sync(position);
+            } catch (IllegalStateException e) {
+                return; // closed in the meantime
+            } catch (UncheckedIOException e) {
+                return; // recorded in `failure`, the next caller gets it
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("the log is closed");
+        }
+        IOException failed = failure;
+        if (failed != null) {
+            throw new UncheckedIOException("an earlier write to the log failed", failed);
+        }
+    }
+
+    private void awaitFlush() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the log", e);
+        }
+    }
+
+    /**
+     * Write out and force everything appended, then close the current segment.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            while (flushing) {
+                awaitFlush();
+            }
+            try {
+                writeOutLocked();
+                channel.close();
+            } finally {
+                closed = true;
+                notifyAll();
+            }
+        }
+        if (syncer != null) {
+            LockSupport.unpark(syncer);
+        }
+    }
+}